@@ -0,0 +1,222 @@
+package filetransfer;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+// Represents an acknowledgement sent from the receiver back to the sender.
+//
+// Besides the last consecutive sequence number received, each ACK carries the
+// number of packets past that point the receiver currently has room for. The
+// sender never sends beyond that window, so the receiver doesn't have to drop
+// packets when its disk or CPU falls behind.
+//
+// A NACK is an ACK that also lists ranges of sequence numbers the receiver
+// is missing, so the sender can repair a burst of losses in one round trip.
+// The count field is only used by NACKs, and gives the number of ranges that
+// follow the header. Each range is a first and last sequence number.
+//
+// A WANT is an ACK that answers a DedupInputStream's offer. Its ranges are of
+// chunk indices rather than sequence numbers, and list the chunks the receiver
+// wants sent. It may have no ranges at all.
+//
+// The session is the one given in the data packets being acknowledged.
+//
+// Every ACK echoes the sequence number of the newest data packet to arrive,
+// and the time the receiver got it, in microseconds by the receiver's clock.
+// The echoed sequence number is -1 until a packet has arrived. A background
+// sender works out the one-way queuing delay from these.
+//
+//  0                   1                   2                   3
+//  0 1 2 3 4 5 6 7 8 9 0 1 2 3 4 5 6 7 8 9 0 1 2 3 4 5 6 7 8 9 0 1
+// +-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+
+// |     Type      |     Count     |            Checksum           |
+// +-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+
+// |                          ACK Number                           |
+// +-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+
+// |                            Window                             |
+// +-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+
+// |                            Session                            |
+// +-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+
+// |                         Echo Sequence                         |
+// +-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+
+// |                           Echo Time                           |
+// +-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+
+// |                 First Missing (NACK and WANT only)            |
+// +-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+
+// |                 Last Missing (NACK and WANT only)             |
+// +-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+
+// |                              ...                              |
+// +-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+
+public class AckPacket {
+
+    private boolean isCorrupt;
+    private byte type;
+    private int ackNumber;
+    private int window;
+    private int sessionId;
+    private int echoSequence;
+    private int echoTime;
+    private int[] ranges;
+
+    static public final int MAX_PACKET_SIZE = 1500;
+    static public final int HEADER_SIZE	    = 24;
+    static public final int RANGE_SIZE	    = 8;
+    static public final int MAX_RANGES	    = 64;
+
+    static final int	TYPE_INDEX     = 0;
+    static final int	COUNT_INDEX    = 1;
+    static final int	CHECKSUM_INDEX = 2;
+    static final int	ACK_INDEX      = 4;
+    static final int	WINDOW_INDEX   = 8;
+    static final int	SESSION_INDEX  = 12;
+    static final int	ECHO_SEQ_INDEX = 16;
+    static final int	ECHO_TIME_INDEX = 20;
+    static final int	RANGES_INDEX   = HEADER_SIZE;
+
+    static final byte	TYPE_ACK  = 0x01;
+    static final byte	TYPE_NACK = 0x02;
+    static final byte	TYPE_WANT = 0x03;
+
+    private static final int[] NO_RANGES = new int[0];
+
+    // Creates an ACK for the given session, sequence number and window.
+    public AckPacket(int sessionId, int ackNumber, int window) {
+	this.isCorrupt = false;
+	this.type      = TYPE_ACK;
+	this.sessionId = sessionId;
+	this.ackNumber = ackNumber;
+	this.window    = window;
+	this.ranges    = NO_RANGES;
+	this.echoSequence = -1;
+	this.echoTime  = 0;
+    }
+
+    // Creates a NACK for the given session, sequence number and window, listing
+    // missing ranges as pairs of first and last sequence numbers. Only the first
+    // MAX_RANGES ranges are sent.
+    public AckPacket(int sessionId, int ackNumber, int window, int[] ranges) {
+	this(sessionId, ackNumber, window);
+	this.type   = TYPE_NACK;
+	this.ranges = ranges.length > MAX_RANGES * 2 ? Arrays.copyOf(ranges, MAX_RANGES * 2) : ranges;
+    }
+
+    // Creates a NACK as above, or if want is set, a WANT listing the ranges of
+    // chunks wanted, as pairs of first and last chunk index.
+    public AckPacket(int sessionId, int ackNumber, int window, int[] ranges, boolean want) {
+	this(sessionId, ackNumber, window, ranges);
+	if (want) {
+	    this.type = TYPE_WANT;
+	}
+    }
+
+    // Construct an ACK from the first length bytes of a buffer.
+    public AckPacket(byte[] data, int length) {
+	this.isCorrupt = false;
+
+	ByteBuffer buffer = ByteBuffer.wrap(data, 0, length);
+	if (length < HEADER_SIZE ||
+	    DataPacket.calculateChecksum(data, length) != 0) {
+	    isCorrupt = true;
+	    return;
+	}
+
+	this.type      = buffer.get(TYPE_INDEX);
+	this.ackNumber = buffer.getInt(ACK_INDEX);
+	this.window    = buffer.getInt(WINDOW_INDEX);
+	this.sessionId = buffer.getInt(SESSION_INDEX);
+	this.echoSequence = buffer.getInt(ECHO_SEQ_INDEX);
+	this.echoTime  = buffer.getInt(ECHO_TIME_INDEX);
+	this.ranges    = NO_RANGES;
+
+	if (type == TYPE_NACK || type == TYPE_WANT) {
+	    int count = buffer.get(COUNT_INDEX) & 0xFF;
+	    if (count > MAX_RANGES || length < RANGES_INDEX + count * RANGE_SIZE) {
+		isCorrupt = true;
+		return;
+	    }
+
+	    this.ranges = new int[count * 2];
+	    for (int i = 0; i < ranges.length; ++i) {
+		ranges[i] = buffer.getInt(RANGES_INDEX + i * 4);
+	    }
+	} else if (type != TYPE_ACK) {
+	    isCorrupt = true;
+	}
+    }
+
+    // Indicates whether the ACK was properly de-serialized.
+    public boolean isCorrupt() {
+	return isCorrupt;
+    }
+
+    // Gets the last consecutive sequence number the receiver has.
+    public int getAckNumber() {
+	return ackNumber;
+    }
+
+    // Gets the number of packets after the ACK number the receiver can accept.
+    public int getWindow() {
+	return window;
+    }
+
+    // Gets the session the ACK belongs to.
+    public int getSessionId() {
+	return sessionId;
+    }
+
+    // Gets the sequence number of the newest packet the receiver had when it
+    // sent this, or -1 if it had none.
+    public int getEchoSequence() {
+	return echoSequence;
+    }
+
+    // Gets the time the receiver got the echoed packet, in microseconds by its
+    // own clock. Only differences between these times mean anything.
+    public int getEchoTime() {
+	return echoTime;
+    }
+
+    // Echoes the given packet, which the receiver got at the given time.
+    public void setEcho(int sequenceNumber, int time) {
+	this.echoSequence = sequenceNumber;
+	this.echoTime	  = time;
+    }
+
+    // Indicates whether this is a NACK listing missing packets.
+    public boolean isNack() {
+	return type == TYPE_NACK;
+    }
+
+    // Indicates whether this is a WANT answering an offer of chunks.
+    public boolean isWant() {
+	return type == TYPE_WANT;
+    }
+
+    // Gets the missing ranges of a NACK, as pairs of first and last sequence
+    // numbers, or the wanted chunks of a WANT. Empty for a plain ACK.
+    public int[] getRanges() {
+	return ranges;
+    }
+
+    // Converts the ACK into an array of bytes for transmitting over the network.
+    public byte[] serialize() {
+	int size = HEADER_SIZE + (ranges.length / 2) * RANGE_SIZE;
+	ByteBuffer buffer = ByteBuffer.allocate(size);
+	buffer.put(TYPE_INDEX, type);
+	buffer.put(COUNT_INDEX, (byte)(ranges.length / 2));
+	buffer.putShort(CHECKSUM_INDEX, (short)0);
+	buffer.putInt(ACK_INDEX, ackNumber);
+	buffer.putInt(WINDOW_INDEX, window);
+	buffer.putInt(SESSION_INDEX, sessionId);
+	buffer.putInt(ECHO_SEQ_INDEX, echoSequence);
+	buffer.putInt(ECHO_TIME_INDEX, echoTime);
+	for (int i = 0; i < ranges.length; ++i) {
+	    buffer.putInt(RANGES_INDEX + i * 4, ranges[i]);
+	}
+
+	short checksum = (short)DataPacket.calculateChecksum(buffer.array(), size);
+	buffer.putShort(CHECKSUM_INDEX, checksum);
+
+	return buffer.array();
+    }
+}
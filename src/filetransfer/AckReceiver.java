@@ -1,46 +1,63 @@
 package filetransfer;
 
-import java.net.SocketException;
-import java.net.DatagramSocket;
-import java.io.IOException;
-import java.nio.ByteBuffer;
-import java.net.DatagramPacket;
-import java.util.concurrent.locks.Lock;
-import java.util.concurrent.locks.ReentrantLock;
-import java.util.concurrent.locks.Condition;
-import java.util.concurrent.TimeUnit;
-
-// Accepts incoming ACKs from the file receiver and notifies
-// the FileSendBuffer that a packet was successfully transmitted.
-public class AckReceiver extends Thread {
-
-    private DatagramSocket socket;
-    private DatagramPacket packet;
-    private ByteBuffer buffer;
-    private int previousAckReceived;
-    private int lastAckReceived;
-    private boolean doneListening;
-    private Lock lock;
-    private Condition ackReceived;
-    private FileSendBuffer sender;
-
-    private static final int ACK_PACKET_SIZE = 12;
-
-    // Creates a new receiver that will listen on a random, open port for
-    // ACKs and will send updates to the given FileSendBuffer.
-    public AckReceiver() throws SocketException {
-	this.socket = new DatagramSocket();
-	this.buffer = ByteBuffer.allocate(ACK_PACKET_SIZE);
-	this.packet = new DatagramPacket(buffer.array(), ACK_PACKET_SIZE);
-
-	this.previousAckReceived = -1;
-	this.lastAckReceived  = -1;
-	this.doneListening    = false;
+import java.net.SocketAddress;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+// Accepts incoming ACKs for one session from the file receiver and notifies
+// the FileSendBuffer that a packet was successfully transmitted. The client
+// listens for the ACKs of all of its sessions on one socket, and hands each
+// one to the AckReceiver of its session.
+//
+// The highest ACK is published through an atomic value, so processing an
+// ACK never takes a lock that the sending thread could be holding. Threads
+// waiting on an ACK park and are unparked when a new one arrives. The send
+// buffer wakes the client's scheduler itself when it hears of an ACK.
+//
+// When sending to a multicast group, ACKs come in from every receiver. A packet
+// only counts as acknowledged once all of the expected receivers have ACKed it,
+// and the window is the smallest one any of them advertised. NACKs from all of
+// the receivers feed the same send buffer, which resends each packet once.
+//
+// A transfer that offers its chunks waits for a WANT from every receiver, and
+// sends the chunks any of them wants.
+public class AckReceiver {
+
+    private HashMap<SocketAddress, Peer> peers;
+    private int expectedReceivers;
+    private AtomicInteger lastAckReceived;
+    private volatile long lastHeardTime;
+    private ConcurrentLinkedQueue<Thread> waiters;
+    private volatile FileSendBuffer sender;
+    private volatile DedupInputStream offer;
+
+    // The latest ACK heard from one receiver, and the chunks it wants.
+    private static class Peer {
+	final int index;
+	int ack	      = -1;
+	int window    = 0;
+	BitSet wanted = null;
+
+	Peer(int index) {
+	    this.index = index;
+	}
+    }
+
+    // Creates a new receiver that expects ACKs from the given number of
+    // receivers, and will send updates to the given FileSendBuffer.
+    public AckReceiver(int expectedReceivers) {
+	this.peers	       = new HashMap<SocketAddress, Peer>();
+	this.expectedReceivers = expectedReceivers;
+	this.lastAckReceived  = new AtomicInteger(-1);
+	this.lastHeardTime    = System.nanoTime();
 
 	this.sender = null;
+	this.offer  = null;
 
-	this.lock = new ReentrantLock();
-	this.ackReceived = lock.newCondition();
+	this.waiters = new ConcurrentLinkedQueue<Thread>();
     }
 
     // Assigns a send buffer to notify of incoming ACK packets.
@@ -48,104 +65,184 @@ public class AckReceiver extends Thread {
 	this.sender = sender;
     }
 
-    // Gets the port that the receiver is listening on.
-    public int getPort() {
-	return socket.getLocalPort();
+    // Assigns the stream whose offer of chunks the receivers answer with WANTs.
+    public void setOffer(DedupInputStream offer) {
+	this.offer = offer;
     }
 
-    // Starts the thread listening for incoming ACK values.
-    public void run() {
+    // Gets the time, from System.nanoTime(), that an ACK last arrived.
+    public long getLastHeardTime() {
+	return lastHeardTime;
+    }
 
-	while (!doneListening) {
+    // Handles an ACK for this session from the receiver at the given address.
+    // ACKs for a session are always handled on the same thread.
+    public void receive(AckPacket ack, SocketAddress source) {
 
-	    try {
-		socket.receive(packet);
-	    } catch (IOException e) {
-		continue;
-	    }
+	Peer peer = findPeer(source);
+	if (peer == null) {
+	    return;
+	}
+	lastHeardTime = System.nanoTime();
 
-	    // Verify that the ACK contains three identical integer
-	    // values.
-	    if (buffer.capacity() < ACK_PACKET_SIZE) {
-		System.out.println("[recv corrupt ack]");
-		continue;
-	    }
+	int ackValue = ack.getAckNumber();
+	int window = ack.getWindow();
+	System.out.format("[recv %s] %d (window %d)\n",
+			  ack.isNack() ? "nack" : ack.isWant() ? "want" : "ack", ackValue, window);
+
+	// If two of the same ACK value were received in a row from
+	// the same receiver, the packet after that may have gone
+	// missing. An ACK that only changes the window is just a
+	// window update, and a WANT is repeated until it is answered.
+	boolean duplicate = (!ack.isNack() && !ack.isWant() && peer.ack == ackValue && peer.window == window);
+
+	if (ack.isWant()) {
+	    receiveWant(peer, ack.getRanges());
+	}
+
+	// An ACK that arrives late says nothing about the current window.
+	if (ackValue >= peer.ack) {
+	    peer.ack = ackValue;
+	    peer.window = window;
+	}
+
+	// When every receiver has ACKed a packet, notify the FileSendBuffer
+	// so that it can stop transmitting that packet.
+	int groupAck = Integer.MAX_VALUE;
+	int groupEdge = Integer.MAX_VALUE;
+	for (Peer each : peers.values()) {
+	    groupAck = Math.min(groupAck, each.ack);
+	    groupEdge = Math.min(groupEdge, each.ack + each.window);
+	}
+	if (peers.size() < expectedReceivers) {
+	    groupAck = -1;
+	}
 
-	    int ackValue = buffer.getInt(0);
-	    if (ackValue != buffer.getInt(4) ||
-		ackValue != buffer.getInt(8)) {
-		System.out.println("[recv corrupt ack]");
-		continue;
+	// The send buffer hears about the ACK before anyone waiting on it is
+	// woken, so it can always retire the packets they were waiting for. The
+	// packet the ACK echoes is still in the window when the buffer gets to
+	// the delay sample, since the sample is handed over first.
+	FileSendBuffer sendBuffer = sender;
+	if (sendBuffer != null) {
+	    if (ack.getEchoSequence() >= 0) {
+		sendBuffer.addDelaySample(peer.index, ack.getEchoSequence(), ack.getEchoTime());
 	    }
+	    sendBuffer.setLastAck(groupAck, groupEdge - groupAck);
+	}
+	updateLastAckReceived(groupAck);
+	if (sendBuffer == null) {
+	    return;
+	}
 
-	    // When an ACK is received, notify the FileSendBuffer
-	    // so that it can stop transmitting that packet.
-	    System.out.format("[recv ack] %d\n", ackValue);
-	    updateLastAckReceived(ackValue);
+	// Missing packets are only reported to the send buffer, which decides
+	// from when they were sent whether they are lost or just reordered. A
+	// NACK with room to spare lists every hole the receiver has; a full one
+	// may have left some out, so it only adds to what we knew.
+	if (ack.isNack()) {
+	    int[] ranges = ack.getRanges();
+	    sendBuffer.reportMissing(peer.index, ranges, ranges.length / 2 < AckPacket.MAX_RANGES);
+	} else if (duplicate) {
+	    sendBuffer.reportMissing(peer.index, new int[] { ackValue + 1, ackValue + 1 }, false);
+	}
+    }
 
-	    if (sender != null) {
-		sender.setLastAck((int)lastAckReceived);
+    // Notes the chunks a receiver wants. Once every expected receiver has
+    // answered, the offer goes on with the chunks any of them wants.
+    private void receiveWant(Peer peer, int[] ranges) {
+	if (peer.wanted != null) {
+	    return;
+	}
+	peer.wanted = new BitSet();
+	for (int i = 0; i + 1 < ranges.length; i += 2) {
+	    if (ranges[i] >= 0 && ranges[i + 1] >= ranges[i] && ranges[i + 1] < DedupInputStream.MAX_CHUNKS) {
+		peer.wanted.set(ranges[i], ranges[i + 1] + 1);
+	    }
+	}
 
-		// If two of the same ACK value were received in a row,
-		// notify the sender to re-send the packet after that
-		// since it probably went missing.
-		if (previousAckReceived == ackValue) {
-		    sender.resendPacket(ackValue + 1);
-		}
+	DedupInputStream stream = offer;
+	if (stream == null || peers.size() < expectedReceivers) {
+	    return;
+	}
+	BitSet union = new BitSet();
+	for (Peer each : peers.values()) {
+	    if (each.wanted == null) {
+		return;
 	    }
+	    union.or(each.wanted);
+	}
+	stream.setWanted(union);
+    }
 
-	    previousAckReceived = ackValue;
+    // Gets the state kept for the receiver at the given address, adding it if
+    // we are still waiting for receivers to join. Returns null for any
+    // receiver past the expected number.
+    private Peer findPeer(SocketAddress address) {
+	Peer peer = peers.get(address);
+	if (peer != null) {
+	    return peer;
 	}
 
-	socket.close();
+	if (peers.size() >= expectedReceivers) {
+	    System.out.println("[debug] ignoring ack from unexpected receiver " + address);
+	    return null;
+	}
+
+	peer = new Peer(peers.size());
+	peers.put(address, peer);
+	if (expectedReceivers > 1) {
+	    System.out.format("[debug] receiver %s joined (%d of %d)\n",
+			      address, peers.size(), expectedReceivers);
+	}
+	return peer;
     }
 
     // Blocks until we receive the expected ACK. Returns true if the ACK
     // was received, returns false if interrupted or times-out.
     public boolean waitForAck(int expectedAck, long timeoutInMS) {
-	lock.lock();
-
-	try {
-	    while (lastAckReceived < expectedAck ) {
-		try {
-		    if (!ackReceived.await(timeoutInMS, TimeUnit.MILLISECONDS)) {
-			return false;
-		    }
-		} catch (InterruptedException e) {
-		    return false;
+	long deadline = System.nanoTime() + timeoutInMS * 1000000;
+	Thread current = Thread.currentThread();
+
+	while (lastAckReceived.get() < expectedAck) {
+	    long remaining = deadline - System.nanoTime();
+	    if (remaining <= 0 || current.isInterrupted()) {
+		return false;
+	    }
+
+	    // Register before checking again, so an ACK that arrives in between
+	    // will still unpark us.
+	    waiters.add(current);
+	    try {
+		if (lastAckReceived.get() < expectedAck) {
+		    LockSupport.parkNanos(this, remaining);
 		}
+	    } finally {
+		waiters.remove(current);
 	    }
-	} finally {
-	    lock.unlock();
 	}
 
 	return true;
     }
 
-    // Stops the thread from listening by closing the socket.
-    public void stopListening() {
-
-	doneListening = true;
-
-	// Close the socket that it is listening on as a way to
-	// unblock the thread.
-	socket.close(); 
+    // Gets the highest ACK value received so far.
+    public int getLastAckReceived() {
+	return lastAckReceived.get();
     }
 
-    // Determines if the latest ACK is greater than the previous
-    // one, and if so, updates the value and alerts any threads
-    // waiting on a new ACK value.
-    private void updateLastAckReceived(int newAck) {
-	lock.lock();
-	try {
-	    if (newAck >= lastAckReceived) {
-		lastAckReceived = newAck;
-		ackReceived.signal();
-	    }
+    // Raises the last ACK received to the new value if it is greater, and
+    // wakes any threads waiting on a new ACK value. Returns the highest
+    // ACK value received so far.
+    private int updateLastAckReceived(int newAck) {
+	int previous = lastAckReceived.getAndAccumulate(newAck, Math::max);
+	if (newAck > previous) {
+	    wakeWaiters();
+	}
+	return Math.max(previous, newAck);
+    }
 
-	} finally {
-	    lock.unlock();
+    private void wakeWaiters() {
+	for (Thread waiter : waiters) {
+	    LockSupport.unpark(waiter);
 	}
     }
 
-}
\ No newline at end of file
+}
@@ -1,52 +1,179 @@
 package filetransfer;
 
-import java.net.DatagramSocket;
-import java.net.DatagramPacket;
-import java.net.InetAddress;
-import java.net.SocketException;
+import java.net.InetSocketAddress;
 import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
 import java.io.IOException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.IntSupplier;
 
-// Sends ACK messages over a specific port.
+// Sends the ACK messages for one session. ACKs may be sent from several
+// threads at once, so each one is built in its own buffer. Every ACK carries
+// the receiver's currently available window, taken from the window source.
+// The ACKs go out through the channel the data arrives on, which is shared by
+// every session the server is receiving.
+//
+// To cut down on the number of ACKs in flight, in-order packets can be
+// acknowledged lazily: one ACK covers every ACK_EVERY packets, or whatever
+// has arrived after ACK_DELAY_MS, whichever comes first. A NACK carries the
+// same ACK and window, so it covers any ACK that was waiting to go out.
+//
+// Every ACK echoes the newest packet to arrive and when it arrived, for the
+// sender to measure the one-way delay with.
 public class AckSender {
 
-    private DatagramSocket socket;
-    private DatagramPacket packet;
-    private ByteBuffer buffer;
+    private DatagramChannel channel;
+    private InetSocketAddress destination;
+    private int sessionId;
 
-    private int latestAck;
+    private AtomicInteger latestAck;
+    private IntSupplier windowSource;
+    private volatile int lastWindow;
+    private volatile int lastSentAck;
+    private AtomicInteger pendingPackets;
+    private AtomicLong latestArrival;
+    private AtomicBoolean flushScheduled;
+    private ScheduledExecutorService timer;
 
-    private final static int ACK_SIZE = 12;
+    private final static int ACK_EVERY = 4;
+    private final static long ACK_DELAY_MS = 5;
+    private final static long NO_ARRIVAL = -1L << 32;
 
-    // Creates the sender and opens a new socket.
-    public AckSender(InetAddress destination, int ackPort)  throws SocketException {
-	this.socket	 = new DatagramSocket();
-	this.buffer	 = ByteBuffer.allocate(ACK_SIZE);
-	this.packet	 = new DatagramPacket(buffer.array(), ACK_SIZE, destination, ackPort);
-	this.latestAck   = 0;
+    // Creates a sender for the given session that sends ACKs to the destination
+    // over the channel. Delayed ACKs are flushed on the timer.
+    public AckSender(DatagramChannel channel, InetSocketAddress destination, int sessionId,
+		     IntSupplier windowSource, ScheduledExecutorService timer) {
+	this.channel	  = channel;
+	this.destination  = destination;
+	this.sessionId	  = sessionId;
+	this.latestAck    = new AtomicInteger(0);
+	this.windowSource = windowSource;
+	this.lastWindow	  = 0;
+	this.lastSentAck  = -1;
+
+	this.pendingPackets = new AtomicInteger(0);
+	this.latestArrival  = new AtomicLong(NO_ARRIVAL);
+	this.flushScheduled = new AtomicBoolean(false);
+	this.timer	    = timer;
     }
 
     // Sends the latest ACK message received back to the sender.
     public boolean sendAck(int ackNumber) {
 
-	if (ackNumber > latestAck) {
-	    latestAck = ackNumber;
+	int ack = latestAck.accumulateAndGet(ackNumber, Math::max);
+	int window = windowSource.getAsInt();
+	pendingPackets.set(0);
+	lastWindow = window;
+
+	if (!send(new AckPacket(sessionId, ack, window))) {
+	    return false;
+	}
+	lastSentAck = ack;
+	System.out.format("[send ack] %d (window %d)\n", ack, window);
+
+	return true;
+    }
+
+    // Sends the latest ACK along with the ranges of packets that are missing,
+    // given as pairs of first and last sequence numbers.
+    public boolean sendNack(int ackNumber, int[] ranges) {
+
+	int ack = latestAck.accumulateAndGet(ackNumber, Math::max);
+	int window = windowSource.getAsInt();
+	pendingPackets.set(0);
+	lastWindow = window;
+
+	if (!send(new AckPacket(sessionId, ack, window, ranges))) {
+	    return false;
 	}
+	lastSentAck = ack;
+	System.out.format("[send nack] %d (window %d, %d missing ranges from %d)\n",
+			  ack, window, ranges.length / 2, ranges[0]);
+
+	return true;
+    }
+
+    // Sends the latest ACK as the answer to an offer of chunks, along with the
+    // ranges of chunks wanted, given as pairs of first and last chunk index.
+    public boolean sendWant(int ackNumber, int[] ranges) {
 
-	// Put three copies of the same value in so the receiver
-	// can verify that they are the same (easier than a checksum).
-	buffer.putInt(0, latestAck);
-	buffer.putInt(4, latestAck);
-	buffer.putInt(8, latestAck);
+	int ack = latestAck.accumulateAndGet(ackNumber, Math::max);
+	int window = windowSource.getAsInt();
+	pendingPackets.set(0);
+	lastWindow = window;
 
+	if (!send(new AckPacket(sessionId, ack, window, ranges, true))) {
+	    return false;
+	}
+	lastSentAck = ack;
+	System.out.format("[send want] %d (window %d, %d chunk ranges)\n", ack, window, ranges.length / 2);
+
+	return true;
+    }
+
+    // Records that the packet with the given sequence number arrived at the
+    // given time, from System.nanoTime(), so the next ACK echoes it.
+    public void noteArrival(int sequenceNumber, long receivedTime) {
+	long micros = TimeUnit.NANOSECONDS.toMicros(receivedTime) & 0xFFFFFFFFL;
+	latestArrival.set(((long)sequenceNumber << 32) | micros);
+    }
+
+    private boolean send(AckPacket ack) {
+	long arrival = latestArrival.get();
+	ack.setEcho((int)(arrival >> 32), (int)arrival);
 	try {
-	    socket.send(packet);
+	    channel.send(ByteBuffer.wrap(ack.serialize()), destination);
 	} catch (IOException e) {
 	    return false;
 	}
-	System.out.format("[send ack] %d\n", ackNumber);
-
 	return true;
     }
 
-}
\ No newline at end of file
+    // Gets the highest ACK value recorded so far.
+    public int getLatestAck() {
+	return latestAck.get();
+    }
+
+    // Gets the ACK value most recently sent.
+    public int getLastSentAck() {
+	return lastSentAck;
+    }
+
+    // Gets the window advertised in the most recent ACK.
+    public int getLastWindow() {
+	return lastWindow;
+    }
+
+    // Records a new ACK value without necessarily sending it right away. The
+    // ACK goes out once enough packets have been covered or the delay runs out.
+    public void sendDelayedAck(int ackNumber) {
+
+	latestAck.accumulateAndGet(ackNumber, Math::max);
+
+	if (pendingPackets.incrementAndGet() >= ACK_EVERY) {
+	    sendAck(ackNumber);
+	    return;
+	}
+
+	if (flushScheduled.compareAndSet(false, true)) {
+	    try {
+		timer.schedule(this::flush, ACK_DELAY_MS, TimeUnit.MILLISECONDS);
+	    } catch (RejectedExecutionException e) {
+		// The server is shutting down.
+	    }
+	}
+    }
+
+    // Sends an ACK if any packets have arrived since the last one was sent.
+    private void flush() {
+	flushScheduled.set(false);
+	if (pendingPackets.get() > 0) {
+	    sendAck(latestAck.get());
+	}
+    }
+}
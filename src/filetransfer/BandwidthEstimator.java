@@ -0,0 +1,93 @@
+package filetransfer;
+
+// Keeps track of the round trip time and delivery rate seen over a transfer,
+// so the window and socket buffers can be sized to the bandwidth-delay product.
+public class BandwidthEstimator {
+
+    private long minRtt;
+    private long minRttStamp;
+    private long smoothedRtt;
+
+    private long intervalStart;
+    private long intervalBytes;
+    private double[] rateSamples;
+    private int nextSample;
+
+    private static final int RATE_SAMPLES	 = 10;
+    private static final long MIN_INTERVAL_NANOS = 1000000;
+    private static final long MIN_RTT_LIFETIME	 = 10000000000L;
+
+    public BandwidthEstimator() {
+	this.minRtt	   = 0;
+	this.minRttStamp   = 0;
+	this.smoothedRtt   = 0;
+	this.intervalStart = 0;
+	this.intervalBytes = 0;
+	this.rateSamples   = new double[RATE_SAMPLES];
+	this.nextSample	   = 0;
+    }
+
+    // Records a round trip time sample, in nanoseconds, for a packet that was
+    // only sent once.
+    public void addRttSample(long rtt, long now) {
+	if (rtt <= 0) {
+	    return;
+	}
+
+	// The minimum is allowed to expire in case the path changes.
+	if (minRtt == 0 || rtt < minRtt || now - minRttStamp > MIN_RTT_LIFETIME) {
+	    minRtt = rtt;
+	    minRttStamp = now;
+	}
+
+	if (smoothedRtt == 0) {
+	    smoothedRtt = rtt;
+	} else {
+	    smoothedRtt = (7 * smoothedRtt + rtt) / 8;
+	}
+    }
+
+    // Records that some bytes were acknowledged. The delivery rate is sampled
+    // once per round trip.
+    public void addDelivered(long bytes, long now) {
+	if (intervalStart == 0) {
+	    intervalStart = now;
+	}
+	intervalBytes += bytes;
+
+	long elapsed = now - intervalStart;
+	if (elapsed < Math.max(smoothedRtt, MIN_INTERVAL_NANOS)) {
+	    return;
+	}
+
+	rateSamples[nextSample] = (double)intervalBytes / elapsed;
+	nextSample = (nextSample + 1) % RATE_SAMPLES;
+
+	intervalStart = now;
+	intervalBytes = 0;
+    }
+
+    // Gets the lowest recent round trip time in nanoseconds, or 0 if unknown.
+    public long getMinRtt() {
+	return minRtt;
+    }
+
+    // Gets the smoothed round trip time in nanoseconds, or 0 if unknown.
+    public long getSmoothedRtt() {
+	return smoothedRtt;
+    }
+
+    // Gets the highest recent delivery rate in bytes per second.
+    public double getDeliveryRate() {
+	double max = 0;
+	for (double rate : rateSamples) {
+	    max = Math.max(max, rate);
+	}
+	return max * 1e9;
+    }
+
+    // Gets the estimated bandwidth-delay product of the path in bytes.
+    public long getBdpBytes() {
+	return (long)(getDeliveryRate() * minRtt / 1e9);
+    }
+}
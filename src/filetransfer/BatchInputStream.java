@@ -0,0 +1,186 @@
+package filetransfer;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Iterator;
+
+// Turns a sequence of files into one stream, so that a whole batch of files can
+// be sent in a single transfer. Each file is preceded by a record giving its
+// name and size, and the stream ends with an end record. The records and the
+// contents of the files are packed back to back, so small files share
+// segments instead of each taking a whole transfer.
+//
+// A file record is laid out as follows, and is followed by exactly size bytes:
+//
+// +--------+--------------+-----------------+-------------+
+// |  Type  |  Name Length |  Name (UTF-8)   |    Size     |
+// | 1 byte |   2 bytes    |  Length bytes   |   8 bytes   |
+// +--------+--------------+-----------------+-------------+
+//
+// The end record is a single type byte. Files are opened one at a time as the
+// stream reaches them, so the list of files can itself be produced lazily.
+public class BatchInputStream extends InputStream {
+
+    private Iterator<Path> files;
+    private Path base;
+    private ByteBuffer header;
+    private FileChannel current;
+    private Path currentPath;
+    private long remaining;
+    private boolean ended;
+    private int fileCount;
+
+    public static final byte TYPE_END  = 0x00;
+    public static final byte TYPE_FILE = 0x01;
+    public static final int  MAX_NAME  = 0xFFFF;
+
+    private static final int EOF = -1;
+
+    // Creates a stream of the given files. Each file is named by its path
+    // relative to base, or by the path it was given as if base is null. A file
+    // whose name would lead outside of the receiver's directory is just named
+    // by its file name.
+    public BatchInputStream(Path base, Iterator<Path> files) {
+	this.base      = base;
+	this.files     = files;
+	this.header    = ByteBuffer.allocate(1 + 2 + MAX_NAME + 8);
+	this.current   = null;
+	this.currentPath = null;
+	this.remaining = 0;
+	this.ended     = false;
+	this.fileCount = 0;
+
+	header.limit(0);
+    }
+
+    // Gets the number of files started so far.
+    public int getFileCount() {
+	return fileCount;
+    }
+
+    public int read() throws IOException {
+	byte[] single = new byte[1];
+	return (read(single, 0, 1) == EOF) ? EOF : (single[0] & 0xFF);
+    }
+
+    // Fills the buffer with records and file contents, moving on to the next
+    // file as each one runs out.
+    public int read(byte[] buffer, int offset, int length) throws IOException {
+	int total = 0;
+
+	while (total < length) {
+
+	    // Finish off any record that is part way out.
+	    if (header.hasRemaining()) {
+		int count = Math.min(header.remaining(), length - total);
+		header.get(buffer, offset + total, count);
+		total += count;
+		continue;
+	    }
+
+	    if (remaining > 0) {
+		total += readContents(buffer, offset + total, length - total);
+		continue;
+	    }
+
+	    if (current != null) {
+		current.close();
+		current = null;
+	    }
+
+	    if (ended) {
+		break;
+	    }
+	    nextRecord();
+	}
+
+	return (total == 0 && length > 0) ? EOF : total;
+    }
+
+    public void close() throws IOException {
+	if (current != null) {
+	    current.close();
+	    current = null;
+	}
+    }
+
+    // Copies up to length bytes of the current file. If the file has shrunk
+    // since its size was recorded, the rest is filled with zeros so the stream
+    // still matches the record.
+    private int readContents(byte[] buffer, int offset, int length) throws IOException {
+	int count = (int)Math.min(remaining, length);
+	int bytesRead = current.read(ByteBuffer.wrap(buffer, offset, count));
+	if (bytesRead < 0) {
+	    System.err.format("[warning] %s got shorter while being read\n", currentPath);
+	    Arrays.fill(buffer, offset, offset + count, (byte)0);
+	    bytesRead = count;
+	}
+
+	remaining -= bytesRead;
+	return bytesRead;
+    }
+
+    // Opens the next file that can be read and queues up its record, or the
+    // end record if there are no files left.
+    private void nextRecord() throws IOException {
+	header.clear();
+
+	while (files.hasNext()) {
+	    Path path = files.next();
+	    byte[] name = nameOf(path).getBytes("UTF-8");
+	    if (name.length > MAX_NAME) {
+		System.err.println("[warning] skipping file with a name that is too long: " + path);
+		continue;
+	    }
+
+	    try {
+		current = FileChannel.open(path, StandardOpenOption.READ);
+		currentPath = path;
+		remaining = current.size();
+	    } catch (IOException e) {
+		System.err.println("[warning] skipping file that could not be opened: " + path);
+		continue;
+	    }
+
+	    header.put(TYPE_FILE);
+	    header.putShort((short)name.length);
+	    header.put(name);
+	    header.putLong(remaining);
+	    header.flip();
+	    ++fileCount;
+	    System.out.format("[batch] %s (%d)\n", path, remaining);
+	    return;
+	}
+
+	header.put(TYPE_END);
+	header.flip();
+	ended = true;
+    }
+
+    // Gets the name a file is sent under, always using / between directories.
+    private String nameOf(Path path) {
+	Path name = (base != null) ? base.relativize(path) : path;
+	if (name.isAbsolute() || name.normalize().startsWith("..") || name.toString().isEmpty()) {
+	    name = path.getFileName();
+	}
+	return name.normalize().toString().replace(path.getFileSystem().getSeparator(), "/");
+    }
+
+    // Lists every regular file under a directory, as the directory is walked.
+    public static Iterator<Path> listDirectory(Path directory) throws IOException {
+	return Files.walk(directory).filter(Files::isRegularFile).iterator();
+    }
+
+    // Lists the files named in a list file, one per line, skipping blank lines.
+    public static Iterator<Path> listFiles(Path listFile) throws IOException {
+	return Files.lines(listFile).filter(line -> !line.trim().isEmpty())
+	    .map(line -> Paths.get(line.trim())).iterator();
+    }
+}
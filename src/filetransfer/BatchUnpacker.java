@@ -0,0 +1,199 @@
+package filetransfer;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+// Splits the stream written by a BatchInputStream back out into individual
+// files under a directory, as the data arrives. It is written to like a single
+// file, so the DiskWriter can hand it the same gathering writes, and the
+// records may be split across packets at any point.
+public class BatchUnpacker implements GatheringByteChannel {
+
+    private Path directory;
+    private boolean syncFiles;
+    private ByteBuffer header;
+    private int headerNeeded;
+    private FileChannel current;
+    private Path currentPath;
+    private long remaining;
+    private boolean ended;
+    private boolean open;
+    private int fileCount;
+
+    private static final int RECORD_START = 1 + 2;
+
+    // Creates an unpacker that writes files under the given directory. If
+    // syncFiles is set, each file is synced to disk before it is closed.
+    public BatchUnpacker(Path directory, boolean syncFiles) throws IOException {
+	this.directory = directory.toAbsolutePath().normalize();
+	this.syncFiles = syncFiles;
+	this.header    = ByteBuffer.allocate(RECORD_START + BatchInputStream.MAX_NAME + 8);
+	this.headerNeeded = 1;
+	this.current   = null;
+	this.remaining = 0;
+	this.ended     = false;
+	this.open      = true;
+	this.fileCount = 0;
+
+	Files.createDirectories(this.directory);
+    }
+
+    // Gets the number of files unpacked so far.
+    public int getFileCount() {
+	return fileCount;
+    }
+
+    public int write(ByteBuffer source) throws IOException {
+	int total = source.remaining();
+
+	while (source.hasRemaining()) {
+	    if (remaining > 0) {
+		writeContents(source);
+	    } else if (ended) {
+		throw new IOException("data after the end of the batch");
+	    } else {
+		readHeader(source);
+	    }
+	}
+
+	return total;
+    }
+
+    public long write(ByteBuffer[] sources, int offset, int length) throws IOException {
+	long total = 0;
+	for (int i = offset; i < offset + length; ++i) {
+	    total += write(sources[i]);
+	}
+	return total;
+    }
+
+    public long write(ByteBuffer[] sources) throws IOException {
+	return write(sources, 0, sources.length);
+    }
+
+    // Syncs the file currently being written to disk.
+    public void force() throws IOException {
+	if (current != null) {
+	    current.force(false);
+	}
+    }
+
+    public boolean isOpen() {
+	return open;
+    }
+
+    // Closes the file being written. Complains if the batch was cut short.
+    public void close() throws IOException {
+	open = false;
+	if (current != null) {
+	    current.close();
+	    current = null;
+	}
+	if (!ended) {
+	    throw new IOException("the batch ended part way through " +
+				  (currentPath != null ? currentPath : directory));
+	}
+    }
+
+    // Copies as much of the current file as the buffer holds, closing the file
+    // once it is complete.
+    private void writeContents(ByteBuffer source) throws IOException {
+	ByteBuffer part = source.duplicate();
+	int count = (int)Math.min(remaining, part.remaining());
+	part.limit(part.position() + count);
+
+	while (part.hasRemaining()) {
+	    current.write(part);
+	}
+	source.position(source.position() + count);
+
+	remaining -= count;
+	if (remaining == 0) {
+	    finishFile();
+	}
+    }
+
+    // Gathers the bytes of a record. The first byte says whether a file
+    // follows, the next two say how long its name is, and once those are in
+    // we know how much more of the record there is.
+    private void readHeader(ByteBuffer source) throws IOException {
+	int count = Math.min(headerNeeded - header.position(), source.remaining());
+	ByteBuffer part = source.duplicate();
+	part.limit(part.position() + count);
+	header.put(part);
+	source.position(source.position() + count);
+
+	if (header.position() < headerNeeded) {
+	    return;
+	}
+
+	byte type = header.get(0);
+	if (type == BatchInputStream.TYPE_END) {
+	    ended = true;
+	    System.out.format("[batch] received %d files\n", fileCount);
+	    return;
+	}
+	if (type != BatchInputStream.TYPE_FILE) {
+	    throw new IOException("unknown batch record type " + type);
+	}
+
+	if (headerNeeded == 1) {
+	    headerNeeded = RECORD_START;
+	    return;
+	}
+
+	int nameLength = header.getShort(1) & 0xFFFF;
+	if (headerNeeded == RECORD_START) {
+	    headerNeeded = RECORD_START + nameLength + 8;
+	    return;
+	}
+
+	byte[] name = new byte[nameLength];
+	header.position(RECORD_START);
+	header.get(name);
+	long size = header.getLong();
+
+	startFile(new String(name, StandardCharsets.UTF_8), size);
+	header.clear();
+	headerNeeded = 1;
+    }
+
+    // Creates the file for a record, refusing any name that would land
+    // outside of the directory.
+    private void startFile(String name, long size) throws IOException {
+	Path path = directory.resolve(name).normalize();
+	if (name.isEmpty() || !path.startsWith(directory) || path.equals(directory)) {
+	    throw new IOException("refusing to write outside of " + directory + ": " + name);
+	}
+
+	Path parent = path.getParent();
+	if (parent != null) {
+	    Files.createDirectories(parent);
+	}
+
+	current = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+				   StandardOpenOption.TRUNCATE_EXISTING);
+	currentPath = path;
+	remaining = size;
+	++fileCount;
+
+	if (remaining == 0) {
+	    finishFile();
+	}
+    }
+
+    private void finishFile() throws IOException {
+	if (syncFiles) {
+	    current.force(false);
+	}
+	current.close();
+	current = null;
+	System.out.format("[batch] %s\n", currentPath);
+    }
+}
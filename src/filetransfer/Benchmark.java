@@ -0,0 +1,144 @@
+package filetransfer;
+
+import java.util.ArrayList;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+// Measures how fast packets can be prepared for sending, and checked once they
+// have been received, without touching the disk or the network. Each is run
+// in the clear and with AES-GCM, to show what encrypting a transfer costs. The
+// scan for runs of zeros is timed on its own, on data that has none and on
+// data that is nothing else. Run with "make bench".
+public class Benchmark {
+
+    private static final int CHUNK_COUNT = 64;
+    private static final int ROUNDS	 = 3;
+
+    public static void main(String[] args) throws Exception {
+
+	// Fill the chunks with random data so nothing can be skipped.
+	Random random = new Random(1);
+	FileChunk[] chunks = new FileChunk[CHUNK_COUNT];
+	int seqNo = 1;
+	for (int i = 0; i < CHUNK_COUNT; ++i) {
+	    chunks[i] = new FileChunk();
+	    chunks[i].data = new byte[ReadAheadReader.CHUNK_SIZE];
+	    chunks[i].length = ReadAheadReader.CHUNK_SIZE;
+	    chunks[i].firstSequenceNumber = seqNo;
+	    random.nextBytes(chunks[i].data);
+	    seqNo += PacketPreparer.countPackets(chunks[i]);
+	}
+
+	long totalBytes = (long)CHUNK_COUNT * ReadAheadReader.CHUNK_SIZE;
+	int cores = Runtime.getRuntime().availableProcessors();
+	System.out.format("[bench] %d cores, %d MB per round\n", cores, totalBytes / (1024 * 1024));
+
+	byte[] key = new byte[16];
+	random.nextBytes(key);
+
+	for (int threads = 1; threads <= Math.max(cores, 1); threads *= 2) {
+	    System.out.format("[bench] prepare %d thread(s): %.1f MB/s, aes-gcm %.1f MB/s\n", threads,
+			      prepare(chunks, threads, totalBytes, null), prepare(chunks, threads, totalBytes, key));
+	}
+	System.out.format("[bench] check 1 thread: %.1f MB/s, aes-gcm %.1f MB/s\n",
+			  check(chunks, totalBytes, null), check(chunks, totalBytes, key));
+
+	FileChunk[] holes = new FileChunk[CHUNK_COUNT];
+	for (int i = 0; i < CHUNK_COUNT; ++i) {
+	    holes[i] = new FileChunk();
+	    holes[i].data = new byte[ReadAheadReader.CHUNK_SIZE];
+	    holes[i].length = ReadAheadReader.CHUNK_SIZE;
+	}
+	System.out.format("[bench] zero scan 1 thread: %.1f MB/s, all zeros %.1f MB/s\n",
+			  scan(chunks, totalBytes), scan(holes, totalBytes));
+    }
+
+    // Prepares all of the chunks on the given number of threads, returning the
+    // best throughput seen over a few rounds. If there is a key, every round
+    // seals the packets under a new transfer key derived from it.
+    private static double prepare(FileChunk[] chunks, int threads, long totalBytes, byte[] key)
+	throws Exception {
+	ExecutorService workers = Executors.newFixedThreadPool(threads);
+	double best = 0;
+
+	// Leave room for two chunks per thread, as the sender does, so the slots
+	// are recycled the way they would be while sending.
+	SegmentSlab slab = new SegmentSlab((long)threads * 2 * PacketPreparer.maxPacketsPerChunk()
+					   * SegmentSlab.SLOT_SIZE);
+
+	try {
+	    for (int round = 0; round < ROUNDS; ++round) {
+		PacketCipher cipher = (key != null) ? new PacketCipher(key, PacketCipher.newSalt()) : null;
+		long start = System.nanoTime();
+
+		ArrayList<Future<SentPacket[]>> results = new ArrayList<Future<SentPacket[]>>();
+		for (FileChunk chunk : chunks) {
+		    results.add(workers.submit(() -> PacketPreparer.prepareChunk(chunk, 0, cipher, slab)));
+		}
+		for (Future<SentPacket[]> result : results) {
+		    for (SentPacket packet : result.get()) {
+			slab.release(packet.slot);
+		    }
+		}
+
+		double seconds = (System.nanoTime() - start) / 1e9;
+		best = Math.max(best, totalBytes / seconds / (1024 * 1024));
+	    }
+	} finally {
+	    workers.shutdown();
+	}
+
+	return best;
+    }
+
+    // Looks for runs of zeros in every chunk on one thread, the way the reader
+    // does, returning the best throughput seen over a few rounds.
+    private static double scan(FileChunk[] chunks, long totalBytes) {
+	double best = 0;
+	for (int round = 0; round < ROUNDS; ++round) {
+	    long start = System.nanoTime();
+	    for (FileChunk chunk : chunks) {
+		PacketPreparer.findZeroSegments(chunk);
+	    }
+	    double seconds = (System.nanoTime() - start) / 1e9;
+	    best = Math.max(best, totalBytes / seconds / (1024 * 1024));
+	}
+	return best;
+    }
+
+    // Parses and checks the packets of every chunk on one thread, the way the
+    // server's workers do, returning the best throughput seen over a few rounds.
+    // Only the checking is timed, not preparing the packets beforehand.
+    private static double check(FileChunk[] chunks, long totalBytes, byte[] key) throws Exception {
+	SegmentSlab slab = new SegmentSlab(2L * PacketPreparer.maxPacketsPerChunk() * SegmentSlab.SLOT_SIZE);
+	double best = 0;
+
+	for (int round = 0; round < ROUNDS; ++round) {
+	    PacketCipher cipher = (key != null) ? new PacketCipher(key, PacketCipher.newSalt()) : null;
+	    long elapsed = 0;
+
+	    for (FileChunk chunk : chunks) {
+		SentPacket[] packets = PacketPreparer.prepareChunk(chunk, 0, cipher, slab);
+
+		long start = System.nanoTime();
+		for (SentPacket sent : packets) {
+		    DataPacket packet = new DataPacket(sent.data, sent.data.limit());
+		    if (packet.isCorrupt() || (cipher != null && !packet.open(cipher))) {
+			throw new IllegalStateException("packet " + sent.sequenceNumber + " did not check out");
+		    }
+		}
+		elapsed += System.nanoTime() - start;
+
+		for (SentPacket sent : packets) {
+		    slab.release(sent.slot);
+		}
+	    }
+
+	    best = Math.max(best, totalBytes / (elapsed / 1e9) / (1024 * 1024));
+	}
+
+	return best;
+    }
+}
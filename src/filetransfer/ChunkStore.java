@@ -0,0 +1,177 @@
+package filetransfer;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+// Keeps the chunks of received files in a directory, each in a file named by
+// the hex of its SHA-256 hash, so that later transfers can be assembled from
+// them instead of sending them again. Chunks of every transfer, from every
+// sender, go in the same store.
+//
+// The store is bounded in size. Whenever it grows past its limit, the chunks
+// used least recently are deleted. Using a chunk touches its file, so the
+// order survives a restart. A chunk that a transfer has been promised is
+// pinned until the transfer is done with it, and is never evicted in the
+// meantime.
+//
+// Chunks are written to a temporary file and moved into place, so a chunk
+// file is always whole. The store may be shared by several transfers at once.
+public class ChunkStore {
+
+    private Path directory;
+    private long maxBytes;
+    private long totalBytes;
+    private LinkedHashMap<String, Long> chunks;
+    private HashMap<String, Integer> pins;
+
+    private static final String TEMP_SUFFIX = ".tmp";
+
+    // Opens the store in the given directory, creating it if need be, and
+    // evicts chunks until it holds no more than maxBytes.
+    public ChunkStore(Path directory, long maxBytes) throws IOException {
+	this.directory	= directory;
+	this.maxBytes	= maxBytes;
+	this.totalBytes = 0;
+	this.chunks	= new LinkedHashMap<String, Long>(16, 0.75f, true);
+	this.pins	= new HashMap<String, Integer>();
+
+	Files.createDirectories(directory);
+
+	// Take the chunks already there oldest first, so that they are evicted
+	// in the order they were last used.
+	ArrayList<Path> found = new ArrayList<Path>();
+	try (DirectoryStream<Path> entries = Files.newDirectoryStream(directory)) {
+	    for (Path entry : entries) {
+		if (entry.getFileName().toString().endsWith(TEMP_SUFFIX)) {
+		    Files.deleteIfExists(entry);
+		} else if (Files.isRegularFile(entry)) {
+		    found.add(entry);
+		}
+	    }
+	}
+	HashMap<Path, Long> times = new HashMap<Path, Long>();
+	for (Path entry : found) {
+	    times.put(entry, Files.getLastModifiedTime(entry).toMillis());
+	}
+	found.sort((a, b) -> Long.compare(times.get(a), times.get(b)));
+
+	for (Path entry : found) {
+	    long size = Files.size(entry);
+	    chunks.put(entry.getFileName().toString(), size);
+	    totalBytes += size;
+	}
+
+	synchronized (this) {
+	    evict();
+	}
+	System.out.format("[debug] chunk store holds %d chunks, %d bytes\n", chunks.size(), totalBytes);
+    }
+
+    // Pins the chunk with the given hash if the store has it, so it stays
+    // until unpin() is called, and counts it as used. Returns false if the
+    // store doesn't have it.
+    public synchronized boolean pin(byte[] hash) {
+	String name = toHex(hash);
+	if (chunks.get(name) == null) {
+	    return false;
+	}
+	pins.merge(name, 1, Integer::sum);
+	return true;
+    }
+
+    // Releases a pin taken by pin().
+    public synchronized void unpin(byte[] hash) {
+	String name = toHex(hash);
+	Integer count = pins.get(name);
+	if (count == null) {
+	    return;
+	}
+	if (count > 1) {
+	    pins.put(name, count - 1);
+	} else {
+	    pins.remove(name);
+	}
+	evict();
+    }
+
+    // Reads a chunk that has been pinned, marking its file as just used.
+    public byte[] read(byte[] hash) throws IOException {
+	Path path = directory.resolve(toHex(hash));
+	byte[] data = Files.readAllBytes(path);
+	try {
+	    Files.setLastModifiedTime(path, FileTime.fromMillis(System.currentTimeMillis()));
+	} catch (IOException e) {
+	    // Only the order of eviction after a restart suffers.
+	}
+	return data;
+    }
+
+    // Adds a chunk with the given hash, which the caller has checked, unless
+    // the store already has it. The least recently used chunks are evicted to
+    // make room for it.
+    public void put(byte[] hash, byte[] data, int length) throws IOException {
+	String name = toHex(hash);
+	synchronized (this) {
+	    if (chunks.get(name) != null || length > maxBytes) {
+		return;
+	    }
+	}
+
+	Path temp = Files.createTempFile(directory, name, TEMP_SUFFIX);
+	try {
+	    Files.write(temp, length == data.length ? data : Arrays.copyOf(data, length));
+	    Files.move(temp, directory.resolve(name), StandardCopyOption.ATOMIC_MOVE,
+		       StandardCopyOption.REPLACE_EXISTING);
+	} catch (IOException e) {
+	    Files.deleteIfExists(temp);
+	    throw e;
+	}
+
+	synchronized (this) {
+	    if (chunks.put(name, (long)length) == null) {
+		totalBytes += length;
+	    }
+	    evict();
+	}
+    }
+
+    // Deletes the least recently used chunks that aren't pinned until the
+    // store is back within its limit.
+    private void evict() {
+	Iterator<Map.Entry<String, Long>> oldest = chunks.entrySet().iterator();
+	while (totalBytes > maxBytes && oldest.hasNext()) {
+	    Map.Entry<String, Long> entry = oldest.next();
+	    if (pins.containsKey(entry.getKey())) {
+		continue;
+	    }
+
+	    try {
+		Files.deleteIfExists(directory.resolve(entry.getKey()));
+	    } catch (IOException e) {
+		System.out.println("[debug] could not evict chunk: " + e.getMessage());
+		continue;
+	    }
+	    totalBytes -= entry.getValue();
+	    oldest.remove();
+	}
+    }
+
+    private static String toHex(byte[] hash) {
+	StringBuilder hex = new StringBuilder(hash.length * 2);
+	for (byte b : hash) {
+	    hex.append(Character.forDigit((b >> 4) & 0xF, 16));
+	    hex.append(Character.forDigit(b & 0xF, 16));
+	}
+	return hex.toString();
+    }
+}
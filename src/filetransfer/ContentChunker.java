@@ -0,0 +1,56 @@
+package filetransfer;
+
+import java.util.Random;
+
+// Cuts data into chunks at points picked by the data itself, so that the same
+// run of bytes is cut the same way wherever it turns up in a file. Inserting or
+// removing a few bytes only changes the chunks around the edit, where cutting
+// at fixed offsets would shift every chunk after it.
+//
+// A gear hash is rolled over the data one byte at a time, and a chunk ends
+// where the top bits of the hash are all zero. Each step shifts the hash left
+// by one bit and adds a random value for the byte, so the top 16 bits depend
+// on roughly the last 64 bytes, and a cut comes about every 64 KB past the
+// minimum. Nothing is hashed in the first MIN_SIZE bytes of a chunk, apart from
+// the bytes just before the minimum that the hash needs to warm up.
+//
+// The table of random values is fixed, so every sender cuts the same data the
+// same way, and a receiver can match chunks sent by any of them.
+public class ContentChunker {
+
+    public static final int MIN_SIZE = 16 * 1024;
+    public static final int MAX_SIZE = 256 * 1024;
+
+    private static final long MASK   = 0xFFFFL << 48;
+    private static final int  WINDOW = 64;
+    private static final long[] GEAR = new long[256];
+
+    static {
+	Random random = new Random(0x6765617243444358L);
+	for (int i = 0; i < GEAR.length; ++i) {
+	    GEAR[i] = random.nextLong();
+	}
+    }
+
+    // Finds where the chunk starting at offset ends, given the bytes of data up
+    // to end. Returns the length of the chunk, or -1 if more data is needed to
+    // tell. If the data ends at end, whatever is left once -1 is returned is
+    // the last chunk.
+    public static int findCut(byte[] data, int offset, int end) {
+	int limit = Math.min(end, offset + MAX_SIZE);
+	int start = offset + MIN_SIZE - WINDOW;
+	if (start >= limit) {
+	    return -1;
+	}
+
+	long hash = 0;
+	for (int i = start; i < limit; ++i) {
+	    hash = (hash << 1) + GEAR[data[i] & 0xFF];
+	    if ((hash & MASK) == 0 && i >= offset + MIN_SIZE - 1) {
+		return i + 1 - offset;
+	    }
+	}
+
+	return (limit == offset + MAX_SIZE) ? MAX_SIZE : -1;
+    }
+}
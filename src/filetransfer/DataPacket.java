@@ -1,29 +1,96 @@
 package filetransfer;
 
 import java.nio.ByteBuffer;
-import java.io.File;
 
 // Represents a packet used to transfer information from a sender to a receiver.
+//
+// The data section is kept as a view of whatever buffer the packet was built
+// from or received into, which may be a slot of a SegmentSlab, so that data
+// is not copied on its way between the network and the disk.
+//
+// The init packet may carry file data after the filename. A file small enough
+// to fit is sent as a single packet flagged as both the first and the last.
+// The last packet otherwise carries the end of the file, and is only empty if
+// the file is empty or ends exactly on a chunk boundary.
+//
+// Every packet carries the id of the session it belongs to, so that one socket
+// can carry many transfers at once.
+//
+// A keepalive packet carries no data, and only tells the receiver that the
+// sender is still there while it is waiting on a stream with nothing to send.
+// Its sequence number counts the keepalives sent so far.
+//
+// A hole packet stands for a run of zero bytes in the file. Its data is just
+// the length of the run, and the receiver skips over it rather than writing
+// it, so a sparse file stays sparse.
+//
+// The init packet also says how many paths the sender is using. A transfer
+// sent over more than one path has its packets arrive from several addresses,
+// which all belong to the one session.
+//
+// An init packet flagged as a batch starts a transfer of many files packed
+// into one stream by a BatchInputStream, and its filename names the directory
+// they are unpacked into.
+//
+// An init packet flagged for dedup starts a transfer of one file written by a
+// DedupInputStream, which offers the hashes of the file's chunks before it
+// sends any of them.
+//
+// A packet of an encrypted transfer is sealed with the PacketCipher of its
+// transfer, and flagged as such. Only the header is left in the clear, along
+// with the salt in the init packet, and the tag that follows the data takes
+// the place of the checksum. A sealed packet that has been received only has
+// its header read until it is opened with the cipher of its transfer.
 public class DataPacket {
 
     private boolean isCorrupt;
     private boolean isFirstPacket;
     private boolean isLastPacket;
+    private boolean isClosePacket;
+    private boolean isBatch;
+    private boolean isDedup;
+    private boolean isKeepAlive;
+    private boolean isEncrypted;
+    private boolean isHole;
+    private int holeLength;
     private String filename;
     private int ackPort;
+    private int pathCount;
     private int sequenceNumber;
-    private byte[] data;
+    private int sessionId;
+    private ByteBuffer data;
+    private ByteBuffer payload;
+    private int slot;
+    private long receivedTime;
+    private PacketCipher cipher;
+    private byte[] salt;
+    private ByteBuffer sealed;
 	
-    static public final int HEADER_SIZE = 9;
+    static public final int HEADER_SIZE = 13;
 
     static final int	SEQUENCE_NO_INDEX   = 0;
     static final int	CHECKSUM_INDEX	    = 4;
     static final int	PACKET_LENGTH_INDEX = 6;
     static final int	FLAG_INDEX	    = 8;
+    static final int	SESSION_INDEX	    = 9;
     static final int	DATA_INDEX	    = HEADER_SIZE;
 
     static final byte	FIRST_PACKET_FLAG = 0x01;
     static final byte	LAST_PACKET_FLAG  = 0x02;
+    static final byte	CLOSE_PACKET_FLAG = 0x04;
+    static final byte	BATCH_PACKET_FLAG = 0x08;
+    static final byte	ENCRYPTED_PACKET_FLAG = 0x10;
+    static final byte	KEEPALIVE_PACKET_FLAG = 0x20;
+    static final byte	HOLE_PACKET_FLAG = 0x40;
+    static final byte	DEDUP_PACKET_FLAG = (byte)0x80;
+
+    // The data section of a hole packet is the length of the hole.
+    static public final int HOLE_SIZE = 4;
+
+    // The path count, the ACK port and the length of the filename come before
+    // the filename in the data section of the init packet.
+    static public final int INIT_HEADER_SIZE = 6;
+    static public final int MAX_PATHS = 0x10000;
 
 
 
@@ -32,111 +99,241 @@ public class DataPacket {
 	this.isCorrupt	    = false;
 	this.isFirstPacket  = false;
 	this.isLastPacket   = false;
+	this.isClosePacket  = false;
+	this.isBatch	    = false;
+	this.isDedup	    = false;
+	this.isKeepAlive    = false;
+	this.isEncrypted    = false;
+	this.isHole	    = false;
+	this.holeLength	    = 0;
 	this.data	    = null;
+	this.payload	    = null;
 	this.filename	    = null;
 	this.sequenceNumber = -1;
+	this.sessionId	    = 0;
 	this.ackPort	    = -1;
+	this.pathCount	    = 1;
+	this.slot	    = -1;
+	this.receivedTime   = 0;
+	this.cipher	    = null;
+	this.salt	    = null;
+	this.sealed	    = null;
     }
 
     // Construct a new data packet from a serialized byte stream.
     public DataPacket(byte[] data) {
+	this(ByteBuffer.wrap(data), data.length);
+    }
+
+    // Construct a new data packet from the first length bytes of a buffer,
+    // starting at index 0. The rest of the buffer is ignored, so receive buffers
+    // can be reused without clearing them first. The packet's data refers back
+    // to the buffer rather than holding a copy.
+    public DataPacket(ByteBuffer datagram, int length) {
 
 	this();
 
 	// Verify that the packet has a header and that the checksum
-	// is valid to detect for corrupted packets.
-	ByteBuffer buffer = ByteBuffer.wrap(data);
-	if (buffer.capacity() < HEADER_SIZE) {
+	// is valid to detect for corrupted packets. A sealed packet is
+	// checked by its tag when it is opened instead.
+	ByteBuffer buffer = datagram.duplicate();
+	buffer.clear();
+	if (length < HEADER_SIZE || length > buffer.capacity()) {
 	    isCorrupt = true;
 	    return;
 	}
 
-	if (!isChecksumValid(buffer.array())) {
+	byte flags = buffer.get(FLAG_INDEX);
+	if ((flags & ENCRYPTED_PACKET_FLAG) > 0) this.isEncrypted = true;
+
+	if (!isEncrypted && !isChecksumValid(buffer, length)) {
 	    isCorrupt = true;
 	    return;
 	}
 
 	// Read the header information from the first couple of bytes.
-	byte flags = buffer.get(FLAG_INDEX);
 	short packetLength = buffer.getShort(PACKET_LENGTH_INDEX);
 	this.sequenceNumber = buffer.getInt(SEQUENCE_NO_INDEX);
+	this.sessionId = buffer.getInt(SESSION_INDEX);
 
 	if ((flags & FIRST_PACKET_FLAG) > 0) this.isFirstPacket = true;
 	if ((flags & LAST_PACKET_FLAG) > 0) this.isLastPacket = true;
+	if ((flags & CLOSE_PACKET_FLAG) > 0) this.isClosePacket = true;
+	if ((flags & BATCH_PACKET_FLAG) > 0) this.isBatch = true;
+	if ((flags & DEDUP_PACKET_FLAG) != 0) this.isDedup = true;
+	if ((flags & KEEPALIVE_PACKET_FLAG) > 0) this.isKeepAlive = true;
+	if ((flags & HOLE_PACKET_FLAG) > 0) this.isHole = true;
 
 
-	// Verify that the packet is as long as it says it is.
-	if (buffer.capacity() < packetLength) {
+	// Verify that the packet is as long as it says it is. Anything past the
+	// packet length is padding from the receive buffer and is ignored.
+	if (packetLength < HEADER_SIZE || length < packetLength) {
 	    this.isCorrupt = true;
 	    return;
 	}
+	buffer.limit(packetLength);
 
-	// Copy the data into the packets byte buffer.
-	// If this is the first packet, then parse the initialization data. 
-	// Otherwise, just copy everything into the data section.
-	this.data = new byte[packetLength - HEADER_SIZE];
-	buffer.position(DATA_INDEX);
+	// Leave the data of a sealed packet until it is opened, but take the
+	// salt of the transfer's key out of the init packet.
+	if (isEncrypted) {
+	    int sealedIndex = getSealedIndex();
+	    if (packetLength < sealedIndex + PacketCipher.TAG_SIZE) {
+		this.isCorrupt = true;
+		return;
+	    }
+	    if (this.isFirstPacket) {
+		this.salt = new byte[PacketCipher.SALT_SIZE];
+		buffer.position(DATA_INDEX);
+		buffer.get(this.salt);
+	    }
+	    this.sealed = buffer;
+	    return;
+	}
+
+	readData(buffer, DATA_INDEX);
+    }
+
+    // Decrypts a sealed packet that has been received, in place, and reads
+    // its data. Returns false, and marks the packet as corrupt, if it was not
+    // sealed by the given cipher or has been changed on the way.
+    public boolean open(PacketCipher cipher) {
+	if (sealed == null) {
+	    return !isCorrupt;
+	}
+
+	ByteBuffer buffer = sealed;
+	sealed = null;
+	int sealedIndex = getSealedIndex();
+	if (!cipher.open(buffer, sealedIndex, sequenceNumber, buffer.get(FLAG_INDEX))) {
+	    this.isCorrupt = true;
+	    return false;
+	}
+
+	readData(buffer, sealedIndex);
+	return !isCorrupt;
+    }
+
+    // Keeps a view of the data section of a packet, which starts at the given
+    // index of the buffer and ends at its limit. If this is the first packet,
+    // then parse the initialization data.
+    private void readData(ByteBuffer buffer, int dataIndex) {
+	buffer.position(dataIndex);
+	this.data = buffer.slice();
+	this.payload = this.data;
+
+	// A hole has no file data, only its length, and is never the init packet.
+	if (this.isHole) {
+	    if (this.isFirstPacket || buffer.remaining() != HOLE_SIZE) {
+		this.isCorrupt = true;
+		return;
+	    }
+	    this.holeLength = buffer.getInt();
+	    if (this.holeLength <= 0) {
+		this.isCorrupt = true;
+	    }
+	    this.payload = buffer.slice();
+	    return;
+	}
 
 	if (this.isFirstPacket) {
 
 	    // Verify there is enough space in the data section for the
-	    // init info. There should be 4 bytes containing the ACK port
-	    // and then the remaining bytes should be for the filename.
-	    if (buffer.remaining() < 4) {
+	    // init info. There should be 2 bytes with the number of paths
+	    // past the first, 2 bytes containing the ACK port, 2 bytes with
+	    // the length of the filename and then the filename. Anything after
+	    // that is file data.
+	    if (buffer.remaining() < INIT_HEADER_SIZE) {
 		this.isCorrupt = true;
 		return;
 	    }
 
-	    this.ackPort = buffer.getInt();
+	    this.pathCount = (buffer.getShort() & 0xFFFF) + 1;
+	    this.ackPort = buffer.getShort() & 0xFFFF;
+
+	    int filenameSize = buffer.getShort() & 0xFFFF;
+	    if (buffer.remaining() < filenameSize) {
+		this.isCorrupt = true;
+		return;
+	    }
 
-	    int filenameSize = buffer.remaining();
 	    byte[] filenameBytes = new byte[filenameSize];
 	    buffer.get(filenameBytes);
 	    this.filename = new String(filenameBytes);
-
-	} else {
-
-	    // Contains file data so just copy everything.
-	    buffer.get(this.data);
+	    this.payload = buffer.slice();
 	}
     }
 
-    // Creates a new init packet for the given file.
-    public DataPacket(File file, int ackPort) {
+    // Creates a new init packet for a transfer with the given name that also
+    // carries the first length bytes of data. If there is any data, it is the
+    // whole file, so the packet is the last packet too.
+    public DataPacket(String name, int ackPort, byte[] fileData, int length) {
 
 	this();
 
-	// Since this is the initialization packet, we know it is the first packet
-	// and will not be the last packet.
+	// Since this is the initialization packet, we know it is the first packet.
+	// It is only the last packet if it carries the whole file.
 
 	this.isFirstPacket = true;
-	this.filename	   = String.format("%s.recv", file.getName());
+	this.isLastPacket  = (length > 0);
+	this.filename	   = name;
 	this.sequenceNumber = 0;
 
-	// The data section should consist of 4 bytes for the ACK port and
-	// then the rest of the bytes should be for the filename.
+	// The data section should consist of 2 bytes for the number of paths
+	// past the first, 2 bytes for the ACK port, 2 bytes for the length of
+	// the filename, the filename and then the file data.
 
 	byte[] filenameBytes = filename.getBytes();
-	int dataLength = filenameBytes.length + 4;
+	int dataLength = INIT_HEADER_SIZE + filenameBytes.length + length;
 
 	ByteBuffer buffer = ByteBuffer.allocate(dataLength);
-	buffer.putInt(ackPort);
+	buffer.putShort((short)0);
+	buffer.putShort((short)ackPort);
+	buffer.putShort((short)filenameBytes.length);
 	buffer.put(filenameBytes);
+	int payloadStart = buffer.position();
+	if (length > 0) {
+	    buffer.put(fileData, 0, length);
+	}
 
-	this.data = buffer.array();
+	buffer.flip();
+	this.data = buffer;
+	buffer.position(payloadStart);
+	this.payload = buffer.slice();
+	buffer.position(0);
+    }
+
+    // Creates a close packet, which tells the receiver that the sender has
+    // heard the final ACK for a transfer ending with the given sequence number.
+    public DataPacket(int lastSequenceNumber) {
+
+	this();
+
+	this.isClosePacket  = true;
+	this.sequenceNumber = lastSequenceNumber;
+	this.data	    = ByteBuffer.allocate(0);
+	this.payload	    = this.data;
     }
 
     // Creates a packet with file data.
     public DataPacket(byte[] data, int dataLength, boolean isLastPacket) {
+	this(data, 0, dataLength, isLastPacket);
+    }
+
+    // Creates a packet with file data taken from a section of a larger buffer.
+    // The packet refers to the section of the buffer rather than copying it,
+    // so the buffer must not change until the packet has been serialized.
+    public DataPacket(byte[] data, int offset, int dataLength, boolean isLastPacket) {
 	
 	this();
 
 	this.isLastPacket = isLastPacket;
-	this.data = new byte[dataLength];
 
 	if (data != null) {
-	    System.arraycopy(data, 0, this.data, 0, dataLength);
+	    this.data = ByteBuffer.wrap(data, offset, dataLength).slice();
+	} else {
+	    this.data = ByteBuffer.allocate(dataLength);
 	}
+	this.payload = this.data;
     }
 
 
@@ -150,14 +347,90 @@ public class DataPacket {
 	return isFirstPacket;
     }
 
+    // Indicates whether this packet closes a finished transfer.
+    public boolean isClosePacket() {
+	return isClosePacket;
+    }
+
+    // Indicates whether this init packet starts a batch of files.
+    public boolean isBatch() {
+	return isBatch;
+    }
+
+    // Marks this init packet as starting a batch of files.
+    public void setBatch(boolean isBatch) {
+	this.isBatch = isBatch;
+    }
+
+    // Indicates whether this init packet starts a file that offers its chunk
+    // hashes first.
+    public boolean isDedup() {
+	return isDedup;
+    }
+
+    // Marks this init packet as starting a file that offers its chunk hashes.
+    public void setDedup(boolean isDedup) {
+	this.isDedup = isDedup;
+    }
+
+    // Indicates whether this packet only keeps the transfer alive.
+    public boolean isKeepAlivePacket() {
+	return isKeepAlive;
+    }
+
+    // Marks this packet as a keepalive.
+    public void setKeepAlive(boolean isKeepAlive) {
+	this.isKeepAlive = isKeepAlive;
+    }
+
+    // Indicates whether this packet stands for a run of zero bytes.
+    public boolean isHole() {
+	return isHole;
+    }
+
+    // Gets the number of zero bytes a hole packet stands for.
+    public int getHoleLength() {
+	return holeLength;
+    }
+
+    // Makes this packet stand for a run of length zero bytes, which is sent as
+    // just its length in place of any data.
+    public void setHole(int length) {
+	this.isHole = true;
+	this.holeLength = length;
+	this.data = ByteBuffer.allocate(HOLE_SIZE);
+	this.data.putInt(0, length);
+	this.payload = ByteBuffer.allocate(0);
+    }
+
+    // Indicates whether the packet is sealed by the cipher of an encrypted
+    // transfer.
+    public boolean isEncrypted() {
+	return isEncrypted;
+    }
+
+    // Seals the packet with the cipher of an encrypted transfer when it is
+    // serialized.
+    public void setCipher(PacketCipher cipher) {
+	this.cipher = cipher;
+	this.isEncrypted = (cipher != null);
+    }
+
+    // Gets the salt the key of an encrypted transfer was derived from. Only
+    // valid for init packets.
+    public byte[] getSalt() {
+	return salt;
+    }
+
     // Indicates whether a packet was properly de-serialized.
     public boolean isCorrupt() {
 	return isCorrupt;
     }
 
-    // Gets the name of the file being transferred. Only valid for init packets. 
-    public String getFilename() {
-	return filename + ".xml";
+    // Gets the name the sender gave the transfer, which is the name of the
+    // file or, for a batch, of the directory. Only valid for init packets.
+    public String getName() {
+	return filename;
     }
 
     // Gets the port that the sender is listening for ACKs on. Only valid for init packets.
@@ -165,6 +438,18 @@ public class DataPacket {
 	return ackPort;
     }
 
+    // Gets the number of paths the sender is using. Only valid for init packets.
+    public int getPathCount() {
+	return pathCount;
+    }
+
+    // Sets the number of paths the sender is using. Only valid for init
+    // packets that haven't been sealed yet.
+    public void setPathCount(int count) {
+	this.pathCount = count;
+	data.putShort(0, (short)(count - 1));
+    }
+
     // Gets the sequence number for the packet.
     public int getSequenceNumber() {
 	return sequenceNumber;
@@ -175,50 +460,142 @@ public class DataPacket {
 	sequenceNumber = value;
     }
 
-    // Gets the data section of the packet.
+    // Gets the id of the session the packet belongs to.
+    public int getSessionId() {
+	return sessionId;
+    }
+
+    // Assigns the packet to a session.
+    public void setSessionId(int value) {
+	sessionId = value;
+    }
+
+    // Gets a copy of the file data in the packet.
     public byte[] getData() {
-	return data;
+	byte[] copy = new byte[payload.remaining()];
+	payload.duplicate().get(copy);
+	return copy;
+    }
+
+    // Gets a view of the file data in the packet, without copying it.
+    public ByteBuffer getPayload() {
+	return payload.duplicate();
+    }
+
+    // Gets the length of the file data in the packet.
+    public int getDataLength() {
+	return payload.remaining();
+    }
+
+    // Gets the slab slot holding the packet, or -1 if it isn't in a slab.
+    public int getSlot() {
+	return slot;
+    }
+
+    // Records the slab slot that the packet was received into.
+    public void setSlot(int value) {
+	slot = value;
+    }
+
+    // Gets the time, from System.nanoTime(), that the packet came off the socket.
+    public long getReceivedTime() {
+	return receivedTime;
+    }
+
+    // Records the time that the packet came off the socket.
+    public void setReceivedTime(long value) {
+	receivedTime = value;
+    }
+
+    // Gets the size of the packet once it has been serialized.
+    public int getSerializedSize() {
+	int size = data.remaining() + HEADER_SIZE;
+	if (isEncrypted) {
+	    size = data.remaining() + getSealedIndex() + PacketCipher.TAG_SIZE;
+	}
+	return size;
+    }
+
+    // Gets the index the sealed section of an encrypted packet starts at,
+    // which is after the salt in the init packet.
+    private int getSealedIndex() {
+	return DATA_INDEX + (isFirstPacket ? PacketCipher.SALT_SIZE : 0);
     }
 
     // Converts a packet object into an array of bytes for transmitting
     // over the network.
     public byte[] serialize() {
+	ByteBuffer buffer = ByteBuffer.allocate(getSerializedSize());
+	serialize(buffer);
+	return buffer.array();
+    }
+
+    // Serializes the packet into the start of the given buffer, which may be a
+    // slab slot. The buffer's limit is set to the end of the packet. Returns the
+    // size of the packet.
+    public int serialize(ByteBuffer buffer) {
 
-	int packetSize = data.length + HEADER_SIZE;
-	ByteBuffer buffer = ByteBuffer.allocate(packetSize);
+	int packetSize = getSerializedSize();
+	buffer.clear();
+	buffer.limit(packetSize);
 
 	byte flags = 0;
 	if (isFirstPacket) flags |= FIRST_PACKET_FLAG;
 	if (isLastPacket) flags |= LAST_PACKET_FLAG;
+	if (isClosePacket) flags |= CLOSE_PACKET_FLAG;
+	if (isBatch) flags |= BATCH_PACKET_FLAG;
+	if (isDedup) flags |= DEDUP_PACKET_FLAG;
+	if (isKeepAlive) flags |= KEEPALIVE_PACKET_FLAG;
+	if (isHole) flags |= HOLE_PACKET_FLAG;
+	if (isEncrypted) flags |= ENCRYPTED_PACKET_FLAG;
 
 	// Fill in the packet header info in the first couple of bytes.
 	buffer.putInt(SEQUENCE_NO_INDEX, sequenceNumber);
 	buffer.putShort(CHECKSUM_INDEX, (short)0);
 	buffer.putShort(PACKET_LENGTH_INDEX, (short)(packetSize));
 	buffer.put(FLAG_INDEX, flags); 
+	buffer.putInt(SESSION_INDEX, sessionId);
 
-	// Set the buffer position to the start of the data section and
-	// copy in the packet data.
+	// Set the buffer position to the start of the data section. The data
+	// of an encrypted packet is sealed on its way into the buffer, after the
+	// salt in the init packet, and the tag stands in for the checksum.
 	buffer.position(DATA_INDEX);
-	buffer.put(data);
+	if (isEncrypted) {
+	    if (isFirstPacket) {
+		buffer.put(cipher.getSalt());
+	    }
+	    cipher.seal(buffer, data.duplicate(), sequenceNumber, flags);
+	    buffer.position(0);
+	    return packetSize;
+	}
+
+	// Copy in the packet data.
+	buffer.put(data.duplicate());
 
 	// Calculate the checksum (with the checksum field set to 0) and then
 	// copy it into the header.
-	short checksum = (short)calculateChecksum(buffer.array());
+	short checksum = (short)calculateChecksum(buffer, packetSize);
 	buffer.putShort(CHECKSUM_INDEX, checksum);
 
-	return buffer.array();
+	buffer.position(0);
+	return packetSize;
     }
 
 
     // Verifies that the checksum of the given buffer is correct.
-    private static boolean isChecksumValid(byte[] buffer) {
-	return (calculateChecksum(buffer) == 0);
+    private static boolean isChecksumValid(ByteBuffer buffer, int length) {
+	return (calculateChecksum(buffer, length) == 0);
     }
 
 
-    // Computes the checksum of the given byte array.
-    private static long calculateChecksum(byte[] buffer) {
+    // Computes the checksum of the first length bytes of the given byte array.
+    static long calculateChecksum(byte[] buffer, int length) {
+	return calculateChecksum(ByteBuffer.wrap(buffer), length);
+    }
+
+    // Computes the checksum of the first length bytes of the given buffer,
+    // starting from index 0 regardless of its position.
+    static long calculateChecksum(ByteBuffer buffer, int length) {
 
 	// Note: code taken from lecture slides as well as the info at:
 	// http://stackoverflow.com/questions/4113890/
@@ -231,7 +608,6 @@ public class DataPacket {
 	long sum = 0;
 	long data;
 
-	int length = buffer.length;
 	int i = 0;
 
 	// Read the values of the byte array in pairs to form a 16-bit word by shifting
@@ -240,7 +616,7 @@ public class DataPacket {
 	// one to the total.
 	while (length > 1) {
 
-	    data = (((buffer[i] << 8) & 0xFF00) | ((buffer[i + 1]) & 0xFF));
+	    data = buffer.getShort(i) & 0xFFFF;
 	    sum += data;
 
 	    if ((sum & 0xFFFF0000) > 0) {
@@ -256,7 +632,7 @@ public class DataPacket {
 	// left so it occupies the first byte segment of a 16-bit word.
 	if (length > 0) {
 	    
-	    sum += (buffer[i] << 8 & 0xFF00);
+	    sum += (buffer.get(i) << 8 & 0xFF00);
 
 	    if ((sum & 0xFFFF0000) > 0) {
 	    	sum = sum & 0xFFFF;
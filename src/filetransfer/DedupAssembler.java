@@ -0,0 +1,338 @@
+package filetransfer;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.GatheringByteChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.function.Consumer;
+
+// Reads back the stream written by a DedupInputStream and assembles the file
+// from it, in order, into another channel. It takes the place of that channel
+// as the one the DiskWriter writes to.
+//
+// Once the sender's offer is in, the chunks the store already has are pinned
+// and the rest are handed to the want listener as ranges of chunk indices, to
+// be sent back to the sender. At most AckPacket.MAX_RANGES ranges are asked
+// for, so when there are more, the smallest gaps between them are asked for
+// too. Whatever the sender then says it is sending is taken from the stream,
+// checked against its hash and added to the store, and everything else is
+// copied out of the store.
+//
+// Without a store, every chunk is asked for.
+public class DedupAssembler implements GatheringByteChannel {
+
+    private GatheringByteChannel output;
+    private ChunkStore store;
+    private Consumer<int[]> wantListener;
+    private MessageDigest digest;
+
+    private int stage;
+    private ByteBuffer header;
+    private int chunkCount;
+    private byte[] offer;
+    private BitSet pinned;
+    private BitSet sent;
+    private int next;
+    private byte[] chunk;
+    private int chunkFilled;
+    private boolean ended;
+    private boolean open;
+    private volatile long bytesAssembled;
+
+    // What the stream is giving us next.
+    private static final int OFFER_COUNT = 0;
+    private static final int OFFER	 = 1;
+    private static final int RANGE_COUNT = 2;
+    private static final int RANGES	 = 3;
+    private static final int CHUNKS	 = 4;
+
+    // Creates an assembler writing to the output, using and filling the store
+    // if there is one. The want listener hears which chunks to ask for.
+    public DedupAssembler(GatheringByteChannel output, ChunkStore store, Consumer<int[]> wantListener)
+	throws IOException {
+	this.output	  = output;
+	this.store	  = store;
+	this.wantListener = wantListener;
+	this.stage	  = OFFER_COUNT;
+	this.header	  = ByteBuffer.allocate(4);
+	this.chunkCount	  = -1;
+	this.offer	  = null;
+	this.pinned	  = new BitSet();
+	this.sent	  = null;
+	this.next	  = 0;
+	this.chunk	  = null;
+	this.chunkFilled  = 0;
+	this.ended	  = false;
+	this.open	  = true;
+	this.bytesAssembled = 0;
+
+	try {
+	    this.digest = MessageDigest.getInstance("SHA-256");
+	} catch (NoSuchAlgorithmException e) {
+	    throw new IOException("SHA-256 is not available", e);
+	}
+    }
+
+    public int write(ByteBuffer source) throws IOException {
+	int total = source.remaining();
+
+	while (source.hasRemaining()) {
+	    if (ended) {
+		throw new IOException("data after the end of the file");
+	    } else if (stage == CHUNKS) {
+		writeChunk(source);
+	    } else {
+		readHeader(source);
+	    }
+	}
+
+	return total;
+    }
+
+    public long write(ByteBuffer[] sources, int offset, int length) throws IOException {
+	long total = 0;
+	for (int i = offset; i < offset + length; ++i) {
+	    total += write(sources[i]);
+	}
+	return total;
+    }
+
+    public long write(ByteBuffer[] sources) throws IOException {
+	return write(sources, 0, sources.length);
+    }
+
+    // Gets the number of bytes of the file written out so far.
+    public long getBytesAssembled() {
+	return bytesAssembled;
+    }
+
+    // Syncs what has been assembled so far to disk, if it is going to a file.
+    public void force() throws IOException {
+	if (output instanceof FileChannel) {
+	    ((FileChannel)output).force(false);
+	}
+    }
+
+    public boolean isOpen() {
+	return open;
+    }
+
+    // Closes the output and lets go of any chunks still pinned. Complains if
+    // the file was cut short.
+    public void close() throws IOException {
+	open = false;
+	if (store != null && offer != null) {
+	    for (int i = pinned.nextSetBit(0); i >= 0; i = pinned.nextSetBit(i + 1)) {
+		store.unpin(hashOf(i));
+	    }
+	    pinned.clear();
+	}
+	output.close();
+	if (!ended) {
+	    throw new IOException("the file ended part way through");
+	}
+    }
+
+    // Gathers the offer, then the ranges of chunks being sent. Each part is
+    // read into the header buffer, and a part may be empty.
+    private void readHeader(ByteBuffer source) throws IOException {
+	int count = Math.min(header.remaining(), source.remaining());
+	ByteBuffer part = source.duplicate();
+	part.limit(part.position() + count);
+	header.put(part);
+	source.position(source.position() + count);
+
+	while (!header.hasRemaining() && stage != CHUNKS) {
+	    finishPart();
+	}
+    }
+
+    // Acts on a part of the header once it is all in, and sets up the next.
+    private void finishPart() throws IOException {
+	switch (stage) {
+	case OFFER_COUNT:
+	    chunkCount = header.getInt(0);
+	    if (chunkCount < 0 || chunkCount > DedupInputStream.MAX_CHUNKS) {
+		throw new IOException("bad chunk count " + chunkCount);
+	    }
+	    header = ByteBuffer.allocate(chunkCount * DedupInputStream.RECORD_SIZE);
+	    stage = OFFER;
+	    break;
+
+	case OFFER:
+	    offer = header.array();
+	    for (int i = 0; i < chunkCount; ++i) {
+		int length = lengthOf(i);
+		if (length <= 0 || length > ContentChunker.MAX_SIZE) {
+		    throw new IOException("bad chunk length " + length);
+		}
+	    }
+	    wantListener.accept(findWanted());
+	    header = ByteBuffer.allocate(4);
+	    stage = RANGE_COUNT;
+	    break;
+
+	case RANGE_COUNT:
+	    int rangeCount = header.getInt(0);
+	    if (rangeCount < 0 || rangeCount > chunkCount) {
+		throw new IOException("bad range count " + rangeCount);
+	    }
+	    header = ByteBuffer.allocate(rangeCount * DedupInputStream.RANGE_SIZE);
+	    stage = RANGES;
+	    break;
+
+	case RANGES:
+	    sent = new BitSet(chunkCount);
+	    header.flip();
+	    while (header.hasRemaining()) {
+		int first = header.getInt();
+		int last = header.getInt();
+		if (first < 0 || last < first || last >= chunkCount) {
+		    throw new IOException("bad range " + first + "-" + last);
+		}
+		sent.set(first, last + 1);
+	    }
+	    stage = CHUNKS;
+	    copyStoredChunks();
+	    break;
+	}
+    }
+
+    // Takes the bytes of the chunk being sent from the stream. Once it is all
+    // here, it is checked, added to the store and written out, along with any
+    // stored chunks that follow it.
+    private void writeChunk(ByteBuffer source) throws IOException {
+	int length = lengthOf(next);
+	if (chunk == null || chunk.length < length) {
+	    chunk = new byte[ContentChunker.MAX_SIZE];
+	}
+
+	int count = Math.min(length - chunkFilled, source.remaining());
+	source.get(chunk, chunkFilled, count);
+	chunkFilled += count;
+	if (chunkFilled < length) {
+	    return;
+	}
+
+	digest.update(chunk, 0, length);
+	byte[] hash = hashOf(next);
+	if (!MessageDigest.isEqual(digest.digest(), hash)) {
+	    throw new IOException("chunk " + next + " does not match its hash");
+	}
+	if (store != null) {
+	    store.put(hash, chunk, length);
+	}
+
+	writeOut(ByteBuffer.wrap(chunk, 0, length));
+	chunkFilled = 0;
+	++next;
+	copyStoredChunks();
+    }
+
+    // Writes out every chunk from the next one up to the next chunk being
+    // sent, or the end of the file, from the store.
+    private void copyStoredChunks() throws IOException {
+	while (next < chunkCount && !sent.get(next)) {
+	    if (!pinned.get(next)) {
+		throw new IOException("chunk " + next + " was neither sent nor stored");
+	    }
+
+	    byte[] hash = hashOf(next);
+	    byte[] data = store.read(hash);
+	    if (data.length != lengthOf(next)) {
+		throw new IOException("stored chunk " + next + " is the wrong size");
+	    }
+	    writeOut(ByteBuffer.wrap(data));
+	    store.unpin(hash);
+	    pinned.clear(next);
+	    ++next;
+	}
+
+	if (next == chunkCount) {
+	    ended = true;
+	}
+    }
+
+    private void writeOut(ByteBuffer data) throws IOException {
+	bytesAssembled += data.remaining();
+	while (data.hasRemaining()) {
+	    output.write(data);
+	}
+    }
+
+    // Pins every chunk of the offer that the store has, and lists the ranges
+    // of the rest as pairs of first and last index.
+    private int[] findWanted() {
+	BitSet wanted = new BitSet(chunkCount);
+	for (int i = 0; i < chunkCount; ++i) {
+	    if (store != null && store.pin(hashOf(i))) {
+		pinned.set(i);
+	    } else {
+		wanted.set(i);
+	    }
+	}
+	System.out.format("[debug] offered %d chunks, %d already stored\n", chunkCount,
+			  chunkCount - wanted.cardinality());
+
+	ArrayList<int[]> ranges = new ArrayList<int[]>();
+	int first = wanted.nextSetBit(0);
+	while (first >= 0) {
+	    int end = wanted.nextClearBit(first);
+	    ranges.add(new int[] { first, end - 1 });
+	    first = wanted.nextSetBit(end);
+	}
+
+	// Too many ranges to ask for, so fill in the smallest gaps between them.
+	// The gaps left open are the largest MAX_RANGES - 1.
+	if (ranges.size() > AckPacket.MAX_RANGES) {
+	    Integer[] gaps = new Integer[ranges.size() - 1];
+	    for (int i = 0; i < gaps.length; ++i) {
+		gaps[i] = i;
+	    }
+	    Arrays.sort(gaps, (a, b) -> Integer.compare(gapAfter(ranges, b), gapAfter(ranges, a)));
+	    BitSet keep = new BitSet();
+	    for (int i = 0; i < AckPacket.MAX_RANGES - 1; ++i) {
+		keep.set(gaps[i]);
+	    }
+
+	    ArrayList<int[]> merged = new ArrayList<int[]>();
+	    int[] current = ranges.get(0);
+	    for (int i = 1; i < ranges.size(); ++i) {
+		if (keep.get(i - 1)) {
+		    merged.add(current);
+		    current = ranges.get(i);
+		} else {
+		    current = new int[] { current[0], ranges.get(i)[1] };
+		}
+	    }
+	    merged.add(current);
+	    ranges.clear();
+	    ranges.addAll(merged);
+	}
+
+	int[] flat = new int[ranges.size() * 2];
+	for (int i = 0; i < ranges.size(); ++i) {
+	    flat[2 * i] = ranges.get(i)[0];
+	    flat[2 * i + 1] = ranges.get(i)[1];
+	}
+	return flat;
+    }
+
+    private static int gapAfter(ArrayList<int[]> ranges, int i) {
+	return ranges.get(i + 1)[0] - ranges.get(i)[1];
+    }
+
+    private int lengthOf(int index) {
+	return ByteBuffer.wrap(offer).getInt(index * DedupInputStream.RECORD_SIZE);
+    }
+
+    private byte[] hashOf(int index) {
+	int start = index * DedupInputStream.RECORD_SIZE + 4;
+	return Arrays.copyOfRange(offer, start, start + DedupInputStream.HASH_SIZE);
+    }
+}
@@ -0,0 +1,271 @@
+package filetransfer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.BitSet;
+
+// Turns a file into a stream that first offers the receiver the hashes of its
+// chunks, and then carries only the chunks the receiver asked for. The receiver
+// assembles the file from those and the chunks it already holds, and a
+// DedupAssembler reads the stream back on the other side.
+//
+// The file is cut into chunks by a ContentChunker, and each chunk is named by
+// its SHA-256 hash. The stream starts with the list of chunks:
+//
+// +-----------+----------------------+-----+
+// |   Count   |  Length  |  SHA-256  | ... |
+// |  4 bytes  |  4 bytes |  32 bytes |     |
+// +-----------+----------------------+-----+
+//
+// Reading stops there until setWanted() gives the chunks the receivers want,
+// which the stream lists next as ranges of chunk indices, and then carries
+// those chunks back to back, in order:
+//
+// +-----------+--------------------+-----+----------------------+
+// |   Count   |  First  |   Last   | ... |  Data of the chunks  |
+// |  4 bytes  | 4 bytes |  4 bytes |     |  in the ranges       |
+// +-----------+--------------------+-----+----------------------+
+//
+// The whole file is read once up front to hash it, and the chunks that are
+// wanted are read from it again as they are sent, so it must not change in
+// the meantime; the receiver checks every chunk against its hash.
+public class DedupInputStream extends InputStream {
+
+    private FileChannel file;
+    private long size;
+    private long[] offsets;
+    private int chunkCount;
+    private ByteBuffer header;
+    private boolean answered;
+    private BitSet wanted;
+    private int[] ranges;
+    private int range;
+    private long position;
+    private long rangeEnd;
+    private boolean closed;
+
+    public static final int HASH_SIZE	= 32;
+    public static final int RECORD_SIZE = 4 + HASH_SIZE;
+    public static final int RANGE_SIZE	= 8;
+    public static final int MAX_CHUNKS	= 1 << 22;
+
+    private static final int READ_SIZE = 4 * ContentChunker.MAX_SIZE;
+
+    // Opens the file to be offered. Nothing is read until the stream is.
+    public DedupInputStream(Path path) throws IOException {
+	this.file	= FileChannel.open(path, StandardOpenOption.READ);
+	this.size	= 0;
+	this.offsets	= null;
+	this.chunkCount = 0;
+	this.header	= null;
+	this.answered	= false;
+	this.wanted	= null;
+	this.ranges	= null;
+	this.range	= 0;
+	this.position	= 0;
+	this.rangeEnd	= 0;
+	this.closed	= false;
+    }
+
+    // Gets the size of the file, once the stream has started to be read.
+    public long getSize() {
+	return size;
+    }
+
+    // Gives the chunks the receivers want, by index, which lets the rest of the
+    // stream be read. Only the first answer counts.
+    public synchronized void setWanted(BitSet chunks) {
+	if (answered) {
+	    return;
+	}
+	answered = true;
+	wanted = (BitSet)chunks.clone();
+	notifyAll();
+    }
+
+    public int read() throws IOException {
+	byte[] one = new byte[1];
+	int count = read(one, 0, 1);
+	return (count < 0) ? -1 : (one[0] & 0xFF);
+    }
+
+    public int read(byte[] buffer, int offset, int length) throws IOException {
+	if (length == 0) {
+	    return 0;
+	}
+	if (offsets == null) {
+	    header = ByteBuffer.wrap(hashChunks());
+	}
+
+	// The offer, and then the ranges, go first.
+	if (header.hasRemaining()) {
+	    int count = Math.min(length, header.remaining());
+	    header.get(buffer, offset, count);
+	    return count;
+	}
+	if (ranges == null) {
+	    ranges = toRanges(waitForAnswer());
+	    header = ByteBuffer.wrap(listRanges(ranges));
+	    return read(buffer, offset, length);
+	}
+
+	// Then the chunks in each range, straight from the file.
+	while (position == rangeEnd) {
+	    if (range >= ranges.length) {
+		return -1;
+	    }
+	    position = offsets[ranges[range]];
+	    rangeEnd = offsets[ranges[range + 1] + 1];
+	    range += 2;
+	}
+
+	int count = (int)Math.min(length, rangeEnd - position);
+	int read = file.read(ByteBuffer.wrap(buffer, offset, count), position);
+	if (read < 0) {
+	    throw new IOException("the file got shorter while it was being sent");
+	}
+	position += read;
+	return read;
+    }
+
+    public void close() throws IOException {
+	synchronized (this) {
+	    closed = true;
+	    notifyAll();
+	}
+	file.close();
+    }
+
+    // Reads the whole file, cutting it into chunks and hashing each one, and
+    // returns the offer listing them.
+    private byte[] hashChunks() throws IOException {
+	MessageDigest digest;
+	try {
+	    digest = MessageDigest.getInstance("SHA-256");
+	} catch (NoSuchAlgorithmException e) {
+	    throw new IOException("SHA-256 is not available", e);
+	}
+
+	ByteArrayOutputStream offer = new ByteArrayOutputStream();
+	offer.write(new byte[4], 0, 4);
+	long[] found = new long[1024];
+	int count = 0;
+
+	byte[] data = new byte[READ_SIZE];
+	int start = 0;
+	int end = 0;
+	boolean atEnd = false;
+	long offset = 0;
+	ByteBuffer record = ByteBuffer.allocate(RECORD_SIZE);
+
+	while (start < end || !atEnd) {
+
+	    // Keep at least a whole chunk's worth of data ahead of us.
+	    if (!atEnd && end - start < ContentChunker.MAX_SIZE) {
+		System.arraycopy(data, start, data, 0, end - start);
+		end -= start;
+		start = 0;
+		while (end < data.length && !atEnd) {
+		    int read = file.read(ByteBuffer.wrap(data, end, data.length - end), offset + end);
+		    if (read < 0) {
+			atEnd = true;
+		    } else {
+			end += read;
+		    }
+		}
+	    }
+
+	    int length = ContentChunker.findCut(data, start, end);
+	    if (length < 0) {
+		length = end - start;
+	    }
+	    if (length == 0) {
+		break;
+	    }
+
+	    if (count + 1 >= found.length) {
+		found = Arrays.copyOf(found, found.length * 2);
+	    }
+	    if (count >= MAX_CHUNKS) {
+		throw new IOException("the file has too many chunks to offer");
+	    }
+
+	    digest.update(data, start, length);
+	    record.clear();
+	    record.putInt(length);
+	    record.put(digest.digest());
+	    offer.write(record.array(), 0, RECORD_SIZE);
+
+	    found[count++] = offset;
+	    offset += length;
+	    start += length;
+	}
+
+	found[count] = offset;
+	this.offsets = Arrays.copyOf(found, count + 1);
+	this.chunkCount = count;
+	this.size = offset;
+
+	byte[] bytes = offer.toByteArray();
+	ByteBuffer.wrap(bytes).putInt(0, count);
+	System.out.format("[debug] offering %d chunks of %d bytes\n", count, size);
+	return bytes;
+    }
+
+    // Blocks until the receivers have said which chunks they want.
+    private synchronized BitSet waitForAnswer() throws IOException {
+	while (!answered) {
+	    if (closed) {
+		throw new IOException("the stream was closed");
+	    }
+	    try {
+		wait();
+	    } catch (InterruptedException e) {
+		throw new InterruptedIOException("interrupted while waiting for the receiver");
+	    }
+	}
+	return wanted;
+    }
+
+    // Turns the wanted chunks into ranges, as pairs of first and last index,
+    // leaving out any index past the end of the offer.
+    private int[] toRanges(BitSet chunks) {
+	int[] found = new int[16];
+	int count = 0;
+	int first = chunks.nextSetBit(0);
+	while (first >= 0 && first < chunkCount) {
+	    int last = Math.min(chunks.nextClearBit(first), chunkCount) - 1;
+	    if (count + 2 > found.length) {
+		found = Arrays.copyOf(found, found.length * 2);
+	    }
+	    found[count++] = first;
+	    found[count++] = last;
+	    first = chunks.nextSetBit(last + 1);
+	}
+
+	long bytes = 0;
+	for (int i = 0; i < count; i += 2) {
+	    bytes += offsets[found[i + 1] + 1] - offsets[found[i]];
+	}
+	System.out.format("[debug] sending %d of %d bytes, the receiver has the rest\n", bytes, size);
+	return Arrays.copyOf(found, count);
+    }
+
+    private static byte[] listRanges(int[] ranges) {
+	ByteBuffer list = ByteBuffer.allocate(4 + ranges.length / 2 * RANGE_SIZE);
+	list.putInt(ranges.length / 2);
+	for (int value : ranges) {
+	    list.putInt(value);
+	}
+	return list.array();
+    }
+}
@@ -0,0 +1,354 @@
+package filetransfer;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+// Keeps a copy of a directory tree on a receiver up to date, sending only the
+// files that have changed. The tree is scanned once when the sync starts, and
+// after that a WatchService says which files to look at again.
+//
+// An index of the size, modification time and SHA-256 hash of every file the
+// receiver has is kept in a file of its own, so a sync that is restarted only
+// sends what changed while it was stopped. A file whose size and modification
+// time match the index is taken as unchanged without reading it, and one that
+// was only touched is hashed but not sent.
+//
+// Changes are gathered until the tree has been quiet for a moment, so that a
+// file being written, or a burst of files being copied in, is sent once
+// rather than after every write. The changed files are then split into a few
+// batches of about the same size, sent at once over the client's socket, and
+// unpacked by the receiver into "<name>.recv" over the files already there.
+// The next round only starts once every batch of the last one is done, so two
+// copies of a file are never on their way at once. Files that fail to go are
+// tried again in the next round.
+//
+// Files that are removed are dropped from the index, but are left alone on
+// the receiver.
+public class DirectorySync {
+
+    private TransferClient client;
+    private Path root;
+    private Path indexFile;
+    private Path indexTemporary;
+    private InetSocketAddress target;
+    private int priority;
+    private WatchService watcher;
+    private Map<WatchKey, Path> directories;
+    private TreeMap<String, Entry> index;
+    private Set<Path> dirty;
+
+    public static final int  CONCURRENT_BATCHES = 4;
+    public static final long SETTLE_MS	        = 500;
+    public static final long MAX_DELAY_MS	= 5000;
+
+    private static final int HASH_BUFFER_SIZE = 64 * 1024;
+
+    // Creates a sync of the directory at root to the server at target, which
+    // keeps its index in indexFile and sends with the given priority over the
+    // client.
+    public DirectorySync(TransferClient client, Path root, Path indexFile, InetSocketAddress target,
+			 int priority) {
+	this.client	 = client;
+	this.root	 = root.toAbsolutePath().normalize();
+	this.indexFile	 = indexFile.toAbsolutePath().normalize();
+	this.indexTemporary = this.indexFile.resolveSibling(this.indexFile.getFileName() + ".tmp");
+	this.target	 = target;
+	this.priority	 = priority;
+	this.directories = new HashMap<WatchKey, Path>();
+	this.index	 = new TreeMap<String, Entry>();
+	this.dirty	 = new LinkedHashSet<Path>();
+    }
+
+    // Syncs the tree, then keeps syncing its changes until interrupted or the
+    // client is closed.
+    public void run() throws IOException, InterruptedException {
+	loadIndex();
+
+	try (WatchService service = FileSystems.getDefault().newWatchService()) {
+	    watcher = service;
+
+	    // Start watching before the first scan, so that nothing changed while
+	    // it runs is missed.
+	    watchTree(root);
+	    while (true) {
+		syncChanges();
+		waitForChanges();
+	    }
+	}
+    }
+
+    // Watches every directory under the given one, and marks every file under
+    // it as needing a look.
+    private void watchTree(Path directory) throws IOException {
+	try (Stream<Path> paths = Files.walk(directory)) {
+	    for (Path path : (Iterable<Path>)paths::iterator) {
+		if (Files.isDirectory(path)) {
+		    WatchKey key = path.register(watcher, StandardWatchEventKinds.ENTRY_CREATE,
+						 StandardWatchEventKinds.ENTRY_MODIFY,
+						 StandardWatchEventKinds.ENTRY_DELETE);
+		    directories.put(key, path);
+		} else if (Files.isRegularFile(path)) {
+		    dirty.add(path);
+		}
+	    }
+	} catch (NoSuchFileException e) {
+	    // The directory went away before we got to it.
+	}
+    }
+
+    // Waits for something in the tree to change, then gathers changes until
+    // the tree has been quiet for the settle time, or changes have been
+    // gathered for the longest delay.
+    private void waitForChanges() throws IOException, InterruptedException {
+	WatchKey key = watcher.take();
+	long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(MAX_DELAY_MS);
+
+	while (key != null) {
+	    handleEvents(key);
+	    long left = deadline - System.nanoTime();
+	    if (left <= 0) {
+		break;
+	    }
+	    key = watcher.poll(Math.min(TimeUnit.MILLISECONDS.toNanos(SETTLE_MS), left), TimeUnit.NANOSECONDS);
+	}
+    }
+
+    // Marks the files a directory's events name as needing a look, and starts
+    // watching any new directory. If events were lost, the whole tree is looked
+    // at again.
+    private void handleEvents(WatchKey key) throws IOException {
+	Path directory = directories.get(key);
+
+	for (WatchEvent<?> event : key.pollEvents()) {
+	    if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+		System.out.println("[debug] missed some changes, rescanning " + root);
+		watchTree(root);
+		continue;
+	    }
+	    if (directory == null) {
+		continue;
+	    }
+
+	    Path path = directory.resolve((Path)event.context());
+	    if (event.kind() == StandardWatchEventKinds.ENTRY_CREATE && Files.isDirectory(path)) {
+		watchTree(path);
+	    } else {
+		dirty.add(path);
+	    }
+	}
+
+	if (!key.reset()) {
+	    directories.remove(key);
+	}
+    }
+
+    // Sends the files that have changed since the receiver was last sent them,
+    // and records them in the index once they are through.
+    private void syncChanges() throws IOException, InterruptedException {
+	List<Path> changed = new ArrayList<Path>();
+	Map<Path, Entry> updates = new HashMap<Path, Entry>();
+	boolean updated = false;
+
+	// The index may be kept inside the tree, but isn't part of it.
+	for (Path path : dirty) {
+	    if (path.equals(indexFile) || path.equals(indexTemporary)) {
+		continue;
+	    }
+	    String name = nameOf(path);
+
+	    BasicFileAttributes attributes;
+	    try {
+		attributes = Files.readAttributes(path, BasicFileAttributes.class);
+	    } catch (NoSuchFileException e) {
+		updated |= (index.remove(name) != null);
+		continue;
+	    }
+	    if (!attributes.isRegularFile()) {
+		continue;
+	    }
+
+	    Entry entry = new Entry(attributes.size(), attributes.lastModifiedTime().toMillis(), null);
+	    Entry known = index.get(name);
+	    if (known != null && known.size == entry.size && known.modified == entry.modified) {
+		continue;
+	    }
+
+	    try {
+		entry.hash = hash(path);
+	    } catch (NoSuchFileException e) {
+		updated |= (index.remove(name) != null);
+		continue;
+	    }
+	    if (known != null && known.size == entry.size && known.hash.equals(entry.hash)) {
+		index.put(name, entry);
+		updated = true;
+		continue;
+	    }
+
+	    changed.add(path);
+	    updates.put(path, entry);
+	}
+	dirty.clear();
+
+	if (!changed.isEmpty()) {
+	    sendBatches(changed, updates);
+	    updated = true;
+	}
+	if (updated) {
+	    saveIndex();
+	}
+    }
+
+    // Splits the changed files into batches of about the same size, sends them
+    // all at once and waits for them to finish. The files of a batch that
+    // fails are looked at again in the next round.
+    private void sendBatches(List<Path> changed, Map<Path, Entry> updates) throws InterruptedException {
+	int count = Math.min(CONCURRENT_BATCHES, changed.size());
+	List<List<Path>> batches = new ArrayList<List<Path>>();
+	long[] batchBytes = new long[count];
+	for (int i = 0; i < count; ++i) {
+	    batches.add(new ArrayList<Path>());
+	}
+
+	// Each file, largest first, goes in the batch that has the least so far.
+	Collections.sort(changed, (a, b) -> Long.compare(updates.get(b).size, updates.get(a).size));
+	for (Path path : changed) {
+	    int smallest = 0;
+	    for (int i = 1; i < count; ++i) {
+		if (batchBytes[i] < batchBytes[smallest]) {
+		    smallest = i;
+		}
+	    }
+	    batches.get(smallest).add(path);
+	    batchBytes[smallest] += updates.get(path).size;
+	}
+
+	System.out.format("[sync] sending %d changed files in %d batches\n", changed.size(), count);
+	List<CompletableFuture<TransferResult>> transfers = new ArrayList<CompletableFuture<TransferResult>>();
+	for (List<Path> batch : batches) {
+	    InputStream input = new BatchInputStream(root, batch.iterator());
+	    transfers.add(client.send(input, root.getFileName().toString(), true, target, 1, priority,
+				      TransmitScheduler.DEFAULT_WEIGHT, null));
+	}
+
+	for (int i = 0; i < count; ++i) {
+	    try {
+		transfers.get(i).get();
+		for (Path path : batches.get(i)) {
+		    index.put(nameOf(path), updates.get(path));
+		}
+	    } catch (ExecutionException e) {
+		System.err.println("[error] could not sync a batch. message: " + e.getCause().getMessage());
+		dirty.addAll(batches.get(i));
+	    }
+	}
+    }
+
+    // Gets the name a file has in the index, its path under the root with /
+    // between directories, the same as the name it is sent under.
+    private String nameOf(Path path) {
+	return root.relativize(path).toString().replace(path.getFileSystem().getSeparator(), "/");
+    }
+
+    // Hashes the contents of a file with SHA-256, as hex digits.
+    private static String hash(Path path) throws IOException {
+	MessageDigest digest;
+	try {
+	    digest = MessageDigest.getInstance("SHA-256");
+	} catch (NoSuchAlgorithmException e) {
+	    throw new IOException("SHA-256 is not available", e);
+	}
+
+	ByteBuffer buffer = ByteBuffer.allocate(HASH_BUFFER_SIZE);
+	try (FileChannel file = FileChannel.open(path, StandardOpenOption.READ)) {
+	    while (file.read(buffer) != Sender.EOF) {
+		buffer.flip();
+		digest.update(buffer);
+		buffer.clear();
+	    }
+	}
+
+	StringBuilder hex = new StringBuilder();
+	for (byte b : digest.digest()) {
+	    hex.append(String.format("%02x", b));
+	}
+	return hex.toString();
+    }
+
+    // Reads the index left by an earlier sync, if there is one. Each line holds
+    // a file's size, modification time in milliseconds, hash and name,
+    // separated by tabs.
+    private void loadIndex() throws IOException {
+	if (!Files.exists(indexFile)) {
+	    return;
+	}
+
+	for (String line : Files.readAllLines(indexFile, StandardCharsets.UTF_8)) {
+	    String[] fields = line.split("\t", 4);
+	    if (fields.length != 4) {
+		continue;
+	    }
+	    try {
+		index.put(fields[3], new Entry(Long.parseLong(fields[0]), Long.parseLong(fields[1]), fields[2]));
+	    } catch (NumberFormatException e) {
+		System.err.println("[warning] skipping bad line in the sync index: " + line);
+	    }
+	}
+    }
+
+    // Writes the index out to a new file and moves it over the old one, so that
+    // a sync stopped part way through never leaves a half written index.
+    private void saveIndex() throws IOException {
+	try (BufferedWriter writer = Files.newBufferedWriter(indexTemporary, StandardCharsets.UTF_8)) {
+	    for (Map.Entry<String, Entry> item : index.entrySet()) {
+		Entry entry = item.getValue();
+		writer.write(entry.size + "\t" + entry.modified + "\t" + entry.hash + "\t" + item.getKey());
+		writer.newLine();
+	    }
+	}
+	Files.move(indexTemporary, indexFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    // What the index knows of one file.
+    private static class Entry {
+	long size;
+	long modified;
+	String hash;
+
+	Entry(long size, long modified, String hash) {
+	    this.size	  = size;
+	    this.modified = modified;
+	    this.hash	  = hash;
+	}
+    }
+}
@@ -0,0 +1,327 @@
+package filetransfer;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.GatheringByteChannel;
+import java.util.LinkedList;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+// Writes received data to disk on its own task so a slow disk does not hold
+// up the thread pulling packets out of the FileReceiveBuffer. Queued segments
+// are coalesced into a single gathering write, and the file is synced to disk
+// according to the configured policy.
+//
+// Packets are written straight from their slots in the slab, and the slots are
+// released once the data is in the file. The channel may also be a
+// BatchUnpacker, which splits a batch back out into files as it is written,
+// or a DedupAssembler.
+//
+// A hole is skipped over in a file, which leaves the file sparse, but is
+// written out as zeros to a channel that can't seek, such as a stream or a
+// BatchUnpacker. If the file ends in a hole, its last byte is written so the
+// file still comes out the right size.
+public class DiskWriter extends PooledTask {
+
+    private GatheringByteChannel channel;
+    private SegmentSlab slab;
+    private LinkedList<DataPacket> queue;
+    private long queuedBytes;
+    private boolean finished;
+    private IOException error;
+    private volatile Runnable drainListener;
+    private Lock lock;
+    private Condition dataAvailable;
+    private Condition spaceAvailable;
+
+    private long syncInterval;
+    private boolean syncAtEnd;
+    private long bytesSinceSync;
+    private volatile long bytesWritten;
+    private boolean endsInHole;
+
+    public static final long MAX_QUEUED_BYTES = 8 * 1024 * 1024;
+    public static final int  MAX_BATCH	      = 1024;
+
+    private static final byte[] ZEROS = new byte[64 * 1024];
+
+    // Creates a writer for the given channel, releasing written packets back to
+    // the slab. If syncInterval is greater than 0 the file is synced each time
+    // that many bytes have been written, and if syncAtEnd is set the file is
+    // synced once more before it is closed.
+    public DiskWriter(GatheringByteChannel channel, SegmentSlab slab, long syncInterval, boolean syncAtEnd) {
+	this.channel	    = channel;
+	this.slab	    = slab;
+	this.queue	    = new LinkedList<DataPacket>();
+	this.queuedBytes    = 0;
+	this.finished	    = false;
+	this.error	    = null;
+	this.drainListener  = null;
+	this.syncInterval   = syncInterval;
+	this.syncAtEnd	    = syncAtEnd;
+	this.bytesSinceSync = 0;
+	this.bytesWritten   = 0;
+	this.endsInHole	    = false;
+
+	this.lock	    = new ReentrantLock();
+	this.dataAvailable  = lock.newCondition();
+	this.spaceAvailable = lock.newCondition();
+    }
+
+    // Queues a packet's data to be written. If the writer has fallen too far behind,
+    // this method will block until it catches up. Returns false if the writer
+    // has failed and the data will never be written.
+    public boolean write(DataPacket packet) {
+	lock.lock();
+	try {
+	    while (error == null && queuedBytes >= MAX_QUEUED_BYTES) {
+		try {
+		    spaceAvailable.await();
+		} catch (InterruptedException e) {
+		    return false;
+		}
+	    }
+
+	    if (error != null) {
+		return false;
+	    }
+
+	    queue.addLast(packet);
+	    queuedBytes += packet.getDataLength();
+	    dataAvailable.signal();
+	    return true;
+	} finally {
+	    lock.unlock();
+	}
+    }
+
+    // Assigns a callback to run each time a batch has been written out, so
+    // the receive window can be reopened as the backlog drains.
+    public void setDrainListener(Runnable listener) {
+	this.drainListener = listener;
+    }
+
+    // Gets the number of bytes written so far.
+    public long getBytesWritten() {
+	return bytesWritten;
+    }
+
+    // Gets the error that stopped the writer, or null if there wasn't one.
+    public IOException getError() {
+	lock.lock();
+	try {
+	    return error;
+	} finally {
+	    lock.unlock();
+	}
+    }
+
+    // Gets the number of bytes waiting to be written to disk.
+    public long getBacklog() {
+	lock.lock();
+	try {
+	    return queuedBytes;
+	} finally {
+	    lock.unlock();
+	}
+    }
+
+    // Waits for all of the queued data to be written and synced, then closes
+    // the channel. Returns false if any of the data could not be written.
+    public boolean finish() {
+	lock.lock();
+	try {
+	    finished = true;
+	    dataAvailable.signal();
+	} finally {
+	    lock.unlock();
+	}
+
+	try {
+	    join();
+	} catch (InterruptedException e) {
+	    return false;
+	}
+
+	try {
+	    channel.close();
+	} catch (IOException e) {
+	    System.err.println("[error] file writer failed to close: " + e.getMessage());
+	    lock.lock();
+	    try {
+		if (error == null) {
+		    error = e;
+		}
+	    } finally {
+		lock.unlock();
+	    }
+	    return false;
+	}
+
+	return error == null;
+    }
+
+    public void run() {
+
+	try {
+	    while (true) {
+		DataPacket[] batch = takeBatch();
+		if (batch == null) {
+		    break;
+		}
+		try {
+		    writeBatch(batch);
+		} finally {
+		    for (DataPacket packet : batch) {
+			slab.release(packet.getSlot());
+		    }
+		}
+
+		Runnable listener = drainListener;
+		if (listener != null) {
+		    listener.run();
+		}
+	    }
+
+	    if (endsInHole) {
+		FileChannel file = (FileChannel)channel;
+		file.write(ByteBuffer.allocate(1), file.position() - 1);
+	    }
+	    if (syncAtEnd) {
+		force();
+	    }
+	} catch (IOException e) {
+	    System.err.println("[error] could not write to file. message: " + e.getMessage());
+
+	    // Nothing more will be written, so give back the slots of anything
+	    // still queued.
+	    lock.lock();
+	    try {
+		error = e;
+		for (DataPacket packet : queue) {
+		    slab.release(packet.getSlot());
+		}
+		queue.clear();
+		queuedBytes = 0;
+		spaceAvailable.signalAll();
+	    } finally {
+		lock.unlock();
+	    }
+	}
+    }
+
+    // Takes everything waiting in the queue, up to MAX_BATCH segments. Blocks until
+    // there is data, and returns null once the queue is drained after finish().
+    private DataPacket[] takeBatch() {
+	lock.lock();
+	try {
+	    while (queue.isEmpty() && !finished) {
+		try {
+		    dataAvailable.await();
+		} catch (InterruptedException e) {
+		    return null;
+		}
+	    }
+
+	    if (queue.isEmpty()) {
+		return null;
+	    }
+
+	    int count = Math.min(queue.size(), MAX_BATCH);
+	    DataPacket[] batch = new DataPacket[count];
+	    for (int i = 0; i < count; ++i) {
+		batch[i] = queue.removeFirst();
+		queuedBytes -= batch[i].getDataLength();
+	    }
+
+	    spaceAvailable.signalAll();
+	    return batch;
+	} finally {
+	    lock.unlock();
+	}
+    }
+
+    // Writes the whole batch with as few gathering writes as possible, broken
+    // up only by holes, then syncs if enough data has gone by since the last
+    // sync.
+    private void writeBatch(DataPacket[] packets) throws IOException {
+	ByteBuffer[] batch = new ByteBuffer[packets.length];
+	long total = 0;
+	int first = 0;
+	for (int i = 0; i < packets.length; ++i) {
+	    if (!packets[i].isHole()) {
+		batch[i] = packets[i].getPayload();
+		continue;
+	    }
+
+	    total += write(batch, first, i);
+	    skip(packets[i].getHoleLength());
+	    total += packets[i].getHoleLength();
+	    first = i + 1;
+	}
+	total += write(batch, first, packets.length);
+
+	bytesSinceSync += total;
+	bytesWritten += total;
+	if (syncInterval > 0 && bytesSinceSync >= syncInterval) {
+	    force();
+	    bytesSinceSync = 0;
+	}
+    }
+
+    // Writes out the buffers from first up to end, returning the number of
+    // bytes written.
+    private long write(ByteBuffer[] batch, int first, int end) throws IOException {
+	long total = 0;
+	for (int i = first; i < end; ++i) {
+	    total += batch[i].remaining();
+	}
+
+	long written = 0;
+	while (written < total) {
+	    written += channel.write(batch, first, end - first);
+	    while (first < end && !batch[first].hasRemaining()) {
+		++first;
+	    }
+	}
+
+	if (total > 0) {
+	    endsInHole = false;
+	}
+	return total;
+    }
+
+    // Moves past a hole of the given length, leaving it unwritten in a file or
+    // writing it out as zeros to anything else.
+    private void skip(long length) throws IOException {
+	if (channel instanceof FileChannel) {
+	    FileChannel file = (FileChannel)channel;
+	    file.position(file.position() + length);
+	    endsInHole = true;
+	    return;
+	}
+
+	ByteBuffer zeros = ByteBuffer.wrap(ZEROS);
+	while (length > 0) {
+	    zeros.clear();
+	    zeros.limit((int)Math.min(length, ZEROS.length));
+	    length -= zeros.remaining();
+	    while (zeros.hasRemaining()) {
+		channel.write(zeros);
+	    }
+	}
+    }
+
+    // Syncs whatever has been written so far to disk.
+    private void force() throws IOException {
+	if (channel instanceof FileChannel) {
+	    ((FileChannel)channel).force(false);
+	} else if (channel instanceof BatchUnpacker) {
+	    ((BatchUnpacker)channel).force();
+	} else if (channel instanceof DedupAssembler) {
+	    ((DedupAssembler)channel).force();
+	}
+    }
+}
@@ -0,0 +1,14 @@
+package filetransfer;
+
+import java.util.BitSet;
+
+// A large block of the file read ahead of the network, waiting to be split
+// into segments. The segments that are all zeros are marked, so that they can
+// be sent as holes.
+public class FileChunk {
+    public byte[] data;
+    public int length;
+    public int firstSequenceNumber;
+    public boolean isFinal;
+    public BitSet zeroSegments;
+}
@@ -1,151 +1,365 @@
 package filetransfer;
 
 import java.net.DatagramSocket;
-import java.net.DatagramPacket;
 import java.net.SocketException;
-import java.net.InetAddress;
-import java.util.ArrayList;
-import java.io.IOException;
-import java.io.Closeable;
-import java.util.concurrent.locks.Lock;
-import java.util.concurrent.locks.ReentrantLock;
-import java.util.concurrent.locks.Condition;
+import java.net.InetSocketAddress;
+import java.nio.channels.DatagramChannel;
 import java.util.Arrays;
-import java.util.Iterator;
-
-// The FileReceiveBuffer accepts incoming packets from the sender
-// and arranges them in the correct order.
-public class FileReceiveBuffer extends Thread implements Closeable {
-
-    private static final int MAX_PACKET_SIZE = 2000;
-
-    private AckSender ackSender;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+// The FileReceiveBuffer accepts the incoming packets of one session from the
+// sender and arranges them in the correct order.
+//
+// The TransferServer owns the socket, and pulls datagrams into slots of an
+// off-heap slab. Checksums and parsing are handled by a small pool of workers,
+// which hand each packet to the buffer of its session. The workers place
+// packets directly into their slot in the window so that no lock is shared
+// between them. A packet keeps its slab slot until it has been written to disk,
+// or until it is found to be of no use.
+//
+// The window starts out at BUFFER_SIZE packets. When the sender keeps running
+// into the edge of it and the disk is keeping up, it is doubled, along with the
+// socket's receive buffer, up to the size of the slab.
+//
+// As soon as a packet arrives that leaves new holes behind it, the missing
+// ranges are sent back in a NACK so the sender can repair them in one round
+// trip. Holes that are still open after NACK_RETRY_MS are NACKed again.
+//
+// When the server has joined a multicast group, each receiver keeps its own
+// window and sends its own ACKs and NACKs.
+//
+// Once the last packet has been taken, the buffer lingers to re-ACK anything
+// the sender retransmits because it missed the final ACK. The sender's close
+// packet, or a quiet spell, ends the linger.
+//
+// The buffer of an encrypted session holds the cipher its packets are opened
+// with, which the server's workers use before handing them over.
+//
+// When the sender offers the hashes of its chunks, the buffer answers with a
+// WANT, and repeats it every WANT_RETRY_MS until a packet past the offer shows
+// that the sender heard it.
+public class FileReceiveBuffer {
+
+    private int sessionId;
+    private PacketCipher cipher;
+    private AtomicReference<AckSender> ackSender;
+    private volatile DiskWriter diskWriter;
+    private DatagramChannel ackChannel;
     private DatagramSocket socket;
-    private DatagramPacket udpPacket;
-    private boolean finishedReceiving;
-    private ArrayList<DataPacket> buffer;
-    private Lock lock;
-    private Condition nextPacketAvailable;
-
-    private int lastConsecutiveSeqNo;
-    private int nextPacketSeqNo;
+    private ScheduledExecutorService timer;
+    private volatile boolean closed;
+    private volatile long lastReceiveTime;
+    private volatile boolean closeReceived;
+    private volatile Thread lingering;
+    private SegmentSlab slab;
+    private AtomicReferenceArray<DataPacket> buffer;
+    private volatile Thread consumer;
+
+    private AtomicInteger lastConsecutiveSeqNo;
+    private AtomicInteger windowCapacity;
+    private volatile int nextPacketSeqNo;
+
+    private AtomicInteger highestSeqNo;
+    private AtomicInteger nackedUpTo;
+    private volatile long lastNackTime;
+
+    private volatile int[] wanted;
+    private volatile int wantedAfter;
+    private volatile long lastWantTime;
 
     private static final int BUFFER_SIZE = 1000;
-
-    public FileReceiveBuffer(int port) throws SocketException {
-	this.ackSender = null;
-	this.socket = new DatagramSocket(port);
-	this.udpPacket = new DatagramPacket(new byte[MAX_PACKET_SIZE], MAX_PACKET_SIZE);
-	this.finishedReceiving = false;
-	this.buffer = new ArrayList<DataPacket>();
-	this.lock = new ReentrantLock();
-	this.nextPacketAvailable = lock.newCondition();
+    private static final int SEGMENT_SIZE = 1000;
+    private static final int PACKET_SIZE = SEGMENT_SIZE + DataPacket.HEADER_SIZE;
+    private static final long PARK_NANOS = 10000000;
+    public static final long NACK_RETRY_MS = 20;
+    private static final long WANT_RETRY_MS = 200;
+    private static final long LINGER_QUIET_MS = 250;
+    private static final long LINGER_MAX_MS = 2000;
+    private static final long IDLE_TIMEOUT_MS = 30000;
+
+    // Creates a buffer for the given session, whose window can grow to hold as
+    // many packets as the slab has slots. The packets arrive on channel, whose
+    // receive buffer grows with the window. ACKs are sent over ackChannel, which
+    // may be the same channel, and delayed ACKs are flushed on the timer. The
+    // cipher is null unless the session is encrypted.
+    public FileReceiveBuffer(int sessionId, PacketCipher cipher, DatagramChannel channel,
+			     DatagramChannel ackChannel, SegmentSlab slab, ScheduledExecutorService timer) {
+	this.sessionId = sessionId;
+	this.cipher = cipher;
+	this.ackSender = new AtomicReference<AckSender>();
+	this.diskWriter = null;
+	this.ackChannel = ackChannel;
+	this.socket = channel.socket();
+	this.timer = timer;
+	this.closed = false;
+	this.lastReceiveTime = System.nanoTime();
+	this.closeReceived = false;
+	this.lingering = null;
+	this.slab = slab;
+	this.buffer = new AtomicReferenceArray<DataPacket>(slab.getCapacity());
+	this.windowCapacity = new AtomicInteger(Math.min(BUFFER_SIZE, buffer.length()));
+	this.consumer = null;
 
 	this.nextPacketSeqNo = 0;
-	this.lastConsecutiveSeqNo = -1;
+	this.lastConsecutiveSeqNo = new AtomicInteger(-1);
+
+	this.highestSeqNo = new AtomicInteger(-1);
+	this.nackedUpTo = new AtomicInteger(-1);
+	this.lastNackTime = 0;
+
+	this.wanted = null;
+	this.wantedAfter = -1;
+	this.lastWantTime = 0;
     }
 
-    public void close() {
-	socket.close();
+    // Gets the cipher the session's packets are opened with, or null if it
+    // isn't encrypted.
+    public PacketCipher getCipher() {
+	return cipher;
     }
 
-    // Start a new thread running that will continuously listen for incoming data packets.
-    public void run() {
+    // Stops accepting packets and releases any that are still held, waking
+    // the thread taking packets if it is waiting.
+    public void close() {
+	closed = true;
+	for (int i = 0; i < buffer.length(); ++i) {
+	    DataPacket packet = buffer.getAndSet(i, null);
+	    if (packet != null) {
+		slab.release(packet.getSlot());
+	    }
+	}
+
+	Thread waiting = consumer;
+	if (waiting != null) {
+	    LockSupport.unpark(waiting);
+	}
+	waiting = lingering;
+	if (waiting != null) {
+	    LockSupport.unpark(waiting);
+	}
+    }
 
-	while (!finishedReceiving) {
+    // Stores a packet received from the given address in the window and sends
+    // back an ACK. Runs on one of the server's worker threads. The packet's
+    // slot is released here unless the packet is stored in the window.
+    public void processPacket(DataPacket packet, InetSocketAddress source) {
 
-	    // Zero out the buffer before receiving a new packet.
-	    Arrays.fill(udpPacket.getData(), (byte)0);
+	lastReceiveTime = System.nanoTime();
+	int slot = packet.getSlot();
+	if (closed) {
+	    slab.release(slot);
+	    return;
+	}
 
-	    try {
-		socket.receive(udpPacket);
-	    } catch (IOException e) {
-		continue;
+	// The sender has the final ACK, so there is no need to linger.
+	if (packet.isClosePacket()) {
+	    System.out.println("[recv close]");
+	    slab.release(slot);
+	    closeReceived = true;
+	    Thread waiting = lingering;
+	    if (waiting != null) {
+		LockSupport.unpark(waiting);
 	    }
+	    return;
+	}
 
-	    // Take the data from the UDP packet and create our own filetransfer
-	    // data packet from it.
-	    DataPacket packet = new DataPacket(udpPacket.getData());
-	    
-	    if (packet == null || packet.isCorrupt()) {
-		System.out.println("[recv corrupt packet]");
-		continue;
-	    }
+	// A keepalive only tells us the sender is still there.
+	if (packet.isKeepAlivePacket()) {
+	    slab.release(slot);
+	    return;
+	}
 
-	    // In the beginning we don't know where to send the ACK value to, so
-	    // if this is the first packet then it should contain the port that the
-	    // sender is listening for ACK values on.
-	    if (ackSender == null) {
-		if (packet.isInitPacket()) {
-		    int ackPort = packet.getAckPort();
-		    InetAddress dest = udpPacket.getAddress();
-
-		    try {
-			ackSender = new AckSender(dest, ackPort);
-		    } catch (SocketException e) {
-			continue;
-		    }
-		}
-	    }
+	// In the beginning we don't know where to send the ACK value to, so
+	// if this is the first packet then it should contain the port that the
+	// sender is listening for ACK values on.
+	if (ackSender.get() == null && packet.isInitPacket()) {
+	    InetSocketAddress destination = new InetSocketAddress(source.getAddress(), packet.getAckPort());
+	    ackSender.compareAndSet(null, new AckSender(ackChannel, destination, sessionId,
+							this::getAvailableWindow, timer));
+	}
 
-	    // Store the packet in the buffer, even if it is out of order.
-	    updateBuffer(packet);
+	// Store the packet in the buffer, even if it is out of order.
+	int previousAck = lastConsecutiveSeqNo.get();
+	boolean accepted = updateBuffer(packet);
+	int lastAck = lastConsecutiveSeqNo.get();
+	if (!accepted) {
+	    slab.release(slot);
+	}
 
-	    // Only return an ACK value if we know where to send it.
-	    if (ackSender != null) {
-		ackSender.sendAck(lastConsecutiveSeqNo);
+	// Nothing past the offer is sent until the sender has our answer.
+	if (wanted != null && packet.getSequenceNumber() > wantedAfter) {
+	    wanted = null;
+	}
+
+	// Only return an ACK value if we know where to send it.
+	AckSender sender = ackSender.get();
+	if (sender == null) {
+	    return;
+	}
+	sender.noteArrival(packet.getSequenceNumber(), packet.getReceivedTime());
+
+	// A packet that leaves a gap behind it, or that fills one in, is ACKed
+	// right away so the sender hears about the loss or the recovery quickly.
+	// If it opens up holes that haven't been reported yet, they are listed
+	// in a NACK. The first and last packets are ACKed right away too, and so
+	// are packets we had no use for, since the sender must have missed an ACK
+	// or be probing the window. Anything else can wait a little and be covered
+	// by a single ACK. The NACK lists every hole behind the packet, not just
+	// the new ones, so that the sender can forget the holes it doesn't list.
+	int sequenceNumber = packet.getSequenceNumber();
+	boolean outOfOrder = accepted && sequenceNumber > lastAck;
+	boolean filledGap  = lastAck - previousAck > 1;
+
+	if (outOfOrder) {
+	    int reported = nackedUpTo.getAndAccumulate(sequenceNumber - 1, Math::max);
+	    int firstNew = Math.max(reported, lastAck) + 1;
+	    if (hasMissing(firstNew, sequenceNumber - 1)) {
+		lastNackTime = System.nanoTime();
+		sender.sendNack(lastAck, findMissingRanges(lastAck + 1, sequenceNumber - 1));
+		return;
 	    }
+	}
+
+	if (!accepted || outOfOrder || filledGap || packet.isInitPacket() || packet.isLastPacket()) {
+	    sender.sendAck(lastAck);
+	} else {
+	    sender.sendDelayedAck(lastAck);
+	}
+    }
+
+    // Assigns the writer that received data is being handed to, so that data
+    // waiting to be written counts against the window we advertise.
+    public void setDiskWriter(DiskWriter writer) {
+	this.diskWriter = writer;
+	writer.setDrainListener(this::checkWindowUpdate);
+    }
+
+    // Gets the number of packets past the last consecutive sequence number
+    // that there is room for. Packets that have arrived in order but not been
+    // taken from the buffer yet, and data still waiting for the disk writer,
+    // both use up space. It is never more than the slab has free slots for.
+    public int getAvailableWindow() {
+	int used = lastConsecutiveSeqNo.get() + 1 - nextPacketSeqNo;
 
+	DiskWriter writer = diskWriter;
+	if (writer != null) {
+	    used += (int)(writer.getBacklog() / SEGMENT_SIZE);
 	}
 
+	int capacity = windowCapacity.get();
+	return Math.max(0, Math.min(Math.min(capacity, capacity - used), slab.getFreeSlots()));
+    }
+
+    // Doubles the window if the packet just received was near the edge of the
+    // window we last advertised, meaning the window is what is holding the
+    // sender back. If the disk writer is behind, a bigger window won't help.
+    private void maybeGrowWindow(int sequenceNumber) {
+	AckSender sender = ackSender.get();
+	int capacity = windowCapacity.get();
+	if (sender == null || capacity >= buffer.length()) {
+	    return;
+	}
+
+	int edge = sender.getLatestAck() + sender.getLastWindow();
+	if (sequenceNumber < edge - capacity / 8) {
+	    return;
+	}
+
+	DiskWriter writer = diskWriter;
+	if (writer != null && writer.getBacklog() / SEGMENT_SIZE > capacity / 4) {
+	    return;
+	}
+
+	int grown = Math.min(capacity * 2, buffer.length());
+	if (!windowCapacity.compareAndSet(capacity, grown)) {
+	    return;
+	}
+
+	System.out.format("[debug] receive window grown to %d packets\n", grown);
+	resizeSocketBuffer((long)grown * PACKET_SIZE);
+    }
+
+    // Asks the kernel for a receive buffer of the given size, and logs it if
+    // the kernel gives us less.
+    private void resizeSocketBuffer(long size) {
+	int requested = (int)Math.min(size, Integer.MAX_VALUE);
+	try {
+	    if (socket.getReceiveBufferSize() >= requested) {
+		return;
+	    }
+
+	    socket.setReceiveBufferSize(requested);
+	    int actual = socket.getReceiveBufferSize();
+	    if (actual < requested) {
+		System.out.format("[debug] kernel clamped receive buffer to %d bytes (asked for %d)\n",
+				  actual, requested);
+	    }
+	} catch (SocketException e) {
+	    System.out.println("[debug] could not resize receive buffer: " + e.getMessage());
+	}
     }
 
+    // If the last window we advertised was nearly closed and enough room has
+    // opened up since, tell the sender right away instead of waiting for its
+    // next packet, which may never come while the window is closed.
+    private void checkWindowUpdate() {
+
+	// Nothing has been advertised until the first ACK has gone out, and the
+	// worker sending it will advertise the window itself.
+	AckSender sender = ackSender.get();
+	if (sender == null || sender.getLastSentAck() < 0) {
+	    return;
+	}
+
+	int updateSize = windowCapacity.get() / 4;
+	int lastWindow = sender.getLastWindow();
+	if (lastWindow < updateSize &&
+	    getAvailableWindow() >= lastWindow + updateSize) {
+	    sender.sendAck(lastConsecutiveSeqNo.get());
+	}
+    }
 
     // Gets the next consecutive packet from the sender. If the packet has not
     // yet arrived, this method will block until the packet becomes available.
+    // Returns null if the buffer is closed, or if nothing has arrived from the
+    // sender for IDLE_TIMEOUT_MS. Only one thread may take packets from the buffer.
     public DataPacket getNextPacket() {
 
-	boolean packetFound = false;
-	DataPacket packet = null;
+	consumer = Thread.currentThread();
 
-	lock.lock();
+	int slot = nextPacketSeqNo % buffer.length();
+	DataPacket packet = buffer.get(slot);
+	long idleTimeout = TimeUnit.MILLISECONDS.toNanos(IDLE_TIMEOUT_MS);
 
-	try {
-	    while (!packetFound) {
-
-		Iterator<DataPacket> iter = buffer.iterator();
-		while (iter.hasNext()) {
-		    packet = iter.next();
-		    if (packet.getSequenceNumber() == nextPacketSeqNo) {
-			iter.remove();
-			packetFound = true;
-			break;
-		    }
-		}
-
-		// Use a condition variable to block while we are waiting.
-		if (!packetFound) {
-		    try {
-			nextPacketAvailable.await();
-		    } catch (InterruptedException e) {
-			continue;
-		    }
-		}
+	// Park until the worker that fills the slot wakes us up. The timeout
+	// is only a safety net; a wakeup is never expected to be missed.
+	while (packet == null || packet.getSequenceNumber() != nextPacketSeqNo) {
+	    if (closed || System.nanoTime() - lastReceiveTime > idleTimeout) {
+		return null;
 	    }
-
-	    ++nextPacketSeqNo;
-	} finally {
-	    lock.unlock();
+	    LockSupport.parkNanos(this, PARK_NANOS);
+	    packet = buffer.get(slot);
 	}
 
+	// Move the window along before clearing the slot, so a worker that finds
+	// the slot empty always sees that the packet was taken.
+	++nextPacketSeqNo;
+	buffer.set(slot, null);
+	checkWindowUpdate();
+
 	return packet;
     }
 
     // Saves a packet to the buffer if it is within the range of acceptable packets.
-    private void updateBuffer(DataPacket packet) {
+    // Returns false if the packet was ignored.
+    private boolean updateBuffer(DataPacket packet) {
 
 	// A quick hack to figure out the starting position.
-	final int SEGMENT_SIZE = 1000;
 	int sequenceNumber = packet.getSequenceNumber();
 	String start;
 	if (packet.isInitPacket()) {
@@ -155,94 +369,212 @@ public class FileReceiveBuffer extends Thread implements Closeable {
 	} else {
 	    start = Integer.toString((sequenceNumber - 1) * SEGMENT_SIZE);
 	}
-	int length = packet.getData().length;
+	int length = packet.isHole() ? packet.getHoleLength() : packet.getDataLength();
 
-	lock.lock();
-	try {
+	// Only add the packet if we haven't received it before or if it's
+	// not too far ahead.
+	if (!packetIsInBufferWindow(sequenceNumber) || !save(packet)) {
+	    System.out.format("[recv data] %s (%d) IGNORED\n", start, length);
+	    return false;
+	}
 
-	    // Only add the packet if we haven't received it before or if it's
-	    // not too far ahead.
-	    if (packetIsInBufferWindow(sequenceNumber)) {
-		save(packet);
-	    } else {
-		System.out.format("[recv data] %s (%d) IGNORED\n", start, length);
-		return;
+	if (sequenceNumber == nextPacketSeqNo) {
+	    System.out.format("[recv data] %s (%d) ACCEPTED(in-order)\n", start, length);
+	    Thread waiting = consumer;
+	    if (waiting != null) {
+		LockSupport.unpark(waiting);
+	    }
+	} else {
+	    System.out.format("[recv data] %s (%d) ACCEPTED(out-of-order)\n", start, length);
+	}
+
+	highestSeqNo.accumulateAndGet(sequenceNumber, Math::max);
+	updateLatestSequenceNumber();
+	maybeGrowWindow(sequenceNumber);
+	return true;
+    }
+
+    // Tells whether any sequence number from first to last, inclusive, has not
+    // been received.
+    private boolean hasMissing(int first, int last) {
+	for (int seqNo = first; seqNo <= last; ++seqNo) {
+	    if (!isReceived(seqNo)) {
+		return true;
 	    }
+	}
+	return false;
+    }
 
-	    if (sequenceNumber == nextPacketSeqNo) {
-		System.out.format("[recv data] %s (%d) ACCEPTED(in-order)\n", start, length);
-		nextPacketAvailable.signal();
-	    } else {
-		System.out.format("[recv data] %s (%d) ACCEPTED(out-of-order)\n", start, length);
+    // Lists the ranges of sequence numbers from first to last, inclusive, that
+    // have not been received, as pairs of first and last sequence numbers. At
+    // most AckPacket.MAX_RANGES ranges are listed, starting from the oldest.
+    private int[] findMissingRanges(int first, int last) {
+	int[] ranges = new int[AckPacket.MAX_RANGES * 2];
+	int count = 0;
+	int seqNo = first;
+
+	while (seqNo <= last && count < ranges.length) {
+	    if (isReceived(seqNo)) {
+		++seqNo;
+		continue;
 	    }
 
-	    if (sequenceNumber == lastConsecutiveSeqNo + 1) {
-		updateLatestSequenceNumber();
+	    int start = seqNo;
+	    while (seqNo <= last && !isReceived(seqNo)) {
+		++seqNo;
 	    }
-	} finally {
-	    lock.unlock();
+	    ranges[count++] = start;
+	    ranges[count++] = seqNo - 1;
 	}
+
+	return Arrays.copyOf(ranges, count);
     }
 
+    // Indicates whether a packet has been received, whether or not it has
+    // been taken from the buffer yet.
+    private boolean isReceived(int sequenceNumber) {
+	if (sequenceNumber < nextPacketSeqNo) {
+	    return true;
+	}
+	DataPacket packet = buffer.get(sequenceNumber % buffer.length());
+	return (packet != null && packet.getSequenceNumber() == sequenceNumber);
+    }
+
+    // Runs on the server's timer. If there are still holes behind the highest packet
+    // received and nothing has been NACKed for a while, NACKs them all again
+    // in case the NACK or the retransmissions were lost.
+    public void renackHoles() {
+	AckSender sender = ackSender.get();
+	if (sender == null) {
+	    return;
+	}
+
+	int lastAck = lastConsecutiveSeqNo.get();
+	int highest = highestSeqNo.get();
+	if (highest <= lastAck + 1 ||
+	    System.nanoTime() - lastNackTime < TimeUnit.MILLISECONDS.toNanos(NACK_RETRY_MS)) {
+	    return;
+	}
+
+	int[] missing = findMissingRanges(lastAck + 1, highest - 1);
+	if (missing.length > 0) {
+	    lastNackTime = System.nanoTime();
+	    sender.sendNack(lastAck, missing);
+	}
+    }
+
+
+    // Answers the sender's offer of chunks with the ranges of chunks wanted,
+    // as pairs of first and last chunk index. Every packet of the offer has
+    // been received by now.
+    public void setWanted(int[] ranges) {
+	wantedAfter = highestSeqNo.get();
+	wanted = ranges;
+	sendWant();
+    }
+
+    // Runs on the server's timer. Sends the answer to the sender's offer again
+    // if the sender still hasn't moved past the offer.
+    public void resendWant() {
+	if (wanted != null &&
+	    System.nanoTime() - lastWantTime >= TimeUnit.MILLISECONDS.toNanos(WANT_RETRY_MS)) {
+	    sendWant();
+	}
+    }
+
+    private void sendWant() {
+	AckSender sender = ackSender.get();
+	int[] ranges = wanted;
+	if (sender == null || ranges == null) {
+	    return;
+	}
+	lastWantTime = System.nanoTime();
+	sender.sendWant(lastConsecutiveSeqNo.get(), ranges);
+    }
 
     private boolean packetIsInBufferWindow(int sequenceNumber) {
 
 	// Check if the sequence number is within the buffer window.
-	if (sequenceNumber < nextPacketSeqNo ||
-	    sequenceNumber >= nextPacketSeqNo + BUFFER_SIZE) {
+	int next = nextPacketSeqNo;
+	return (sequenceNumber >= next &&
+		sequenceNumber < next + windowCapacity.get());
+    }
+
+    // Places the packet in its slot. Returns false if the packet was already
+    // in the buffer, in which case the caller still owns the packet.
+    private boolean save(DataPacket packet) {
+	int sequenceNumber = packet.getSequenceNumber();
+	int slot = sequenceNumber % buffer.length();
+	if (!buffer.compareAndSet(slot, null, packet)) {
 	    return false;
 	}
 
-	// Check if the sequence number has already been saved in the buffer
-	Iterator<DataPacket> iter = buffer.iterator();
-	DataPacket packet = null;
-	while (iter.hasNext()) {
-	    packet = iter.next();
-	    if (packet.getSequenceNumber() == sequenceNumber) {
-		return false;
-	    }
+	// The buffer was closed while the packet was on its way in, so take it
+	// back out unless close() already released it.
+	if (closed) {
+	    return !buffer.compareAndSet(slot, packet, null);
 	}
 
-	return true;
-    }
+	// The window check raced with the consumer, and this copy of the packet
+	// was already handed out. Take it back out so the slot stays free. If it
+	// is already gone, it was this copy that the consumer took.
+	if (sequenceNumber < nextPacketSeqNo) {
+	    return !buffer.compareAndSet(slot, packet, null);
+	}
 
-    private void save(DataPacket packet) {
-	buffer.add(packet);
+	return true;
     }
 
-    // Goes through the buffer and determines where the last consecutive
-    // sequence number received was.
+    // Advances the last consecutive sequence number received for as long as the
+    // following packets are in the buffer. A packet that has already been taken
+    // from the buffer was received too. Several workers may advance it at once.
     private void updateLatestSequenceNumber() {
 	while (true) {
-	    int i;
-	    for (i = 0; i < buffer.size(); ++i) {
-		DataPacket packet = (DataPacket)buffer.get(i);
-
-		if (packet.getSequenceNumber() == lastConsecutiveSeqNo + 1) {
-		    lastConsecutiveSeqNo += 1;
-		    break;
-		}
-	    }
+	    int last = lastConsecutiveSeqNo.get();
+	    int next = last + 1;
 
-	    if (i == buffer.size()) {
+	    DataPacket packet = buffer.get(next % buffer.length());
+	    boolean received = ((packet != null && packet.getSequenceNumber() == next) ||
+				next < nextPacketSeqNo);
+	    if (!received) {
 		break;
 	    }
+
+	    lastConsecutiveSeqNo.compareAndSet(last, next);
 	}
     }
 
-    // Sends an acknowledgement of the last consecutive sequence number received.
-    public void sendLastAck(int count) {
-	for (int i = 0; i < count; ++i) {
-	    ackSender.sendAck(lastConsecutiveSeqNo);
+    // Sends an acknowledgement of the last consecutive sequence number received,
+    // unless the worker that stored the last packet has already sent it.
+    // Everything already taken from the buffer counts, even if that worker has
+    // not caught up yet.
+    public void sendLastAck() {
+	AckSender sender = ackSender.get();
+	int lastAck = Math.max(lastConsecutiveSeqNo.get(), nextPacketSeqNo - 1);
+	lastConsecutiveSeqNo.accumulateAndGet(lastAck, Math::max);
+	if (sender.getLastSentAck() < lastAck) {
+	    sender.sendAck(lastAck);
 	}
     }
 
-    public void stopListening() {
-
-	finishedReceiving = true;
+    // Keeps listening after the last packet so that any retransmissions from
+    // a sender that missed the final ACK get ACKed again. Returns once the
+    // sender's close packet arrives, nothing has arrived for a while, or the
+    // linger runs out.
+    public void linger() {
+	lingering = Thread.currentThread();
+	long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(LINGER_MAX_MS);
+	long quiet = TimeUnit.MILLISECONDS.toNanos(LINGER_QUIET_MS);
+
+	while (!closeReceived && !closed) {
+	    long now = System.nanoTime();
+	    long wait = Math.min(lastReceiveTime + quiet, deadline) - now;
+	    if (wait <= 0) {
+		break;
+	    }
+	    LockSupport.parkNanos(this, wait);
+	}
 
-	// Close the socket that it is listening on as a way to
-	// unblock the thread.
-	socket.close(); 
+	lingering = null;
     }
-}
\ No newline at end of file
+}
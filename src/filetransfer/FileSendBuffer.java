@@ -1,164 +1,589 @@
 package filetransfer;
 
 import java.net.DatagramSocket;
-import java.net.DatagramPacket;
-import java.net.InetAddress;
-import java.util.concurrent.Semaphore;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
 import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
 import java.util.Iterator;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
 import java.net.SocketException;
-import java.io.Closeable;
 import java.io.IOException;
-import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 // The FileSendBuffer queues up packets to send over the network, retransmitting
 // as necessary until the appropriate acknowledgement is received.
-public class FileSendBuffer extends Thread implements Closeable {
-
+//
+// The buffer doesn't send on its own. The client's TransmitScheduler asks it
+// for one packet at a time, in turn with the client's other transfers, and
+// caps its window at the transfer's share of the client's memory. The buffer
+// is only ever touched by the scheduler's thread. The AckReceiver hands over
+// new ACK values and resend requests through atomic and lock-free queues, and
+// the scheduler's thread applies them before choosing the next packet.
+//
+// The window is capped by the bandwidth-delay product measured during the
+// transfer, up to a memory ceiling, and the socket's send buffer grows with it.
+//
+// Packets are sent straight from their slots in the slab through a datagram
+// channel, and their slots are released as soon as they are acknowledged. The
+// channel is shared by every transfer a client is running, and anything left
+// in the window when the buffer is stopped is released.
+//
+// Loss is decided by time, after RACK, rather than by duplicate ACKs, so that
+// packets the network reorders aren't sent twice. Packets the receiver NACKs,
+// or that a repeated ACK points at, are only suspects. A NACK lists every
+// hole the receiver still has unless there are too many to fit, so a packet
+// that arrives late stops being a suspect with the receiver's next complete
+// NACK. Every ACK echoes the newest packet to arrive, and a suspect is taken
+// as lost once a packet sent after it has arrived and a round trip, plus a
+// reordering window, has passed since it was sent. Lost packets jump to the
+// front of the send order. The reordering window starts at a quarter of the
+// minimum round trip time, and grows each time a retransmission turns out to
+// be spurious, up to the smoothed round trip time; after 16 recoveries
+// without one it drops back.
+//
+// A retransmission is spurious if an ACK for the packet arrives sooner after
+// it than the minimum round trip time, since the ACK must then have been for
+// the first copy. Each recovery counts the packets it retransmits, and if
+// every one of them turns out to be spurious, the window reductions it made
+// are undone.
+//
+// A stream may leave the window empty for a long time while its source has
+// nothing for us. Keepalives are sent every so often in the meantime, so the
+// receiver knows we are still here.
+//
+// A background transfer has its window sized by a LedbatController as well,
+// from the one-way delays the receivers' ACKs echo back, so that it gets out
+// of the way of any other traffic on the path.
+//
+// A multipath transfer sends over several SendPaths at once, each with its
+// own round trip time and congestion window. Each packet goes out on the path
+// with room that should get it there soonest, and a packet that has to be
+// sent again goes out on a different path if one has room, in case its own
+// path is the one losing packets.
+public class FileSendBuffer {
+
+    private DatagramChannel channel;
     private DatagramSocket socket;
-    private InetAddress destination;
-    private int port;
-    private Semaphore bufferSlots;
-    private ArrayList<SentPacket> buffer;
-    private boolean doneTransfer;
-    private ReentrantLock lock;
-    private AckReceiver ackReceiver;
-
-    private int lastAckSeqNo;
-    private int nextSeqNo;
+    private InetSocketAddress destination;
+    private int sessionId;
+    private PacketCipher cipher;
+    private PacketRing ring;
+    private SegmentSlab slab;
+    private TreeMap<Integer, SentPacket> buffer;
+    private TreeSet<SentPacket> sendOrder;
+    private volatile boolean doneTransfer;
+    private TransmitScheduler scheduler;
+    private CountDownLatch finished;
+    private int windowLimit;
+    private long lastSendTime;
+    private boolean allQueued;
+    private volatile long idleTime;
+    private int keepAlivesSent;
+    private ArrayList<SendPath> paths;
+
+    private AtomicInteger lastAckSeqNo;
+    private volatile int peerWindowEdge;
+    private long windowBlockedSince;
+    private ConcurrentLinkedQueue<int[]> resendRequests;
+    private HashMap<Integer, TreeMap<Integer, Integer>> missing;
+    private TreeMap<Integer, SentPacket> suspects;
+    private long rackSentTime;
+    private long rackRtt;
+    private int reorderMultiplier;
+    private int reorderPersist;
+    private int recoveryPoint;
+    private int undoRetransmits;
     private int bufferSize;
+    private int maxBufferSize;
+
+    private BandwidthEstimator estimator;
+    private LedbatController ledbat;
+    private ConcurrentLinkedQueue<long[]> delaySamples;
+    private long memoryCeiling;
+    private int requestedSendBuffer;
+    private long lastTuneTime;
 
     private long totalDataSent;
+    private long bytesAcknowledged;
+    private TransferListener listener;
 
-    private static final long ACK_TIMEOUT = 100;
-    private static final int MIN_BUFFER_SIZE = 2;
+    private static final long ACK_TIMEOUT_NANOS = 100000000;
+    private static final long KEEPALIVE_NANOS = 5000000000L;
+    private static final int INITIAL_BUFFER_SIZE = 10;
     private static final int MAX_BUFFER_SIZE = 50;
     private static final int BUFFER_STEP_SIZE = 2;
-
-    // Initializes the buffer to send packets to the supplied destination.
-    public FileSendBuffer(InetAddress destination, int port, AckReceiver ackReceiver) throws SocketException {
-
-	this.socket	  = new DatagramSocket();
+    private static final int INITIAL_PEER_WINDOW = 64;
+    private static final long WINDOW_PROBE_NANOS = 200000000;
+    private static final int REORDER_PERSIST = 16;
+    private static final int NO_RECOVERY = -1;
+    private static final int PACKET_SIZE = Sender.SEGMENT_SIZE + DataPacket.HEADER_SIZE;
+
+    // Packets are sent in order of the fewest transmissions so far, and then
+    // by the smallest sequence number.
+    private static final Comparator<SentPacket> SEND_ORDER =
+	Comparator.<SentPacket>comparingInt(packet -> packet.sendCount)
+	.thenComparingInt(packet -> packet.sequenceNumber);
+
+    // Initializes the buffer to send the packets of a session, taken from the
+    // ring, to the supplied destination over the given channel whenever the
+    // scheduler gives it a turn. The window will never hold more than
+    // memoryCeiling bytes of the slab. The listener, if there is one, hears how
+    // much of the data has been acknowledged. If the transfer is encrypted, the
+    // close packet is sealed with its cipher.
+    public FileSendBuffer(DatagramChannel channel, InetSocketAddress destination, int sessionId,
+			  PacketCipher cipher, PacketRing ring, SegmentSlab slab, long memoryCeiling,
+			  TransmitScheduler scheduler, TransferListener listener) throws IOException {
+
+	this.channel	  = channel;
+	this.socket	  = channel.socket();
 	this.destination  = destination;
-	this.port	  = port;
+	this.sessionId	  = sessionId;
+	this.cipher	  = cipher;
 	this.doneTransfer = false;
-	this.nextSeqNo	  = 0;
-	this.ackReceiver  = ackReceiver;
-
-	this.buffer	  = new ArrayList<SentPacket>();
-	this.bufferSlots  = new Semaphore(MIN_BUFFER_SIZE);
-	this.lock	  = new ReentrantLock();
+	this.scheduler	  = scheduler;
+	this.finished	  = new CountDownLatch(1);
+	this.windowLimit  = Integer.MAX_VALUE;
+	this.lastSendTime = 0;
+	this.allQueued	  = false;
+	this.idleTime	  = System.nanoTime();
+	this.keepAlivesSent = 0;
+	this.paths	  = null;
+	this.ring	  = ring;
+	this.slab	  = slab;
+
+	this.buffer	   = new TreeMap<Integer, SentPacket>();
+	this.sendOrder	   = new TreeSet<SentPacket>(SEND_ORDER);
+	this.bufferSize	   = INITIAL_BUFFER_SIZE;
+	this.maxBufferSize = MAX_BUFFER_SIZE;
+
+	this.lastAckSeqNo   = new AtomicInteger(-1);
+	this.peerWindowEdge = INITIAL_PEER_WINDOW - 1;
+	this.windowBlockedSince = 0;
+	this.resendRequests = new ConcurrentLinkedQueue<int[]>();
+	this.missing	    = new HashMap<Integer, TreeMap<Integer, Integer>>();
+	this.suspects	    = new TreeMap<Integer, SentPacket>();
+	this.rackSentTime   = 0;
+	this.rackRtt	    = 0;
+	this.reorderMultiplier = 1;
+	this.reorderPersist = 0;
+	this.recoveryPoint  = NO_RECOVERY;
+	this.undoRetransmits = 0;
+
+	this.estimator	   = new BandwidthEstimator();
+	this.ledbat	   = null;
+	this.delaySamples  = new ConcurrentLinkedQueue<long[]>();
+	this.memoryCeiling = memoryCeiling;
+	this.requestedSendBuffer = socket.getSendBufferSize();
+	this.lastTuneTime  = 0;
 
 	this.totalDataSent = 0;
+	this.bytesAcknowledged = 0;
+	this.listener	   = listener;
     }
 
 
-    // Adds a new packet to the queue to be sent to the receiver. If the buffer queue
-    // is full, this method will block until space becomes available.
-    public void sendPacket(DataPacket packet) {
+    // Moves prepared packets from the ring into the buffer while there is room
+    // in both our window and the one advertised by the receiver. Only the sending
+    // thread takes packets off the ring.
+    private void fillBuffer() {
+	while (buffer.size() < windowSize()) {
+	    SentPacket packet = ring.peek();
+	    if (packet == null) {
+		break;
+	    }
 
-	// A semaphore value is used to represent available slots in the buffer queue.
-	// If there are no slots available, trying to acquire the semaphore will result
-	// in the thread being blocked.
-	boolean slotAcquired = false;
-	while (!slotAcquired) {
-	    try {
-		bufferSlots.acquire();
-		slotAcquired = true;
-	    } catch (InterruptedException e) {
-		continue;
+	    if (packet.sequenceNumber > peerWindowEdge && !shouldProbeWindow()) {
+		break;
 	    }
-	}
 
-	// Go ahead and add the packet to the buffer. A lock is used to synchronize access
-	// to the list.
-	lock.lock();
-	try {
-	    // A sequence number is assigned to the packet and then it is serialized for
-	    // transfer over the network. The serialized data is stored in a SentPacket
-	    // structure so it does not have to be serialized again if we have to re-transmit.
-	    packet.setSequenceNumber(nextSeqNo);
-	    ++nextSeqNo;
+	    ring.poll();
+	    buffer.put(packet.sequenceNumber, packet);
+	    sendOrder.add(packet);
+	    allQueued = packet.isLastPacket;
+	}
+    }
 
-	    SentPacket packetInfo = new SentPacket();
-	    packetInfo.data = packet.serialize();
-	    packetInfo.sequenceNumber = packet.getSequenceNumber();
-	    packetInfo.sendCount = 0;
-	    packetInfo.isInitPacket = packet.isInitPacket();
-	    packetInfo.isLastPacket = packet.isLastPacket();
+    // Decides whether to send a packet past the receiver's window. This only
+    // happens when the window has been closed and everything sent has been
+    // acknowledged for a while, in case the update reopening it was lost.
+    private boolean shouldProbeWindow() {
+	if (!buffer.isEmpty()) {
+	    windowBlockedSince = 0;
+	    return false;
+	}
 
-	    buffer.add(packetInfo);
-	} finally {
-	    lock.unlock();
+	long now = System.nanoTime();
+	if (windowBlockedSince == 0) {
+	    windowBlockedSince = now;
+	    return false;
 	}
 
+	if (now - windowBlockedSince < WINDOW_PROBE_NANOS) {
+	    return false;
+	}
 
+	System.out.println("[debug] probing closed window");
+	windowBlockedSince = 0;
+	return true;
     }
 
     // Informs the buffer of the last acknowledged packet so it may discard any packets
-    // it does not need to retransmit again.
-    public void setLastAck(int lastAckValue) {
+    // it does not need to retransmit again, along with how many packets after that the
+    // receiver has room for. The ACK value only ever moves forward, and the packets are
+    // discarded by the sending thread the next time around its loop.
+    public void setLastAck(int lastAckValue, int window) {
+	int previous = lastAckSeqNo.getAndAccumulate(lastAckValue, Math::max);
+
+	// An ACK that arrives late says nothing about the current window.
+	if (lastAckValue >= previous) {
+	    peerWindowEdge = lastAckValue + window;
+	}
+	scheduler.wake();
+    }
 
-	// Go through the buffer and discard any of the packets that have a sequence
-	// number equal to or less than the last ACK value.
-	lock.lock();
-	try {
+    // Discards any of the packets that have a sequence number equal to or less
+    // than the last ACK value, and feeds the round trip time and delivery rate
+    // they show into the estimator. Returns the number of packets discarded.
+    private int retireAckedPackets() {
+	int lastAck = lastAckSeqNo.get();
+	int retired = 0;
+	long bytes = 0;
+	SentPacket newest = null;
+	long now = System.nanoTime();
+
+	Map.Entry<Integer, SentPacket> entry;
+	while ((entry = buffer.firstEntry()) != null && entry.getKey() <= lastAck) {
+	    SentPacket packet = entry.getValue();
+	    delivered(packet, now);
+	    buffer.pollFirstEntry();
+	    sendOrder.remove(packet);
+	    suspects.remove(packet.sequenceNumber);
+
+	    // The path the packet was last sent on gets the credit for it.
+	    if (paths != null && packet.path >= 0) {
+		leavePath(packet);
+		paths.get(packet.path).acked(sentOnce(packet) ? now - packet.lastSentTime : 0, now);
+	    }
 
-	    Iterator<SentPacket> iter = buffer.iterator();
-	    while (iter.hasNext()) {
-		SentPacket packet = iter.next();
-		if (packet.sequenceNumber <= lastAckValue) {
-		    iter.remove();
-		    bufferSlots.release();
-		}
+	    bytes += packet.data.remaining();
+	    bytesAcknowledged += packet.payloadLength;
+	    slab.release(packet.slot);
+	    newest = packet;
+	    ++retired;
+	}
+
+	// The recovery is over once everything that was sent when it started
+	// has been acknowledged.
+	if (recoveryPoint != NO_RECOVERY && lastAck >= recoveryPoint) {
+	    endRecovery();
+	}
+
+	if (retired > 0) {
+	    // Only a packet that was sent once gives a trustworthy round trip time.
+	    if (sentOnce(newest)) {
+		estimator.addRttSample(now - newest.lastSentTime, now);
+	    }
+	    estimator.addDelivered(bytes, now);
+	    autoTune(now);
+	    if (ledbat != null) {
+		ledbat.onAcked(retired, buffer.size() + retired, estimator.getSmoothedRtt(), now);
+	    }
+
+	    if (listener != null) {
+		listener.progress(bytesAcknowledged);
 	    }
-	} finally {
-	    lock.unlock();
 	}
+
+	return retired;
     }
 
-    // While running, this thread will continually transmit packets that are in the send buffer queue.
-    public void run() {
+    // Gets the most packets the window may hold right now.
+    private int windowSize() {
+	int size = Math.min(bufferSize, windowLimit);
+	return (ledbat != null) ? Math.min(size, ledbat.getWindow()) : size;
+    }
 
-	while (!doneTransfer) {
+    // Adds another path to send over, through the given channel to the given
+    // destination. The channel and destination the buffer was created with
+    // are the first path, and carry the init packet. Must be called before
+    // the buffer is handed to the scheduler.
+    public void addPath(DatagramChannel pathChannel, InetSocketAddress pathDestination) {
+	if (paths == null) {
+	    paths = new ArrayList<SendPath>();
+	    paths.add(new SendPath(channel, destination));
+	}
+	paths.add(new SendPath(pathChannel, pathDestination));
+    }
+
+    // Stops counting the copy of the packet last sent against its path's
+    // window, once it has been acknowledged, given up for lost or sent again.
+    // The packet still remembers the path.
+    private void leavePath(SentPacket packet) {
+	if (packet.path >= 0) {
+	    paths.get(packet.path).left(packet);
+	}
+    }
 
-	    // Gets the next packet to send from the buffer, which is determined based on the 
-	    // sequence number and the number of times the packet has already been transmitted. 
-	    SentPacket nextPacket = getNextPacketToSend();
-	    if (nextPacket == null) {
+    // Picks the path to send a packet over, or returns null if none of them
+    // has room. The init packet always goes over the first path, since that
+    // is the only one the receiver knows until the init packet arrives.
+    private SendPath choosePath(SentPacket packet) {
+	long now = System.nanoTime();
+	for (SendPath path : paths) {
+	    path.expire(now);
+	}
+	if (packet.isInitPacket) {
+	    return paths.get(0);
+	}
 
-		// No packets to send.
+	SendPath best = null;
+	SendPath previous = null;
+	for (int i = 0; i < paths.size(); ++i) {
+	    SendPath path = paths.get(i);
+	    if (!path.hasRoom()) {
+		continue;
+	    }
+	    if (i == packet.path) {
+		previous = path;
 		continue;
 	    }
+	    if (best == null || path.getDeliveryTime() < best.getDeliveryTime()) {
+		best = path;
+	    }
+	}
+	return (best != null) ? best : previous;
+    }
 
-	    // Wrap up the data in a UDP datagram and send it out.
-	    DatagramPacket udpPacket = new DatagramPacket(nextPacket.data, nextPacket.data.length, destination, port);
-	    try {
-		socket.send(udpPacket);
-	    } catch (IOException e) {
+    // Makes this a background transfer, which holds the queuing delay it adds
+    // to the path under the given target. Must be called before the buffer is
+    // handed to the scheduler.
+    public void setBackground(long targetMillis) {
+	this.ledbat = new LedbatController(targetMillis);
+    }
+
+    // Hands over a delay sample from an ACK of the given receiver, which got
+    // the packet with the given sequence number at the given time by its own
+    // clock, in microseconds. Ignored unless this is a background transfer.
+    public void addDelaySample(int receiver, int sequenceNumber, int receivedTime) {
+	delaySamples.offer(new long[] { receiver, sequenceNumber, receivedTime });
+    }
+
+    // Matches the samples handed over with the packets they echo, which have
+    // been delivered. For a background transfer, a packet that was sent once
+    // also says when the echoed copy was sent. The packet has to still be in
+    // the window.
+    private void applyDelaySamples() {
+	long[] sample;
+	while ((sample = delaySamples.poll()) != null) {
+	    SentPacket packet = buffer.get((int)sample[1]);
+	    if (packet == null) {
+		continue;
+	    }
+	    long now = System.nanoTime();
+	    delivered(packet, now);
+	    if (ledbat == null || !sentOnce(packet)) {
 		continue;
 	    }
+	    int sentTime = (int)TimeUnit.NANOSECONDS.toMicros(packet.lastSentTime);
+	    ledbat.addDelaySample((int)sample[0], (int)sample[2] - sentTime, now);
+	}
+    }
+
+    // Tells whether the packet's round trip time can be trusted, because only
+    // one copy of it was ever sent.
+    private static boolean sentOnce(SentPacket packet) {
+	return packet.sendCount == 1 && !packet.retransmitted;
+    }
+
+    // Notes that the packet has arrived. The newest packet known to have
+    // arrived, by when it was sent, is what suspects are judged against. A
+    // retransmitted packet that arrives too soon after it was sent again, or
+    // before it was, must have been the first copy, so the retransmission was
+    // spurious and says nothing of the round trip.
+    private void delivered(SentPacket packet, long now) {
+	if (packet.retransmitted) {
+	    long minRtt = estimator.getMinRtt();
+	    if (packet.sendCount == 0 || now - packet.lastSentTime < minRtt) {
+		spurious(packet);
+		return;
+	    }
+	}
+
+	if (packet.sendCount > 0 && packet.lastSentTime > rackSentTime) {
+	    rackSentTime = packet.lastSentTime;
+	    rackRtt = now - packet.lastSentTime;
+	}
+    }
+
+    // Sets the most packets the window may hold, which is this transfer's
+    // share of the client's memory. Only called by the scheduler.
+    public void setWindowLimit(int packets) {
+	this.windowLimit = packets;
+    }
+
+    // Sends the next packet that is due, if there is one, and returns its size
+    // in bytes. Returns 0 if there is nothing to send right now. Only called by
+    // the scheduler, on its thread.
+    public int sendNext() {
 
-	    totalDataSent += udpPacket.getLength();
+	if (doneTransfer) {
+	    return 0;
+	}
+
+	// Apply anything the AckReceiver has handed over, then top up the
+	// buffer with any packets the preparer has ready. If everything in the
+	// window had already been sent, an ACK means the window was what held
+	// us back, so it grows by the number of packets the ACK covered.
+	boolean allSent = !sendOrder.isEmpty() && sendOrder.first().sendCount > 0;
+	applyDelaySamples();
+	int retired = retireAckedPackets();
+	if (allSent && retired > 0) {
+	    expandBuffer(retired);
+	}
+	applyResendRequests();
+	detectLosses(System.nanoTime());
+	fillBuffer();
+	if (buffer.isEmpty()) {
+	    idleTime = System.nanoTime();
+	}
+
+	// Gets the next packet to send from the buffer, which is determined based on the 
+	// sequence number and the number of times the packet has already been transmitted. 
+	SentPacket nextPacket = getNextPacketToSend();
+	if (nextPacket == null) {
+	    return sendKeepAlive();
+	}
 
-	    // Display some info about the data.
-	    String startIndex;
-	    if (nextPacket.isInitPacket) {
-		startIndex = "start";
-	    } else if (nextPacket.isLastPacket) {
-		startIndex = "end";
+	// Pick the path for the packet, if there is more than one.
+	SendPath path = null;
+	if (paths != null) {
+	    path = choosePath(nextPacket);
+	    if (path == null) {
+		return 0;
+	    }
+	}
+
+	// Send the packet straight out of its slot. A duplicate is sent so the
+	// slot's position is left alone for any retransmission.
+	int sent;
+	try {
+	    if (path != null) {
+		sent = path.getChannel().send(nextPacket.data.duplicate(), path.getDestination());
 	    } else {
-		startIndex = Integer.toString((nextPacket.sequenceNumber - 1) * Sender.SEGMENT_SIZE);
+		sent = channel.send(nextPacket.data.duplicate(), destination);
 	    }
+	} catch (IOException e) {
+	    return 0;
+	}
+	long now = System.nanoTime();
+
+	// The copy sent before, if any, no longer counts against its path.
+	if (path != null) {
+	    leavePath(nextPacket);
+	    nextPacket.path = paths.indexOf(path);
+	    nextPacket.lastSentTime = now;
+	    path.sent(nextPacket, now);
+	}
+
+	totalDataSent += sent;
+
+	// Display some info about the data.
+	String startIndex;
+	if (nextPacket.isInitPacket) {
+	    startIndex = "start";
+	} else if (nextPacket.isLastPacket) {
+	    startIndex = "end";
+	} else {
+	    startIndex = Integer.toString((nextPacket.sequenceNumber - 1) * Sender.SEGMENT_SIZE);
+	}
+
+	// Use the err output to display immediately.
+	System.out.format("[send data] %s (%d)\n", 
+			  startIndex,
+			  nextPacket.data.remaining() - DataPacket.HEADER_SIZE);
+
+	// Re-insert the packet so it sorts by its new send count.
+	sendOrder.remove(nextPacket);
+	++nextPacket.sendCount;
+	nextPacket.lastSentTime = now;
+	lastSendTime = now;
+	sendOrder.add(nextPacket);
+	return sent;
+    }
+
+    // Sends a keepalive if the window is empty and nothing has gone out for
+    // KEEPALIVE_NANOS, so the receiver doesn't give up on a stream whose source
+    // has nothing for us yet. Returns the number of bytes sent.
+    private int sendKeepAlive() {
+	if (!buffer.isEmpty() || allQueued || lastSendTime == 0 ||
+	    System.nanoTime() - lastSendTime < KEEPALIVE_NANOS) {
+	    return 0;
+	}
+
+	DataPacket keepAlive = new DataPacket(null, 0, false);
+	keepAlive.setKeepAlive(true);
+	keepAlive.setSequenceNumber(keepAlivesSent++);
+	keepAlive.setSessionId(sessionId);
+	keepAlive.setCipher(cipher);
+
+	int sent;
+	try {
+	    sent = channel.send(ByteBuffer.wrap(keepAlive.serialize()), destination);
+	} catch (IOException e) {
+	    return 0;
+	}
+
+	System.out.println("[send keepalive]");
+	totalDataSent += sent;
+	lastSendTime = System.nanoTime();
+	return sent;
+    }
+
+    // Gets the time, from System.nanoTime(), that the window was last found
+    // empty, with nothing waiting on an ACK.
+    public long getIdleTime() {
+	return idleTime;
+    }
 
-	    // Use the err output to display immediately.
-	    System.out.format("[send data] %s (%d)\n", 
-			      startIndex,
-			      nextPacket.data.length - DataPacket.HEADER_SIZE);
+    // Tells whether the window has room that is only waiting on the preparer
+    // for packets, as opposed to waiting on ACKs.
+    public boolean isWaitingForPackets() {
+	return !allQueued && ring.isEmpty() && buffer.size() < windowSize();
+    }
+
+    // Tells whether the buffer has been asked to stop sending.
+    public boolean isStopping() {
+	return doneTransfer;
+    }
 
-	    ++nextPacket.sendCount;
+    // Gives back the slots of anything that was never acknowledged, and wakes
+    // anyone waiting for the buffer to stop. Called once by the scheduler, after
+    // which the buffer is never touched again.
+    public void finish() {
+	if (paths != null) {
+	    for (SendPath path : paths) {
+		System.out.println("[debug] path " + path);
+	    }
+	}
+	for (SentPacket packet : buffer.values()) {
+	    slab.release(packet.slot);
 	}
+	buffer.clear();
+	sendOrder.clear();
+	finished.countDown();
+    }
 
+    // Waits for the buffer to be stopped and its slots given back.
+    public void join() throws InterruptedException {
+	finished.await();
     }
 
     // Returns the amount of data that has been sent so far.
@@ -170,109 +595,313 @@ public class FileSendBuffer extends Thread implements Closeable {
     // number of times it has been transmitted in the past. Returns null when no packets
     // should be transmitted.
     private SentPacket getNextPacketToSend() {
-	SentPacket packetToSend = null;
-	    
-	lock.lock();
-	try {
-	    // Iterate through the buffer and choose the packet with the smallest send
-	    // count. If there is a tie, then choose the packet with the smallest sequence
-	    // number. If there is a tie again, just choose the first one.
-	    Iterator<SentPacket> iter = buffer.iterator();
-	    while (iter.hasNext()) {
-		SentPacket packet = iter.next();
-		if (packetToSend == null) {
-		    packetToSend = packet;
-		    continue;
-		}
 
-		if (packet.sendCount < packetToSend.sendCount) {
-		    packetToSend = packet;
-		    continue;
-		}
-
-		if (packet.sendCount == packetToSend.sendCount &&
-		    packet.sequenceNumber < packetToSend.sequenceNumber) {
-		    packetToSend = packet;
-		}
-	    }
-	} finally {
-	    lock.unlock();
-	}
+	// Choose the packet with the smallest send count. If there is a tie, then
+	// choose the packet with the smallest sequence number.
+	SentPacket packetToSend = sendOrder.isEmpty() ? null : sendOrder.first();
 
 	// If this packet has been sent before, that means that all of the packets
-	// in the buffer have already been sent. Try waiting for an ACK to come in
-	// for a short period. If an ACK is received, then we can assume that we can
-	// increase our buffer to fill in that empty space. If no ACK comes in, we
-	// assume that the packet was lost or corrupted and we can send it again.
+	// in the buffer have already been sent. Give an ACK or a NACK a short
+	// while to come in, counted from the last time we sent anything; the
+	// scheduler serves the other transfers in the meantime. If nothing comes
+	// in, we assume that the packet was lost or corrupted and send it again.
 	if (packetToSend != null &&
-	    packetToSend.sendCount > 0) {
-
-	    if (ackReceiver.waitForAck(packetToSend.sequenceNumber, ACK_TIMEOUT)) {
-
-		// Ack received, so we can expand the buffer a bit and we don't have
-		// to resend this packet.
-		expandBuffer();
-		return null;
+	    packetToSend.sendCount > 0 &&
+	    System.nanoTime() - lastSendTime < ACK_TIMEOUT_NANOS) {
+	    return null;
+	}
 
-	    } else {
-		return packetToSend;
-	    }
+	// Nothing came in, so we take it as a loss.
+	if (packetToSend != null && packetToSend.sendCount > 0) {
+	    lost(packetToSend, System.nanoTime());
 	}
 
 	return packetToSend;
     }
 
-    // Signals the thread to stop sending packets from the buffer by closing
-    // the socket.
+    // Tells the receiver that the final ACK for the transfer, ending with the
+    // given sequence number, has arrived, so it doesn't have to wait around
+    // for retransmissions. If this is lost, the receiver just waits a little.
+    public void sendClose(int lastSequenceNumber) {
+	DataPacket closePacket = new DataPacket(lastSequenceNumber);
+	closePacket.setSessionId(sessionId);
+	closePacket.setCipher(cipher);
+	ByteBuffer packet = ByteBuffer.wrap(closePacket.serialize());
+	try {
+	    channel.send(packet, destination);
+	} catch (IOException e) {
+	    System.out.println("[debug] could not send close: " + e.getMessage());
+	}
+    }
+
+    // Signals the scheduler to stop sending packets from the buffer and give
+    // back its slots. The channel is left open for the client's other transfers.
     public void stopSending() {
 	doneTransfer = true;
-	socket.close();
+	scheduler.wake();
     }
 
-    // Closes the underlying socket.
-    public void close() {
-	socket.close();
+    // Increases the amount of packets that can sit in the queue at one time,
+    // by a step for each packet that was acknowledged.
+    private void expandBuffer(int packetsAcked) {
+	if (bufferSize <= maxBufferSize) {
+	    System.out.println("[debug] expanding buffer");
+	    bufferSize = Math.min(bufferSize + BUFFER_STEP_SIZE * Math.max(1, packetsAcked),
+				  maxBufferSize + BUFFER_STEP_SIZE);
+	}
     }
 
-    // Increases the amount of packets that can sit in the queue at one time.
-    private void expandBuffer() {
-	lock.lock();
+    // Raises the cap on the window, and the socket's send buffer, to twice the
+    // measured bandwidth-delay product so the window never limits a fast path.
+    // Both stay within the memory ceiling. Runs at most once per round trip.
+    private void autoTune(long now) {
+	long rtt = estimator.getSmoothedRtt();
+	if (rtt == 0 || now - lastTuneTime < rtt) {
+	    return;
+	}
+	lastTuneTime = now;
+
+	// Every packet in the window holds a whole slot, whatever its size.
+	long targetBytes = Math.min(2 * estimator.getBdpBytes(), memoryCeiling);
+	int targetPackets = (int)Math.min(targetBytes / PACKET_SIZE, memoryCeiling / SegmentSlab.SLOT_SIZE);
+	if (targetPackets > maxBufferSize) {
+	    maxBufferSize = targetPackets;
+	    System.out.format("[debug] window cap raised to %d packets (rtt %d us, rate %.0f KB/s)\n",
+			      maxBufferSize, estimator.getMinRtt() / 1000,
+			      estimator.getDeliveryRate() / 1024);
+	}
 
-	try {
-	    if (buffer.size() + bufferSlots.availablePermits() <= MAX_BUFFER_SIZE) {
-		System.out.println("[debug] expanding buffer");
-		bufferSlots.release(BUFFER_STEP_SIZE);
+	// Another transfer may have grown the shared socket's buffer further already.
+	int sendBuffer = (int)Math.min(targetBytes, Integer.MAX_VALUE);
+	if (sendBuffer > requestedSendBuffer) {
+	    requestedSendBuffer = sendBuffer;
+	    try {
+		if (socket.getSendBufferSize() >= sendBuffer) {
+		    return;
+		}
+		socket.setSendBufferSize(sendBuffer);
+		int actual = socket.getSendBufferSize();
+		if (actual < sendBuffer) {
+		    System.out.format("[debug] kernel clamped send buffer to %d bytes (asked for %d)\n",
+				      actual, sendBuffer);
+		}
+	    } catch (SocketException e) {
+		System.out.println("[debug] could not resize send buffer: " + e.getMessage());
 	    }
-	} finally {
-	    lock.unlock();
 	}
     }
 
-    // Marks a packet's send count to 0 so that it will be prioritized
-    // in the send buffer.
-    public void resendPacket(int sequenceNumber) {
+    // Reports every packet in the given ranges, as pairs of first and last
+    // sequence numbers, as missing at the given receiver. If complete is set,
+    // the ranges are every hole the receiver has, and replace what it reported
+    // before; otherwise they are merged into it. The packets are resent once
+    // enough time has passed for them to count as lost. The report is picked
+    // up by the sending thread the next time around its loop.
+    public void reportMissing(int receiver, int[] ranges, boolean complete) {
+	int[] report = new int[ranges.length + 2];
+	report[0] = receiver;
+	report[1] = complete ? 1 : 0;
+	System.arraycopy(ranges, 0, report, 2, ranges.length);
+	resendRequests.offer(report);
+	scheduler.wake();
+    }
 
-	// Here we assume that if one packet was lost, maybe the next
-	// packet was lost too. So we mark the sequence number given
-	// and the next packet as never sent so that they'll both
-	// be sent again. In general, it reduced the likelihood of
-	// getting snagged by timeouts when a chunk of packets went missing
-	// but reduced the total efficiency as well.
-	int start = sequenceNumber;
-	int end = sequenceNumber + 1;
+    // Applies any pending missing reports, and makes suspects of the sent
+    // packets that any receiver is missing. Each receiver's holes are kept as
+    // ranges that don't overlap, keyed by their first sequence number, and
+    // anything the cumulative ACK has passed is dropped.
+    private void applyResendRequests() {
+	if (resendRequests.isEmpty()) {
+	    return;
+	}
+	int lastAck = lastAckSeqNo.get();
+
+	int[] report;
+	while ((report = resendRequests.poll()) != null) {
+	    TreeMap<Integer, Integer> holes = missing.get(report[0]);
+	    if (holes == null) {
+		holes = new TreeMap<Integer, Integer>();
+		missing.put(report[0], holes);
+	    } else if (report[1] == 1) {
+		holes.clear();
+	    }
+	    for (int i = 2; i + 1 < report.length; i += 2) {
+		addHole(holes, Math.max(report[i], lastAck + 1), report[i + 1]);
+	    }
+	}
 
-	lock.lock();
-	try {
-	    Iterator<SentPacket> iter = buffer.iterator();
-	    while (iter.hasNext()) {
-		SentPacket packet = iter.next();
-		if (packet.sequenceNumber >= start &&
-		    packet.sequenceNumber <= end) {
-		    packet.sendCount = 0;
+	suspects.clear();
+	for (TreeMap<Integer, Integer> holes : missing.values()) {
+	    dropAckedHoles(holes, lastAck);
+	    for (Map.Entry<Integer, Integer> hole : holes.entrySet()) {
+		for (SentPacket packet : buffer.subMap(hole.getKey(), true, hole.getValue(), true).values()) {
+		    if (packet.sendCount > 0) {
+			suspects.put(packet.sequenceNumber, packet);
+		    }
 		}
 	    }
-	} finally {
-	    lock.unlock();
 	}
     }
-}
\ No newline at end of file
+
+    // Adds the range from first to last to a receiver's holes, merging it with
+    // any range it overlaps or touches.
+    private static void addHole(TreeMap<Integer, Integer> holes, int first, int last) {
+	if (last < first) {
+	    return;
+	}
+
+	Map.Entry<Integer, Integer> before = holes.floorEntry(first);
+	if (before != null && before.getValue() >= first - 1) {
+	    first = before.getKey();
+	    last  = Math.max(last, before.getValue());
+	}
+	Map.Entry<Integer, Integer> after;
+	while ((after = holes.ceilingEntry(first)) != null && after.getKey() <= last + 1) {
+	    last = Math.max(last, after.getValue());
+	    holes.remove(after.getKey());
+	}
+	holes.put(first, last);
+    }
+
+    // Drops the parts of a receiver's holes that the cumulative ACK has passed.
+    private static void dropAckedHoles(TreeMap<Integer, Integer> holes, int lastAck) {
+	Map.Entry<Integer, Integer> first;
+	while ((first = holes.firstEntry()) != null && first.getKey() <= lastAck) {
+	    holes.pollFirstEntry();
+	    if (first.getValue() > lastAck) {
+		holes.put(lastAck + 1, first.getValue());
+	    }
+	}
+    }
+
+    // Marks the suspects that count as lost with a send count of 0, so that
+    // they will be prioritized in the send buffer. A suspect is lost once a
+    // packet sent after it has arrived, and the round trip time of the newest
+    // packet to arrive, plus the reordering window, has passed since it was
+    // sent. A packet that went over a slower path is given that path's round
+    // trip time instead.
+    private void detectLosses(long now) {
+	if (suspects.isEmpty() || rackSentTime == 0) {
+	    return;
+	}
+	long reorderWindow = getReorderWindow();
+
+	Iterator<SentPacket> iterator = suspects.values().iterator();
+	while (iterator.hasNext()) {
+	    SentPacket packet = iterator.next();
+	    if (packet.sendCount == 0) {
+		iterator.remove();
+		continue;
+	    }
+	    if (packet.lastSentTime >= rackSentTime) {
+		continue;
+	    }
+
+	    long rtt = rackRtt;
+	    if (paths != null && packet.path >= 0) {
+		rtt = Math.max(rtt, paths.get(packet.path).getSmoothedRtt());
+	    }
+	    if (now - packet.lastSentTime < rtt + reorderWindow) {
+		continue;
+	    }
+
+	    iterator.remove();
+	    sendOrder.remove(packet);
+	    packet.sendCount = 0;
+	    sendOrder.add(packet);
+	    lost(packet, now);
+	}
+    }
+
+    // Gets how long past its round trip a suspect is given to arrive, in
+    // nanoseconds.
+    private long getReorderWindow() {
+	long window = reorderMultiplier * estimator.getMinRtt() / 4;
+	long smoothed = estimator.getSmoothedRtt();
+	return (smoothed > 0) ? Math.min(window, smoothed) : window;
+    }
+
+    // Takes a packet as lost, about to be sent again. The first loss starts a
+    // recovery, which lasts until everything sent so far is acknowledged. A
+    // background transfer, and the path the packet went over, cut their
+    // windows.
+    private void lost(SentPacket packet, long now) {
+	if (recoveryPoint == NO_RECOVERY) {
+	    recoveryPoint = buffer.lastKey();
+	    undoRetransmits = 0;
+	}
+
+	// A packet lost a second time in one recovery really was lost at least
+	// once, so the recovery can't be undone.
+	if (packet.undoable) {
+	    undoRetransmits = -1;
+	} else if (undoRetransmits >= 0) {
+	    packet.undoable = true;
+	    ++undoRetransmits;
+	}
+	packet.retransmitted = true;
+
+	if (ledbat != null) {
+	    ledbat.onLoss(now, estimator.getSmoothedRtt());
+	}
+	if (paths != null && packet.path >= 0) {
+	    paths.get(packet.path).lost(now);
+	    leavePath(packet);
+	}
+    }
+
+    // Handles a retransmission that turned out to be spurious. The reordering
+    // window grows, and once every packet the recovery retransmitted has
+    // turned out to be spurious, its window reductions are undone. A packet
+    // that hasn't been sent again yet is left where it was.
+    private void spurious(SentPacket packet) {
+	if (packet.sendCount == 0) {
+	    sendOrder.remove(packet);
+	    packet.sendCount = 1;
+	    sendOrder.add(packet);
+	}
+
+	long minRtt = estimator.getMinRtt();
+	if ((reorderMultiplier + 1) * minRtt / 4 <= estimator.getSmoothedRtt()) {
+	    ++reorderMultiplier;
+	}
+	reorderPersist = REORDER_PERSIST;
+
+	if (!packet.undoable) {
+	    return;
+	}
+	packet.undoable = false;
+	if (recoveryPoint == NO_RECOVERY || undoRetransmits <= 0 || --undoRetransmits > 0) {
+	    return;
+	}
+
+	System.out.println("[debug] every retransmission was spurious, undoing the recovery");
+	if (ledbat != null) {
+	    ledbat.undoLoss();
+	}
+	if (paths != null) {
+	    for (SendPath path : paths) {
+		path.undoLoss();
+	    }
+	}
+    }
+
+    // Ends a recovery, keeping whatever window reductions it made. After
+    // enough recoveries without a spurious retransmission, the reordering
+    // window shrinks back.
+    private void endRecovery() {
+	recoveryPoint = NO_RECOVERY;
+	undoRetransmits = 0;
+	if (ledbat != null) {
+	    ledbat.commitLoss();
+	}
+	if (paths != null) {
+	    for (SendPath path : paths) {
+		path.commitLoss();
+	    }
+	}
+	if (reorderPersist > 0 && --reorderPersist == 0) {
+	    reorderMultiplier = 1;
+	}
+    }
+}
@@ -0,0 +1,52 @@
+package filetransfer;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.file.InvalidPathException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+// Writes each transfer to a file in a directory, the way recvfile always has:
+// a file is written to "<name>.recv.xml" and a batch is unpacked into the
+// directory "<name>.recv". Only the last part of the name the sender gave is
+// used, so a transfer can't be written outside of the directory.
+public class FileTransferHandler implements TransferHandler {
+
+    private Path directory;
+    private boolean syncFiles;
+
+    // Creates a handler writing into the given directory. If syncFiles is set,
+    // each file of a batch is synced to disk as it is finished.
+    public FileTransferHandler(Path directory, boolean syncFiles) {
+	this.directory = directory;
+	this.syncFiles = syncFiles;
+    }
+
+    public GatheringByteChannel open(String name, boolean batch) throws IOException {
+	Path fileName;
+	try {
+	    fileName = Paths.get(name).getFileName();
+	} catch (InvalidPathException e) {
+	    fileName = null;
+	}
+	if (fileName == null) {
+	    throw new IOException("not a valid name for a transfer: " + name);
+	}
+
+	if (batch) {
+	    return new BatchUnpacker(directory.resolve(fileName + ".recv"), syncFiles);
+	}
+	return FileChannel.open(directory.resolve(fileName + ".recv.xml"), StandardOpenOption.CREATE,
+				StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+    }
+
+    public void completed(String name, long bytes) {
+	System.out.format("[recv completed] %s (%d bytes)\n", name, bytes);
+    }
+
+    public void failed(String name, Exception error) {
+	System.err.format("[error] could not receive %s. message: %s\n", name, error.getMessage());
+    }
+}
@@ -0,0 +1,153 @@
+package filetransfer;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+
+// Reads a file that is still being written to, such as a log, the way tail -F
+// does. Once the reader has caught up with the end of the file, a read waits
+// for more to be appended instead of returning the end of the stream. Sent
+// with TransferClient.sendStream(), each append goes out as soon as it is
+// read.
+//
+// A few bytes appended at a time would each take a packet of their own, so an
+// append of less than a segment is held back for up to the batch delay, in
+// case more follows to fill it out. Anything longer is read a whole number of
+// segments at a time, and the remainder waits for the next read.
+//
+// The stream ends once the file has been rotated, that is renamed or removed
+// and maybe replaced with a new file of the same name, or truncated, and
+// everything written to it before that has been read. It also ends once the
+// channel is stopped and has caught up.
+public class FollowChannel implements ReadableByteChannel {
+
+    private Path path;
+    private FileChannel file;
+    private Object fileKey;
+    private long batchDelay;
+    private long pendingSince;
+    private volatile boolean stopped;
+    private boolean ended;
+
+    public static final long DEFAULT_BATCH_DELAY_MS = 20;
+
+    private static final long POLL_INTERVAL_MS = 10;
+    private static final int  EOF	       = -1;
+
+    // Opens the file to follow from its start. An append of less than a segment
+    // is held back for up to batchDelayMs milliseconds.
+    public FollowChannel(Path path, long batchDelayMs) throws IOException {
+	this.path	  = path;
+	this.file	  = FileChannel.open(path, StandardOpenOption.READ);
+	this.fileKey	  = Files.readAttributes(path, BasicFileAttributes.class).fileKey();
+	this.batchDelay	  = batchDelayMs * 1000000;
+	this.pendingSince = 0;
+	this.stopped	  = false;
+	this.ended	  = false;
+    }
+
+    // Ends the stream once everything written to the file so far has been read.
+    // Any read waiting for more returns straight away. Safe to call from any
+    // thread.
+    public void stop() {
+	stopped = true;
+    }
+
+    // Reads whatever has been appended to the file, waiting until there is
+    // something to read, the file is rotated or the channel is stopped.
+    public int read(ByteBuffer destination) throws IOException {
+	if (!file.isOpen()) {
+	    throw new ClosedChannelException();
+	}
+	if (ended) {
+	    return EOF;
+	}
+
+	while (true) {
+
+	    // Check for the end before looking at the size, so that anything
+	    // written before the file was rotated is still read.
+	    boolean ending = stopped || rotated();
+	    long available = file.size() - file.position();
+
+	    if (available <= 0) {
+		if (ending) {
+		    ended = true;
+		    return EOF;
+		}
+		pause();
+		continue;
+	    }
+
+	    // Read whole segments when there are any, and hold back a short
+	    // append until it fills a segment or has waited long enough.
+	    long now = System.nanoTime();
+	    long wanted = available;
+	    if (available >= Sender.SEGMENT_SIZE) {
+		wanted = available - available % Sender.SEGMENT_SIZE;
+	    } else if (!ending) {
+		if (pendingSince == 0) {
+		    pendingSince = now;
+		}
+		if (now - pendingSince < batchDelay) {
+		    pause();
+		    continue;
+		}
+	    }
+	    pendingSince = 0;
+
+	    // Read into a slice so that no more than wanted bytes are taken.
+	    ByteBuffer slice = destination.slice();
+	    if (slice.remaining() > wanted) {
+		slice.limit((int)wanted);
+	    }
+	    int bytesRead = file.read(slice);
+	    if (bytesRead > 0) {
+		destination.position(destination.position() + bytesRead);
+	    }
+	    return bytesRead;
+	}
+    }
+
+    public boolean isOpen() {
+	return file.isOpen();
+    }
+
+    public void close() throws IOException {
+	file.close();
+    }
+
+    // Tells whether the file we have open is no longer the one at the path, or
+    // has been cut shorter than what we have read. Without file keys, only a
+    // missing or truncated file is noticed.
+    private boolean rotated() throws IOException {
+	BasicFileAttributes attributes;
+	try {
+	    attributes = Files.readAttributes(path, BasicFileAttributes.class);
+	} catch (NoSuchFileException e) {
+	    return true;
+	}
+
+	if (fileKey != null && !fileKey.equals(attributes.fileKey())) {
+	    return true;
+	}
+	return file.size() < file.position();
+    }
+
+    // Waits a little before looking at the file again.
+    private void pause() throws IOException {
+	try {
+	    Thread.sleep(POLL_INTERVAL_MS);
+	} catch (InterruptedException e) {
+	    Thread.currentThread().interrupt();
+	    throw new IOException("interrupted while following " + path);
+	}
+    }
+}
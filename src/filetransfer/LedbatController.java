@@ -0,0 +1,181 @@
+package filetransfer;
+
+import java.util.HashMap;
+
+// Sizes the window of a background transfer so that it only uses capacity
+// nobody else wants, after LEDBAT. The transfer backs off as soon as the queue
+// at the bottleneck starts to grow, and so yields to any other traffic sharing
+// the path long before that traffic would see loss.
+//
+// Every ACK echoes the newest packet to arrive and when the receiver got it,
+// by its own clock. Subtracting the time we sent that packet gives the one-way
+// delay plus the difference between the two clocks. The lowest value seen over
+// the last BASE_HISTORY minutes is taken as the delay of the empty path, so
+// whatever is above it is time spent queued, whatever the clocks say. The
+// clocks only need to tick at the same rate. Each receiver of a multicast
+// transfer has a clock of its own, so each one has a base of its own, and the
+// window follows whichever of them sees the longest queue.
+//
+// The window grows as in slow start until the queue reaches half the target.
+// After that it grows, or shrinks, in proportion to how far the queuing delay
+// is under, or over, the target, by up to a packet per round trip. A queue of
+// more than twice the target, or a loss, halves the window at once, at most
+// once per round trip. A halving for a loss that turns out to have been
+// reordering is undone. The window never grows by more than ALLOWED_INCREASE
+// packets past what is actually in flight, so a transfer that is held back by
+// something else doesn't build up a window it hasn't tested.
+public class LedbatController {
+
+    private long targetMicros;
+    private double window;
+    private boolean slowStart;
+    private long lastBackOff;
+    private double undoWindow;
+    private HashMap<Integer, Path> paths;
+
+    public static final long DEFAULT_TARGET_MS = 25;
+
+    private static final int BASE_HISTORY = 10;
+    private static final long BASE_INTERVAL_NANOS = 60000000000L;
+    private static final int CURRENT_FILTER = 4;
+    private static final double GAIN = 1.0;
+    private static final int INITIAL_WINDOW = 4;
+    private static final int MIN_WINDOW = 2;
+    private static final int ALLOWED_INCREASE = 2;
+
+    // The delays seen by one receiver, in microseconds. The raw delays hold the
+    // offset between the clocks, and wrap around, so they are only ever compared
+    // by their difference.
+    private static class Path {
+	int[] base	  = new int[BASE_HISTORY];
+	int baseCount	  = 0;
+	long baseStarted  = 0;
+	int[] current	  = new int[CURRENT_FILTER];
+	int currentCount  = 0;
+	int nextCurrent	  = 0;
+    }
+
+    // Creates a controller that holds the queuing delay under the given target.
+    public LedbatController(long targetMillis) {
+	this.targetMicros = targetMillis * 1000;
+	this.window	  = INITIAL_WINDOW;
+	this.slowStart	  = true;
+	this.lastBackOff  = 0;
+	this.undoWindow	  = 0;
+	this.paths	  = new HashMap<Integer, Path>();
+    }
+
+    // Records a delay sample from the given receiver: the time the receiver got
+    // a packet, from its clock, less the time we sent it, both in microseconds.
+    public void addDelaySample(int receiver, int rawDelay, long now) {
+	Path path = paths.get(receiver);
+	if (path == null) {
+	    path = new Path();
+	    paths.put(receiver, path);
+	}
+
+	// The base is the lowest delay of each of the last few minutes, so that
+	// a drift between the clocks, or a change of path, is forgotten in time.
+	if (path.baseCount == 0 || now - path.baseStarted >= BASE_INTERVAL_NANOS) {
+	    if (path.baseCount == BASE_HISTORY) {
+		System.arraycopy(path.base, 1, path.base, 0, BASE_HISTORY - 1);
+		--path.baseCount;
+	    }
+	    path.base[path.baseCount++] = rawDelay;
+	    path.baseStarted = now;
+	} else if (rawDelay - path.base[path.baseCount - 1] < 0) {
+	    path.base[path.baseCount - 1] = rawDelay;
+	}
+
+	path.current[path.nextCurrent] = rawDelay;
+	path.nextCurrent = (path.nextCurrent + 1) % CURRENT_FILTER;
+	path.currentCount = Math.min(path.currentCount + 1, CURRENT_FILTER);
+    }
+
+    // Gets the queuing delay in microseconds, as the worst of the receivers
+    // sees it, or -1 if there have been no samples yet.
+    public long getQueuingDelay() {
+	long worst = -1;
+	for (Path path : paths.values()) {
+	    int base = path.base[0];
+	    for (int i = 1; i < path.baseCount; ++i) {
+		if (path.base[i] - base < 0) {
+		    base = path.base[i];
+		}
+	    }
+
+	    // The latest few samples are filtered by their minimum, to ride out
+	    // the odd packet that was held up somewhere along the way.
+	    int current = path.current[0];
+	    for (int i = 1; i < path.currentCount; ++i) {
+		if (path.current[i] - current < 0) {
+		    current = path.current[i];
+		}
+	    }
+	    worst = Math.max(worst, Math.max(0, current - base));
+	}
+	return worst;
+    }
+
+    // Adjusts the window for packets that were acknowledged, given how many
+    // packets are in flight and the smoothed round trip time.
+    public void onAcked(int packets, int inFlight, long rtt, long now) {
+	long delay = getQueuingDelay();
+	if (delay < 0) {
+	    return;
+	}
+
+	if (delay > 2 * targetMicros) {
+	    backOff(now, rtt, "queue of " + delay / 1000 + " ms");
+	    return;
+	}
+
+	if (slowStart && delay < targetMicros / 2) {
+	    window += packets;
+	} else {
+	    slowStart = false;
+	    double offTarget = (double)(targetMicros - delay) / targetMicros;
+	    window += GAIN * offTarget * packets / window;
+	}
+
+	window = Math.max(MIN_WINDOW, Math.min(window, inFlight + ALLOWED_INCREASE));
+    }
+
+    // Halves the window for a loss.
+    public void onLoss(long now, long rtt) {
+	if (undoWindow == 0) {
+	    undoWindow = window;
+	}
+	backOff(now, rtt, "loss");
+    }
+
+    // Puts the window back to where it was before the losses since the last
+    // commit, which turned out to be spurious.
+    public void undoLoss() {
+	if (undoWindow != 0) {
+	    window = Math.max(window, undoWindow);
+	    undoWindow = 0;
+	    System.out.format("[debug] undoing back off to %d packets (spurious loss)\n", (int)window);
+	}
+    }
+
+    // Keeps the reductions for the losses so far, which can no longer be undone.
+    public void commitLoss() {
+	undoWindow = 0;
+    }
+
+    // Gets the most packets the window may hold.
+    public int getWindow() {
+	return (int)window;
+    }
+
+    private void backOff(long now, long rtt, String reason) {
+	slowStart = false;
+	if (lastBackOff != 0 && now - lastBackOff < rtt) {
+	    return;
+	}
+	lastBackOff = now;
+	window = Math.max(MIN_WINDOW, window / 2);
+	System.out.format("[debug] backing off to %d packets (%s)\n", (int)window, reason);
+    }
+}
@@ -0,0 +1,165 @@
+package filetransfer;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+// Seals and opens the packets of one transfer with AES-GCM.
+//
+// Both ends share a key ahead of time, but it is never used on packets. Each
+// transfer has a key of its own, derived from the shared key and a random salt
+// that the sender picks and carries in the clear in the init packet. A packet
+// is sealed under a nonce made from its sequence number and flags, so the
+// nonce doesn't have to be sent, and the header is authenticated along with
+// the data. The tag takes the place of the checksum.
+//
+// A nonce is never used twice under one key. Retransmissions resend the bytes
+// that were sealed the first time, and the packets that reuse sequence
+// numbers, such as the close packet, which carries the sequence number of the
+// last packet, have flags of their own.
+//
+// Setting up a Cipher is costly, so each thread keeps one and reuses it for
+// every packet of every transfer. The JDK's AES-GCM runs on the CPU's AES and
+// carry-less multiply instructions where it has them.
+public class PacketCipher {
+
+    private SecretKeySpec key;
+    private byte[] salt;
+
+    public static final int SALT_SIZE = 16;
+    public static final int TAG_SIZE  = 16;
+
+    private static final int NONCE_SIZE = 12;
+    private static final int FLAG_NONCE_INDEX = 4;
+    private static final byte[] KEY_LABEL = "filetransfer session key".getBytes(StandardCharsets.US_ASCII);
+    private static final SecureRandom random = new SecureRandom();
+
+    private static final ThreadLocal<Cipher> ciphers = ThreadLocal.withInitial(() -> {
+	    try {
+		return Cipher.getInstance("AES/GCM/NoPadding");
+	    } catch (GeneralSecurityException e) {
+		throw new IllegalStateException("AES-GCM is not available", e);
+	    }
+	});
+
+    // Creates the cipher for the transfer with the given salt, under a key
+    // derived from the shared key. The key for the transfer is the same size
+    // as the shared key, which must be 16 or 32 bytes.
+    public PacketCipher(byte[] sharedKey, byte[] salt) {
+	checkKey(sharedKey);
+	if (salt == null || salt.length != SALT_SIZE) {
+	    throw new IllegalArgumentException("salt must be " + SALT_SIZE + " bytes");
+	}
+
+	this.salt = salt.clone();
+	try {
+	    Mac mac = Mac.getInstance("HmacSHA256");
+	    mac.init(new SecretKeySpec(sharedKey, "HmacSHA256"));
+	    mac.update(KEY_LABEL);
+	    byte[] derived = mac.doFinal(salt);
+	    this.key = new SecretKeySpec(derived, 0, sharedKey.length, "AES");
+	} catch (GeneralSecurityException e) {
+	    throw new IllegalStateException("could not derive the transfer key", e);
+	}
+    }
+
+    // Throws if the key isn't the size of an AES-128 or AES-256 key.
+    public static void checkKey(byte[] sharedKey) {
+	if (sharedKey == null || (sharedKey.length != 16 && sharedKey.length != 32)) {
+	    throw new IllegalArgumentException("shared key must be 16 or 32 bytes");
+	}
+    }
+
+    // Reads a shared key written as 32 or 64 hex digits, such as the output of
+    // "openssl rand -hex 32".
+    public static byte[] readKeyFile(Path file) throws IOException {
+	String hex = new String(Files.readAllBytes(file), StandardCharsets.US_ASCII).trim();
+	if (hex.length() != 32 && hex.length() != 64) {
+	    throw new IOException("key must be 32 or 64 hex digits");
+	}
+
+	byte[] key = new byte[hex.length() / 2];
+	for (int i = 0; i < key.length; ++i) {
+	    int high = Character.digit(hex.charAt(2 * i), 16);
+	    int low = Character.digit(hex.charAt(2 * i + 1), 16);
+	    if (high < 0 || low < 0) {
+		throw new IOException("key must be 32 or 64 hex digits");
+	    }
+	    key[i] = (byte)(high << 4 | low);
+	}
+	return key;
+    }
+
+    // Picks a salt for a new transfer.
+    public static byte[] newSalt() {
+	byte[] salt = new byte[SALT_SIZE];
+	random.nextBytes(salt);
+	return salt;
+    }
+
+    // Gets the salt the transfer's key was derived from.
+    public byte[] getSalt() {
+	return salt.clone();
+    }
+
+    // Encrypts the data into the packet at its position, followed by the tag,
+    // and authenticates everything in the packet before its position. The
+    // position is left at the end of the tag. The nonce is taken from the
+    // packet's sequence number and flags.
+    public void seal(ByteBuffer packet, ByteBuffer data, int sequenceNumber, byte flags) {
+	ByteBuffer header = packet.duplicate();
+	header.flip();
+
+	try {
+	    Cipher cipher = ciphers.get();
+	    cipher.init(Cipher.ENCRYPT_MODE, key, nonce(sequenceNumber, flags));
+	    cipher.updateAAD(header);
+	    cipher.doFinal(data, packet);
+	} catch (GeneralSecurityException e) {
+	    throw new IllegalStateException("could not seal packet", e);
+	}
+    }
+
+    // Decrypts the data of a packet in place, from dataIndex up to the packet's
+    // limit, where the tag ends, and checks it along with everything before
+    // dataIndex. The limit is moved to the end of the data. Returns false,
+    // leaving the packet in an unknown state, if the packet was not sealed
+    // with this key or has been changed since.
+    public boolean open(ByteBuffer packet, int dataIndex, int sequenceNumber, byte flags) {
+	ByteBuffer header = packet.duplicate();
+	header.position(0);
+	header.limit(dataIndex);
+
+	ByteBuffer sealed = packet.duplicate();
+	sealed.position(dataIndex);
+	ByteBuffer output = packet.duplicate();
+	output.position(dataIndex);
+
+	try {
+	    Cipher cipher = ciphers.get();
+	    cipher.init(Cipher.DECRYPT_MODE, key, nonce(sequenceNumber, flags));
+	    cipher.updateAAD(header);
+	    int length = cipher.doFinal(sealed, output);
+	    packet.limit(dataIndex + length);
+	    return true;
+	} catch (GeneralSecurityException | IllegalArgumentException e) {
+	    return false;
+	}
+    }
+
+    // The nonce is the sequence number followed by the flags.
+    private static GCMParameterSpec nonce(int sequenceNumber, byte flags) {
+	byte[] nonce = new byte[NONCE_SIZE];
+	ByteBuffer.wrap(nonce).putInt(sequenceNumber);
+	nonce[FLAG_NONCE_INDEX] = flags;
+	return new GCMParameterSpec(TAG_SIZE * 8, nonce);
+    }
+}
@@ -0,0 +1,350 @@
+package filetransfer;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+// Splits the chunks read ahead by the ReadAheadReader into segments, serializes
+// them and hands them to the FileSendBuffer through a PacketRing.
+//
+// Chunks are prepared in parallel on a pool of workers. Since every chunk already
+// knows the sequence number of its first packet, the workers don't depend on
+// each other; this task just publishes the finished chunks in sequence order.
+// The pool is shared by every transfer a client is running, and takes the
+// chunks of interactive transfers ahead of those of bulk ones.
+//
+// Packets are serialized straight into slots of a SegmentSlab, so the workers
+// wait for the window to release slots when the memory budget is used up. If
+// the preparer is stopped part way, it releases the slots of every packet it
+// didn't get to publish.
+//
+// For an encrypted transfer, every packet is sealed on its way into its slot,
+// so it takes no more passes over the data than copying it would.
+//
+// Each run of segments in a chunk that are all zeros is sent as a single hole
+// packet holding the length of the run, so the unwritten parts of a sparse
+// file, or a disk image, cost next to nothing to send.
+public class PacketPreparer extends PooledTask {
+
+    private ReadAheadReader reader;
+    private PacketRing ring;
+    private SegmentSlab slab;
+    private String name;
+    private int ackPort;
+    private int pathCount;
+    private boolean batch;
+    private boolean dedup;
+    private int sessionId;
+    private PacketCipher cipher;
+    private PriorityExecutor workers;
+    private int priority;
+    private int maxInFlight;
+    private volatile int lastSeqNo;
+    private volatile Throwable error;
+
+    // The largest init packet that carries a whole file, so that it still fits
+    // in a single Ethernet frame.
+    private static final int MAX_INIT_SIZE = 1472;
+
+    private static final byte[] ZEROS = new byte[Sender.SEGMENT_SIZE];
+
+    // Creates a preparer that will send the init packet for a transfer with the
+    // given name first, followed by the data from the reader, keeping up to two
+    // chunks per thread being prepared on the workers. If batch is set, the
+    // reader gives a batch of files packed by a BatchInputStream and the name is
+    // the directory they go in. If dedup is set, the reader gives the stream of
+    // a DedupInputStream. The chunks are prepared in the given priority class of
+    // the TransmitScheduler. If there is a cipher, the packets are sealed with
+    // it. The init packet tells the receiver how many paths the packets come
+    // over.
+    public PacketPreparer(String name, int ackPort, int pathCount, boolean batch, boolean dedup, int sessionId,
+			  PacketCipher cipher,
+			  ReadAheadReader reader, PacketRing ring, SegmentSlab slab, PriorityExecutor workers,
+			  int priority, int threads) {
+	this.name	 = name;
+	this.ackPort	 = ackPort;
+	this.pathCount	 = pathCount;
+	this.batch	 = batch;
+	this.dedup	 = dedup;
+	this.sessionId	 = sessionId;
+	this.cipher	 = cipher;
+	this.reader	 = reader;
+	this.ring	 = ring;
+	this.slab	 = slab;
+	this.workers	 = workers;
+	this.priority	 = priority;
+	this.maxInFlight = threads * 2;
+	this.lastSeqNo	 = -1;
+	this.error	 = null;
+    }
+
+    public void run() {
+
+	ArrayDeque<Future<SentPacket[]>> inFlight = new ArrayDeque<Future<SentPacket[]>>();
+
+	try {
+	    FileChunk first = reader.takeChunk();
+	    if (first == null) {
+		return;
+	    }
+
+	    // A file small enough to fit in the init packet is sent as that one
+	    // packet, so the whole transfer takes a single round trip.
+	    DataPacket initPacket = new DataPacket(name, ackPort, null, 0);
+	    initPacket.setPathCount(pathCount);
+	    initPacket.setBatch(batch);
+	    initPacket.setDedup(dedup);
+	    initPacket.setCipher(cipher);
+	    if (first.isFinal && first.length > 0 && first.length <= Sender.SEGMENT_SIZE &&
+		initPacket.getSerializedSize() + first.length <= MAX_INIT_SIZE) {
+
+		initPacket = new DataPacket(name, ackPort, first.data, first.length);
+		initPacket.setPathCount(pathCount);
+		initPacket.setBatch(batch);
+		initPacket.setDedup(dedup);
+		initPacket.setCipher(cipher);
+		if (publish(new SentPacket[] { toSentPacket(initPacket, sessionId, cipher, slab) })) {
+		    lastSeqNo = 0;
+		}
+		return;
+	    }
+
+	    if (!publish(new SentPacket[] { toSentPacket(initPacket, sessionId, cipher, slab) })) {
+		return;
+	    }
+
+	    // Keep a few chunks being prepared at once, and wait on the oldest
+	    // one so packets are always published in order. Only wait for the
+	    // reader when there is nothing left to publish, so a stream that is
+	    // slow to produce doesn't hold back what it has already given us.
+	    inFlight.addLast(workers.submit(() -> prepareChunk(first, sessionId, cipher, slab), priority));
+	    boolean readAll = first.isFinal;
+
+	    while (!readAll || !inFlight.isEmpty()) {
+
+		while (!readAll && inFlight.size() < maxInFlight) {
+		    final FileChunk chunk = inFlight.isEmpty() ? reader.takeChunk() : reader.pollChunk();
+		    if (chunk == null && inFlight.isEmpty()) {
+			return;
+		    }
+		    if (chunk == null) {
+			break;
+		    }
+		    inFlight.addLast(workers.submit(() -> prepareChunk(chunk, sessionId, cipher, slab), priority));
+		    readAll = chunk.isFinal;
+		}
+
+		SentPacket[] packets;
+		try {
+		    packets = inFlight.peekFirst().get();
+		} catch (ExecutionException e) {
+		    inFlight.removeFirst();
+		    error = e.getCause();
+		    return;
+		}
+
+		inFlight.removeFirst();
+		if (!publish(packets)) {
+		    return;
+		}
+	    }
+	} catch (InterruptedException e) {
+	    return;
+	} finally {
+	    discard(inFlight);
+	}
+    }
+
+    // Puts the packets on the ring in order, noting the sequence number of
+    // the last packet of the transfer. If interrupted, the packets that were
+    // not published are released and false is returned.
+    private boolean publish(SentPacket[] packets) {
+	for (int i = 0; i < packets.length; ++i) {
+	    if (!ring.put(packets[i])) {
+		release(packets, i);
+		return false;
+	    }
+	    if (packets[i].isLastPacket) {
+		lastSeqNo = packets[i].sequenceNumber;
+	    }
+	}
+	return true;
+    }
+
+    // Waits for any chunks still being prepared and releases their packets.
+    // Chunks that haven't been started yet are dropped without running.
+    private void discard(ArrayDeque<Future<SentPacket[]>> inFlight) {
+	for (Future<SentPacket[]> future : inFlight) {
+	    if (future.cancel(false)) {
+		continue;
+	    }
+	    while (true) {
+		try {
+		    release(future.get(), 0);
+		    break;
+		} catch (InterruptedException e) {
+		    continue;
+		} catch (ExecutionException | CancellationException e) {
+		    break;
+		}
+	    }
+	}
+	inFlight.clear();
+    }
+
+    private void release(SentPacket[] packets, int from) {
+	for (int i = from; i < packets.length; ++i) {
+	    slab.release(packets[i].slot);
+	}
+    }
+
+    // Gets the sequence number of the last packet of the transfer. Only valid
+    // once the task has finished, and -1 if it was stopped early.
+    public int getLastSequenceNumber() {
+	return lastSeqNo;
+    }
+
+    // Gets the error that stopped the packets from being prepared, or null if
+    // there wasn't one.
+    public Throwable getError() {
+	return error;
+    }
+
+    // Marks the segments of a chunk that are all zeros. Arrays.mismatch compares
+    // the segment with zeros many bytes at a time, using the CPU's vector
+    // instructions, and stops at the first byte that differs, so this costs next
+    // to nothing for data that isn't sparse.
+    public static void findZeroSegments(FileChunk chunk) {
+	BitSet zeroSegments = null;
+	int segment = 0;
+	for (int offset = 0; offset < chunk.length; offset += Sender.SEGMENT_SIZE) {
+	    int length = Math.min(Sender.SEGMENT_SIZE, chunk.length - offset);
+	    if (Arrays.mismatch(chunk.data, offset, offset + length, ZEROS, 0, length) < 0) {
+		if (zeroSegments == null) {
+		    zeroSegments = new BitSet();
+		}
+		zeroSegments.set(segment);
+	    }
+	    ++segment;
+	}
+	chunk.zeroSegments = zeroSegments;
+    }
+
+    // Gets the number of packets a chunk will be sent as.
+    public static int countPackets(FileChunk chunk) {
+	int count = (chunk.length + Sender.SEGMENT_SIZE - 1) / Sender.SEGMENT_SIZE;
+
+	// Each run of zero segments is sent as one hole.
+	BitSet zeroSegments = chunk.zeroSegments;
+	if (zeroSegments != null) {
+	    int start = zeroSegments.nextSetBit(0);
+	    while (start >= 0) {
+		int end = zeroSegments.nextClearBit(start);
+		count -= end - start - 1;
+		start = zeroSegments.nextSetBit(end);
+	    }
+	}
+
+	// The final packet signals the end of a transfer, so even an empty final
+	// chunk is sent as one packet.
+	if (chunk.isFinal) {
+	    count = Math.max(count, 1);
+	}
+	return count;
+    }
+
+    // Gets the most slots a chunk can take up in the slab.
+    public static int maxPacketsPerChunk() {
+	return ReadAheadReader.CHUNK_SIZE / Sender.SEGMENT_SIZE + 1;
+    }
+
+    // Cuts a chunk up into segment sized packets for the given session, numbered
+    // from the chunk's first sequence number, and serializes them into slots of
+    // the slab, sealed with the cipher if there is one. Each run of zero segments
+    // becomes one hole. The last packet of the final chunk is flagged as the last
+    // packet.
+    public static SentPacket[] prepareChunk(FileChunk chunk, int sessionId, PacketCipher cipher,
+					    SegmentSlab slab)
+	throws InterruptedException {
+	SentPacket[] packets = new SentPacket[countPackets(chunk)];
+	int seqNo = chunk.firstSequenceNumber;
+	int i = 0;
+
+	try {
+	    int segment = 0;
+	    int offset = 0;
+	    while (offset < chunk.length) {
+		int end = segment + 1;
+		boolean isHole = chunk.zeroSegments != null && chunk.zeroSegments.get(segment);
+		if (isHole) {
+		    end = chunk.zeroSegments.nextClearBit(segment);
+		}
+
+		int length = Math.min(end * Sender.SEGMENT_SIZE, chunk.length) - offset;
+		boolean isLast = chunk.isFinal && offset + length == chunk.length;
+		DataPacket filePacket;
+		if (isHole) {
+		    filePacket = new DataPacket(null, 0, isLast);
+		    filePacket.setHole(length);
+		} else {
+		    filePacket = new DataPacket(chunk.data, offset, length, isLast);
+		}
+		filePacket.setSequenceNumber(seqNo++);
+		packets[i] = toSentPacket(filePacket, sessionId, cipher, slab);
+		++i;
+
+		segment = end;
+		offset += length;
+	    }
+
+	    if (chunk.isFinal && chunk.length == 0) {
+		DataPacket lastPacket = new DataPacket(null, 0, true);
+		lastPacket.setSequenceNumber(seqNo++);
+		packets[i] = toSentPacket(lastPacket, sessionId, cipher, slab);
+		++i;
+	    }
+	} catch (InterruptedException e) {
+
+	    // Give back the slots already taken before giving up.
+	    for (int j = 0; j < i; ++j) {
+		slab.release(packets[j].slot);
+	    }
+	    throw e;
+	}
+
+	return packets;
+    }
+
+    // Serializes a packet into a slot of the slab. The slot is kept in a SentPacket
+    // structure so it does not have to be serialized again if we have to re-transmit,
+    // and is released once the packet is acknowledged.
+    private static SentPacket toSentPacket(DataPacket packet, int sessionId, PacketCipher cipher,
+					   SegmentSlab slab)
+	throws InterruptedException {
+	int slot = slab.allocateBlocking();
+	if (slot < 0) {
+	    throw new InterruptedException();
+	}
+
+	packet.setSessionId(sessionId);
+	packet.setCipher(cipher);
+
+	SentPacket packetInfo = new SentPacket();
+	packetInfo.slot = slot;
+	packetInfo.data = slab.buffer(slot);
+	packet.serialize(packetInfo.data);
+	packetInfo.sequenceNumber = packet.getSequenceNumber();
+	packetInfo.payloadLength = packet.isHole() ? packet.getHoleLength() : packet.getDataLength();
+	packetInfo.sendCount = 0;
+	packetInfo.retransmitted = false;
+	packetInfo.undoable = false;
+	packetInfo.path = -1;
+	packetInfo.onPath = false;
+	packetInfo.isInitPacket = packet.isInitPacket();
+	packetInfo.isLastPacket = packet.isLastPacket();
+	return packetInfo;
+    }
+}
@@ -0,0 +1,87 @@
+package filetransfer;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+// A fixed size ring used to hand prepared packets from a single producer thread
+// to a single consumer thread. Neither side takes a lock; each side only writes
+// its own index, so publishing a packet is just a store and an ordered write.
+public class PacketRing {
+
+    private SentPacket[] slots;
+    private int mask;
+    private AtomicLong head;
+    private AtomicLong tail;
+
+    private static final long PARK_NANOS = 50000;
+
+    // Creates a ring that holds at least the given number of packets. The
+    // capacity is rounded up to a power of two so indexes can be masked.
+    public PacketRing(int capacity) {
+	int size = 1;
+	while (size < capacity) {
+	    size <<= 1;
+	}
+
+	this.slots = new SentPacket[size];
+	this.mask  = size - 1;
+	this.head  = new AtomicLong(0);
+	this.tail  = new AtomicLong(0);
+    }
+
+    // Adds a packet to the ring. Returns false if the ring is full. Must only
+    // be called from the producer thread.
+    public boolean offer(SentPacket packet) {
+	long currentTail = tail.get();
+	if (currentTail - head.get() == slots.length) {
+	    return false;
+	}
+
+	slots[(int)currentTail & mask] = packet;
+	tail.lazySet(currentTail + 1);
+	return true;
+    }
+
+    // Adds a packet to the ring, waiting for the consumer to make room if it
+    // is full. Returns false if the thread was interrupted while waiting.
+    public boolean put(SentPacket packet) {
+	while (!offer(packet)) {
+	    if (Thread.currentThread().isInterrupted()) {
+		return false;
+	    }
+	    LockSupport.parkNanos(PARK_NANOS);
+	}
+	return true;
+    }
+
+    // Removes the oldest packet from the ring, or returns null if the ring is
+    // empty. Must only be called from the consumer thread.
+    public SentPacket poll() {
+	long currentHead = head.get();
+	if (currentHead == tail.get()) {
+	    return null;
+	}
+
+	int index = (int)currentHead & mask;
+	SentPacket packet = slots[index];
+	slots[index] = null;
+	head.lazySet(currentHead + 1);
+	return packet;
+    }
+
+    // Gets the oldest packet in the ring without removing it, or returns null
+    // if the ring is empty. Must only be called from the consumer thread.
+    public SentPacket peek() {
+	long currentHead = head.get();
+	if (currentHead == tail.get()) {
+	    return null;
+	}
+
+	return slots[(int)currentHead & mask];
+    }
+
+    // Indicates whether there are no packets waiting in the ring.
+    public boolean isEmpty() {
+	return head.get() == tail.get();
+    }
+}
@@ -0,0 +1,88 @@
+package filetransfer;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+// A long running part of a transfer that borrows a thread from a pool instead
+// of having one of its own, so that the threads are reused from one transfer
+// to the next. It can still be started, interrupted and joined like a thread.
+public abstract class PooledTask implements Runnable {
+
+    private Thread runner;
+    private boolean interrupted;
+    private CountDownLatch finished;
+
+    public PooledTask() {
+	this.runner	 = null;
+	this.interrupted = false;
+	this.finished	 = new CountDownLatch(1);
+    }
+
+    // Runs the task on a thread from the given executor. If the executor has
+    // been shut down the task counts as finished without running.
+    public void start(Executor executor) {
+	try {
+	    executor.execute(this::runTask);
+	} catch (RejectedExecutionException e) {
+	    finished.countDown();
+	    throw e;
+	}
+    }
+
+    private void runTask() {
+	synchronized (this) {
+	    if (interrupted) {
+		finished.countDown();
+		return;
+	    }
+	    runner = Thread.currentThread();
+	}
+
+	try {
+	    run();
+	} finally {
+
+	    // Clear any interrupt so it can't leak into the next task that
+	    // borrows the thread.
+	    synchronized (this) {
+		runner = null;
+		Thread.interrupted();
+	    }
+	    finished.countDown();
+	}
+    }
+
+    // Interrupts the thread running the task. A task that hasn't started yet
+    // will never run.
+    public synchronized void interrupt() {
+	interrupted = true;
+	if (runner != null) {
+	    runner.interrupt();
+	}
+    }
+
+    // Wakes the thread running the task if it is parked.
+    protected void unpark() {
+	Thread thread;
+	synchronized (this) {
+	    thread = runner;
+	}
+	if (thread != null) {
+	    LockSupport.unpark(thread);
+	}
+    }
+
+    // Waits for the task to finish.
+    public void join() throws InterruptedException {
+	finished.await();
+    }
+
+    // Waits at most the given number of milliseconds for the task to finish.
+    // Returns false if it is still running.
+    public boolean join(long timeoutInMS) throws InterruptedException {
+	return finished.await(timeoutInMS, TimeUnit.MILLISECONDS);
+    }
+}
@@ -0,0 +1,76 @@
+package filetransfer;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.RunnableFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+// A fixed pool of threads that takes waiting tasks in order of the priority
+// class of the transfer they belong to, and in the order they were submitted
+// within a class. The preparers of every transfer share one pool, so without
+// this an interactive transfer's chunks would wait behind every chunk a bulk
+// transfer had already queued.
+public class PriorityExecutor extends ThreadPoolExecutor {
+
+    private AtomicLong submitted;
+
+    // A task waiting in the queue, ordered by priority and then by when it
+    // was submitted.
+    private static class Job<T> extends FutureTask<T> implements Comparable<Job<?>> {
+	final int priority;
+	final long order;
+
+	Job(Callable<T> task, int priority, long order) {
+	    super(task);
+	    this.priority = priority;
+	    this.order	  = order;
+	}
+
+	Job(Runnable task, T result, int priority, long order) {
+	    super(task, result);
+	    this.priority = priority;
+	    this.order	  = order;
+	}
+
+	public int compareTo(Job<?> other) {
+	    if (priority != other.priority) {
+		return Integer.compare(priority, other.priority);
+	    }
+	    return Long.compare(order, other.order);
+	}
+    }
+
+    // Creates a pool with the given number of threads.
+    public PriorityExecutor(int threads, ThreadFactory factory) {
+	super(threads, threads, 0, TimeUnit.MILLISECONDS, new PriorityBlockingQueue<Runnable>(), factory);
+	this.submitted = new AtomicLong(0);
+    }
+
+    // Submits a task in the given priority class of the TransmitScheduler.
+    public <T> Future<T> submit(Callable<T> task, int priority) {
+	Job<T> job = new Job<T>(task, priority, submitted.getAndIncrement());
+	execute(job);
+	return job;
+    }
+
+    // Anything submitted without a priority waits with the bulk transfers.
+    public void execute(Runnable task) {
+	if (!(task instanceof Job)) {
+	    task = new Job<Object>(task, null, TransmitScheduler.BULK, submitted.getAndIncrement());
+	}
+	super.execute(task);
+    }
+
+    protected <T> RunnableFuture<T> newTaskFor(Callable<T> task) {
+	return new Job<T>(task, TransmitScheduler.BULK, submitted.getAndIncrement());
+    }
+
+    protected <T> RunnableFuture<T> newTaskFor(Runnable task, T value) {
+	return new Job<T>(task, value, TransmitScheduler.BULK, submitted.getAndIncrement());
+    }
+}
@@ -0,0 +1,212 @@
+package filetransfer;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+// Reads a file in large chunks ahead of the network so that a slow disk read
+// does not drain the send window. The chunks are queued up to a limit on the
+// total number of bytes held in memory.
+//
+// A stream such as a pipe may have less to give than a chunk holds, and may
+// take a while to produce the rest. When streaming, whatever a read returns
+// is queued straight away rather than waiting for the chunk to fill, so the
+// data is on its way while the source is still producing it.
+public class ReadAheadReader extends PooledTask {
+
+    private InputStream input;
+    private boolean streaming;
+    private boolean endOfStream;
+    private LinkedList<FileChunk> queue;
+    private long queuedBytes;
+    private long maxQueuedBytes;
+    private int nextSeqNo;
+    private volatile long totalBytesRead;
+    private IOException error;
+    private Lock lock;
+    private Condition chunkAvailable;
+    private Condition spaceAvailable;
+
+    // Chunks are a whole number of segments so they split evenly.
+    public static final int CHUNK_SIZE	    = Sender.SEGMENT_SIZE * 1024;
+    public static final int PREFETCH_CHUNKS = 8;
+
+    // Creates a reader for the given stream that will keep up to maxQueuedBytes
+    // of data read ahead. The first packet of the file will be given the
+    // sequence number firstSeqNo. If streaming is set, a chunk is queued as
+    // soon as a read comes up short, instead of once it is full.
+    public ReadAheadReader(InputStream input, long maxQueuedBytes, int firstSeqNo, boolean streaming) {
+	this.input	    = input;
+	this.streaming	    = streaming;
+	this.endOfStream    = false;
+	this.nextSeqNo	    = firstSeqNo;
+	this.totalBytesRead = 0;
+	this.error	    = null;
+	this.queue	    = new LinkedList<FileChunk>();
+	this.queuedBytes    = 0;
+	this.maxQueuedBytes = maxQueuedBytes;
+
+	this.lock	    = new ReentrantLock();
+	this.chunkAvailable = lock.newCondition();
+	this.spaceAvailable = lock.newCondition();
+    }
+
+    // Reads the whole stream into chunks. The chunk that reaches the end of the
+    // stream is marked as final. If the file ends exactly on a chunk boundary,
+    // an empty final chunk follows. Each chunk is given the sequence number of
+    // its first packet so chunks can be prepared in any order. That depends on
+    // how many runs of zeros it has, so they are found here first.
+    public void run() {
+
+	while (true) {
+	    FileChunk chunk = new FileChunk();
+	    chunk.data = new byte[CHUNK_SIZE];
+
+	    try {
+		chunk.length = readFully(chunk.data);
+	    } catch (IOException e) {
+		fail(e);
+		return;
+	    }
+
+	    if (endOfStream) {
+		chunk.isFinal = true;
+	    }
+
+	    // Don't hold on to a whole chunk's worth of memory for a few bytes,
+	    // since a slow stream may queue up many small chunks.
+	    if (chunk.length == 0) {
+		chunk.data = null;
+	    } else if (chunk.length < CHUNK_SIZE / 2) {
+		chunk.data = Arrays.copyOf(chunk.data, chunk.length);
+	    }
+
+	    totalBytesRead += chunk.length;
+	    PacketPreparer.findZeroSegments(chunk);
+	    chunk.firstSequenceNumber = nextSeqNo;
+	    nextSeqNo += PacketPreparer.countPackets(chunk);
+
+	    if (!putChunk(chunk) || chunk.isFinal) {
+		break;
+	    }
+	}
+    }
+
+    // Gets the number of bytes read from the stream so far.
+    public long getTotalBytesRead() {
+	return totalBytesRead;
+    }
+
+    // Gets the error that stopped the reader, or null if there wasn't one.
+    public IOException getError() {
+	lock.lock();
+	try {
+	    return error;
+	} finally {
+	    lock.unlock();
+	}
+    }
+
+    // Records that the stream could not be read, and wakes the consumer.
+    private void fail(IOException e) {
+	lock.lock();
+	try {
+	    error = e;
+	    chunkAvailable.signal();
+	} finally {
+	    lock.unlock();
+	}
+    }
+
+    // Gets the next chunk of the file. If the disk has not caught up yet, this
+    // method will block until a chunk is available. Returns null if interrupted
+    // or if the stream could not be read.
+    public FileChunk takeChunk() {
+	lock.lock();
+	try {
+	    while (queue.isEmpty()) {
+		if (error != null) {
+		    return null;
+		}
+		try {
+		    chunkAvailable.await();
+		} catch (InterruptedException e) {
+		    return null;
+		}
+	    }
+
+	    return removeChunk();
+	} finally {
+	    lock.unlock();
+	}
+    }
+
+    // Gets the next chunk of the file if one has been read, without waiting.
+    // Returns null if there isn't one yet.
+    public FileChunk pollChunk() {
+	lock.lock();
+	try {
+	    if (queue.isEmpty()) {
+		return null;
+	    }
+	    return removeChunk();
+	} finally {
+	    lock.unlock();
+	}
+    }
+
+    // Takes the chunk at the head of the queue. The lock must be held.
+    private FileChunk removeChunk() {
+	FileChunk chunk = queue.removeFirst();
+	queuedBytes -= chunk.length;
+	spaceAvailable.signal();
+	return chunk;
+    }
+
+    // Queues a chunk, blocking while the read-ahead limit is reached. A chunk
+    // is always accepted when the queue is empty so large chunks can't stall.
+    private boolean putChunk(FileChunk chunk) {
+	lock.lock();
+	try {
+	    while (!queue.isEmpty() && queuedBytes + chunk.length > maxQueuedBytes) {
+		try {
+		    spaceAvailable.await();
+		} catch (InterruptedException e) {
+		    return false;
+		}
+	    }
+
+	    queue.addLast(chunk);
+	    queuedBytes += chunk.length;
+	    chunkAvailable.signal();
+	    return true;
+	} finally {
+	    lock.unlock();
+	}
+    }
+
+    // Fills the buffer from the stream, only returning early at the end of
+    // the file, or when streaming, once a read has given us less than we asked
+    // for. Returns the number of bytes read.
+    private int readFully(byte[] buffer) throws IOException {
+	int total = 0;
+	while (total < buffer.length) {
+	    int wanted = buffer.length - total;
+	    int bytesRead = input.read(buffer, total, wanted);
+	    if (bytesRead == Sender.EOF) {
+		endOfStream = true;
+		break;
+	    }
+	    total += bytesRead;
+
+	    if (streaming && bytesRead < wanted && total > 0) {
+		break;
+	    }
+	}
+	return total;
+    }
+}
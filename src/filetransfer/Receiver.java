@@ -1,19 +1,42 @@
 package filetransfer;
 
-import java.io.BufferedOutputStream;
+import java.io.FileDescriptor;
 import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.File;
-import java.io.FileNotFoundException;
+import java.net.InetAddress;
+import java.net.NetworkInterface;
 import java.net.SocketException;
+import java.net.UnknownHostException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 
 public class Receiver {
 	
     private int listeningPort;
-    private String lastError;
+    private long syncInterval;
+    private boolean syncAtEnd;
+    private long memoryCeiling;
+    private InetAddress group;
+    private NetworkInterface groupInterface;
+    private byte[] sharedKey;
+    private String output;
+    private String cacheDir;
+    private long cacheBytes;
+    private int transfers;
+    private int sockets;
 
-    private final int THREAD_TIMEOUT = 10000;
+    private final long DEFAULT_MEMORY = 64;
+    private final long DEFAULT_CACHE = 1024;
+    private final String USAGE = "usage: recvfile -p <recv_port> [-s none|end|<sync_mb>] [-m <window_mb>] " +
+	"[-g <group> [-i <interface>]] [-k <keyfile>] [-o <output>|-] [-c <cache_dir> [-C <cache_mb>]] " +
+	"[-n <transfers>] [-t <sockets>]";
 
     public Receiver(String [] args) {
 
@@ -22,100 +45,117 @@ public class Receiver {
 	    System.exit(1);
 	}
 
-	// Create a new thread to listen on the specified socket.
-	FileReceiveBuffer fileReceiver = null;
-	try {
-	    fileReceiver = new FileReceiveBuffer(listeningPort);
-	} catch (SocketException e) {
-	    System.err.println("[error] could not open socket. message: " + e.getMessage());
-	    System.exit(1);
+	// The transfer is received by a TransferServer, which writes it out to the
+	// current directory. A batch is split back out into files under a directory
+	// as it is written. Given an output, the transfer is written to it instead,
+	// as it arrives; that may be standard output, in which case everything we
+	// would have printed goes to standard error. Only the given number of
+	// transfers are taken before exiting, or with 0, any number of them, as
+	// for a directory being kept in sync.
+	final TransferHandler writer;
+	if (output != null) {
+	    WritableByteChannel channel = null;
+	    try {
+		if (output.equals("-")) {
+		    channel = new FileOutputStream(FileDescriptor.out).getChannel();
+		    System.setOut(System.err);
+		} else {
+		    channel = FileChannel.open(Paths.get(output), StandardOpenOption.CREATE,
+					       StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+		}
+	    } catch (IOException e) {
+		System.err.println("[error] could not open <output>. message: " + e.getMessage());
+		System.exit(1);
+	    }
+	    writer = new StreamTransferHandler(channel);
+	} else {
+	    writer = new FileTransferHandler(Paths.get(""), syncAtEnd || syncInterval > 0);
 	}
-	fileReceiver.start();
 
-	BufferedOutputStream writer = null;
-	AckSender ackSender = null;
-	boolean initialized = false;
-
-	while (true) {
-
-	    // Get the next sequential packet from the FileReceiveBuffer. If the next
-	    // packet hasn't arrived yet, this call with block until it becomes available.
-	    DataPacket packet = fileReceiver.getNextPacket();
+	final CountDownLatch done = new CountDownLatch(1);
+	final AtomicBoolean failed = new AtomicBoolean(false);
+	final AtomicInteger finished = new AtomicInteger(0);
+	TransferHandler handler = new TransferHandler() {
+		public GatheringByteChannel open(String name, boolean batch) throws IOException {
+		    return writer.open(name, batch);
+		}
 
-	    // If the transfer has not already been initialized,
-	    // wait for the init packet before we start writing
-	    // anything to disk.
-	    if (!initialized) {
-		if (!packet.isInitPacket()) {
-		    continue;
+		public void completed(String name, long bytes) {
+		    writer.completed(name, bytes);
+		    finish();
 		}
 
-		// The initialization packet should contain the name of the file that we are 
-		// going to write.
-		try {
-		    writer = new BufferedOutputStream(new FileOutputStream(packet.getFilename()));
-		} catch (FileNotFoundException e) {
-		    System.err.println("[error] could not create new file. message: " + e.getMessage());
-		    fileReceiver.close();
-		    System.exit(1);
-		} 
-
-		initialized = true;
-		continue;
-	    }
+		public void failed(String name, Exception error) {
+		    writer.failed(name, error);
+		    failed.set(true);
+		    finish();
+		}
 
-	    // Ignore any other init packets from now on.
-	    if (packet.isInitPacket()) {
-		continue;
-	    }
+		private void finish() {
+		    if (transfers > 0 && finished.incrementAndGet() >= transfers) {
+			done.countDown();
+		    }
+		}
+	    };
 
-	    // The last packet flag will indicate that we have received all
-	    // of the file.
-	    if (packet.isLastPacket()) {
-		fileReceiver.stopListening();
-		break;
-	    }
+	TransferServer server = null;
+	try {
+	    server = new TransferServer(listeningPort, group, groupInterface, memoryCeiling, sockets, handler);
+	} catch (IOException e) {
+	    System.err.println("[error] could not open socket. message: " + e.getMessage());
+	    System.exit(1);
+	}
+	server.setSyncPolicy(syncInterval, syncAtEnd);
 
-	    // Write the chunk of data from the packet to disk. If there is an error writing
-	    // to disk, stop listening for packets and break out of the loop.
+	// Chunks of deduplicated files are kept in the cache, so that files the
+	// sender offers later can be assembled from the ones already here.
+	if (cacheDir != null) {
 	    try {
-	    	writer.write(packet.getData());
+		server.setChunkStore(new ChunkStore(Paths.get(cacheDir), cacheBytes));
 	    } catch (IOException e) {
-		System.err.println("[error] could not write to file. message: " + e.getMessage());
-		fileReceiver.stopListening();
-		break;
+		System.err.println("[error] could not open <cache_dir>. message: " + e.getMessage());
+		server.close();
+		System.exit(1);
 	    }
 	}
-
-	// Send 10 duplicate ACK packets when finished and hope that not all 10 are lost/mangled.
-	fileReceiver.sendLastAck(10);
-	
-	try {
-		writer.close();
-	} catch (IOException e) {
-		System.err.println("[error] file writer failed to close: " + e.getMessage());
-	} finally {
-		fileReceiver.close();
+	if (sharedKey != null) {
+	    server.setSharedKey(sharedKey);
 	}
+	server.start();
 
-	// Wait for the thread to complete before exiting.
 	try {
-	    fileReceiver.join(THREAD_TIMEOUT);
+	    done.await();
 	} catch (InterruptedException e) {
-	    System.err.println("[error] interrupted while closing threads. " + 
+	    System.err.println("[error] interrupted while receiving. " + 
 			       "transfer may not have finished normally.");
+	    failed.set(true);
 	}
+	server.close();
 
+	if (failed.get()) {
+	    System.exit(1);
+	}
 	System.out.println("[completed]");
     }
 
     private boolean parseArgs(String[] args) {
 
 	listeningPort = -1;
+	syncInterval = 0;
+	syncAtEnd = false;
+	memoryCeiling = DEFAULT_MEMORY * 1024 * 1024;
+	group = null;
+	groupInterface = null;
+	sharedKey = null;
+	output = null;
+	cacheDir = null;
+	cacheBytes = DEFAULT_CACHE * 1024 * 1024;
+	transfers = 1;
+	sockets = 1;
 	int argc = args.length;
 
-	if (argc != 2) {
-	    System.err.println("usage: recvfile -p <recv_port>");
+	if (argc < 2 || argc % 2 != 0) {
+	    System.err.println(USAGE);
 	    return false;
 	}
 
@@ -130,12 +170,170 @@ public class Receiver {
 		    return false;
 		}
 	    }
+
+	    // The sync policy controls how often the file is forced out to disk:
+	    // never, once at the end, or every <sync_mb> megabytes.
+	    if (args[i].equals("-s") && i + 1 < argc) {
+
+		String policy = args[i + 1];
+		if (policy.equals("none")) {
+		    syncAtEnd = false;
+		} else if (policy.equals("end")) {
+		    syncAtEnd = true;
+		} else {
+		    try {
+			syncInterval = Long.parseLong(policy) * 1024 * 1024;
+			syncAtEnd = true;
+		    } catch (NumberFormatException e) {
+			syncInterval = -1;
+		    }
+
+		    if (syncInterval <= 0) {
+			System.err.println("[error] <sync_mb> must be a positive integer");
+			return false;
+		    }
+		}
+	    }
+
+	    // The most memory the receive window may grow to use.
+	    if (args[i].equals("-m") && i + 1 < argc) {
+
+		try {
+		    memoryCeiling = Long.parseLong(args[i + 1]) * 1024 * 1024;
+		} catch (NumberFormatException e) {
+		    memoryCeiling = 0;
+		}
+
+		if (memoryCeiling <= 0) {
+		    System.err.println("[error] <window_mb> must be a positive integer");
+		    return false;
+		}
+	    }
+
+	    // Join a multicast group to receive a file sent to many receivers.
+	    if (args[i].equals("-g") && i + 1 < argc) {
+
+		try {
+		    group = InetAddress.getByName(args[i + 1]);
+		} catch (UnknownHostException e) {
+		    group = null;
+		}
+
+		if (group == null || !group.isMulticastAddress()) {
+		    System.err.println("[error] <group> must be a multicast address");
+		    return false;
+		}
+	    }
+
+	    // The network interface to join the group on.
+	    if (args[i].equals("-i") && i + 1 < argc) {
+
+		try {
+		    groupInterface = NetworkInterface.getByName(args[i + 1]);
+		} catch (SocketException e) {
+		    groupInterface = null;
+		}
+
+		if (groupInterface == null) {
+		    System.err.println("[error] <interface> does not exist");
+		    return false;
+		}
+	    }
+
+	    // Write the transfer to a file or pipe, or to standard output for "-",
+	    // instead of to the current directory.
+	    if (args[i].equals("-o") && i + 1 < argc) {
+		output = args[i + 1];
+	    }
+
+	    // Only take transfers encrypted with a key shared with the sender.
+	    if (args[i].equals("-k") && i + 1 < argc) {
+
+		try {
+		    sharedKey = PacketCipher.readKeyFile(Paths.get(args[i + 1]));
+		} catch (IOException e) {
+		    System.err.println("[error] could not read <keyfile>. message: " + e.getMessage());
+		    return false;
+		}
+	    }
+
+	    // Keep the chunks of deduplicated files in this directory.
+	    if (args[i].equals("-c") && i + 1 < argc) {
+		cacheDir = args[i + 1];
+	    }
+
+	    // The most the chunk cache may hold, in megabytes.
+	    if (args[i].equals("-C") && i + 1 < argc) {
+
+		try {
+		    cacheBytes = Long.parseLong(args[i + 1]) * 1024 * 1024;
+		} catch (NumberFormatException e) {
+		    cacheBytes = 0;
+		}
+
+		if (cacheBytes <= 0) {
+		    System.err.println("[error] <cache_mb> must be a positive integer");
+		    return false;
+		}
+	    }
+
+	    // The number of transfers to take before exiting, or 0 for no limit.
+	    if (args[i].equals("-n") && i + 1 < argc) {
+
+		try {
+		    transfers = Integer.parseInt(args[i + 1]);
+		} catch (NumberFormatException e) {
+		    transfers = -1;
+		}
+
+		if (transfers < 0) {
+		    System.err.println("[error] <transfers> must be a non-negative integer");
+		    return false;
+		}
+	    }
+
+	    // The number of sockets, each with a thread of its own, to take
+	    // datagrams in on. The kernel keeps each sender address on one socket,
+	    // so this only spreads a single transfer out if it uses -P paths.
+	    if (args[i].equals("-t") && i + 1 < argc) {
+
+		try {
+		    sockets = Integer.parseInt(args[i + 1]);
+		} catch (NumberFormatException e) {
+		    sockets = 0;
+		}
+
+		if (sockets <= 0) {
+		    System.err.println("[error] <sockets> must be a positive integer");
+		    return false;
+		}
+	    }
 	}
 
 	if (listeningPort < 0) {
 	    System.err.println("[error] <recv_port> must be a positive integer");
 	    return false;
 	}
+
+	if (output != null && transfers != 1) {
+	    System.err.println("[error] -n can't be used with -o");
+	    return false;
+	}
+
+	if (output != null && (syncAtEnd || syncInterval > 0)) {
+	    System.err.println("[error] -s can't be used with -o");
+	    return false;
+	}
+
+	if (sockets > 1 && group != null) {
+	    System.err.println("[error] -t can't be used with -g");
+	    return false;
+	}
+
+	if (groupInterface != null && group == null) {
+	    System.err.println("[error] -i needs a multicast -g <group>");
+	    return false;
+	}
 	
 	return true;
     }
@@ -0,0 +1,169 @@
+package filetransfer;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+// A fixed budget of off-heap memory cut into slots that each hold one packet.
+// Both ends of a transfer keep their windows in a slab, so the memory used is
+// bounded up front and packets are never copied between heap arrays and the
+// socket.
+//
+// Slots are handed out from a lock-free free list, so any thread can allocate
+// or release a slot. The memory is reserved in regions as the slab fills up,
+// which keeps a large budget from being paid for on small transfers.
+public class SegmentSlab {
+
+    private ByteBuffer[] regions;
+    private AtomicIntegerArray nextFree;
+    private AtomicLong freeHead;
+    private AtomicLong freeCount;
+    private int capacity;
+    private volatile int allocatedSlots;
+    private Object growLock;
+
+    // Every packet fits in a slot, with room for the largest datagram.
+    public static final int SLOT_SIZE	 = 2048;
+    public static final int REGION_SLOTS = 512;
+
+    private static final int NO_SLOT	 = -1;
+    private static final long PARK_NANOS = 50000;
+
+    // Creates a slab holding at most budgetBytes of packets. At least one
+    // region is always available.
+    public SegmentSlab(long budgetBytes) {
+	int regionCount = (int)Math.max(1, budgetBytes / ((long)SLOT_SIZE * REGION_SLOTS));
+
+	this.regions	    = new ByteBuffer[regionCount];
+	this.capacity	    = regionCount * REGION_SLOTS;
+	this.nextFree	    = new AtomicIntegerArray(capacity);
+	this.freeHead	    = new AtomicLong(pack(0, NO_SLOT));
+	this.freeCount	    = new AtomicLong(0);
+	this.allocatedSlots = 0;
+	this.growLock	    = new Object();
+    }
+
+    // Takes a free slot, reserving another region if all reserved slots are in
+    // use. Returns -1 when the whole budget is in use.
+    public int allocate() {
+	while (true) {
+	    int slot = pop();
+	    if (slot != NO_SLOT) {
+		return slot;
+	    }
+	    if (!grow()) {
+		return pop();
+	    }
+	}
+    }
+
+    // Takes a free slot, waiting for one to be released if the budget is used
+    // up. Returns -1 if the thread is interrupted.
+    public int allocateBlocking() {
+	while (true) {
+	    int slot = allocate();
+	    if (slot != NO_SLOT) {
+		return slot;
+	    }
+	    LockSupport.parkNanos(PARK_NANOS);
+	    if (Thread.currentThread().isInterrupted()) {
+		return NO_SLOT;
+	    }
+	}
+    }
+
+    // Returns a slot to the slab. Negative slots are ignored so packets that
+    // never had a slot can be released without checking.
+    public void release(int slot) {
+	if (slot < 0) {
+	    return;
+	}
+	push(slot);
+    }
+
+    // Gets a buffer covering the whole of a slot, positioned at its start.
+    public ByteBuffer buffer(int slot) {
+	ByteBuffer region = regions[slot / REGION_SLOTS].duplicate();
+	int offset = (slot % REGION_SLOTS) * SLOT_SIZE;
+	region.limit(offset + SLOT_SIZE);
+	region.position(offset);
+	return region.slice();
+    }
+
+    // Gets the number of slots the budget allows for.
+    public int getCapacity() {
+	return capacity;
+    }
+
+    // Gets the number of slots that could still be allocated.
+    public int getFreeSlots() {
+	return (int)(capacity - allocatedSlots + freeCount.get());
+    }
+
+    // Reserves the next region and puts its slots on the free list. Returns
+    // false if the budget is used up.
+    private boolean grow() {
+	synchronized (growLock) {
+
+	    // Another thread may have grown the slab while we waited.
+	    if (freeCount.get() > 0) {
+		return true;
+	    }
+	    if (allocatedSlots == capacity) {
+		return false;
+	    }
+
+	    int region = allocatedSlots / REGION_SLOTS;
+	    regions[region] = ByteBuffer.allocateDirect(SLOT_SIZE * REGION_SLOTS);
+	    allocatedSlots += REGION_SLOTS;
+
+	    for (int slot = (region + 1) * REGION_SLOTS - 1; slot >= region * REGION_SLOTS; --slot) {
+		push(slot);
+	    }
+	    return true;
+	}
+    }
+
+    // Pops a slot off the free list, or returns -1 if it's empty. The head
+    // carries a tag that changes on every update so a slot that is popped and
+    // pushed back between our read and our swap can't be mistaken for the head.
+    private int pop() {
+	while (true) {
+	    long head = freeHead.get();
+	    int slot = slotOf(head);
+	    if (slot == NO_SLOT) {
+		return NO_SLOT;
+	    }
+	    long next = pack(tagOf(head) + 1, nextFree.get(slot));
+	    if (freeHead.compareAndSet(head, next)) {
+		freeCount.decrementAndGet();
+		return slot;
+	    }
+	}
+    }
+
+    // Pushes a slot onto the free list.
+    private void push(int slot) {
+	while (true) {
+	    long head = freeHead.get();
+	    nextFree.set(slot, slotOf(head));
+	    if (freeHead.compareAndSet(head, pack(tagOf(head) + 1, slot))) {
+		freeCount.incrementAndGet();
+		return;
+	    }
+	}
+    }
+
+    private static long pack(int tag, int slot) {
+	return ((long)tag << 32) | ((slot + 1) & 0xFFFFFFFFL);
+    }
+
+    private static int tagOf(long head) {
+	return (int)(head >>> 32);
+    }
+
+    private static int slotOf(long head) {
+	return (int)head - 1;
+    }
+}
@@ -0,0 +1,206 @@
+package filetransfer;
+
+import java.net.InetSocketAddress;
+import java.nio.channels.DatagramChannel;
+
+// One of the paths a multipath transfer sends over: a socket bound to a local
+// address, and the address it sends to. Each path keeps its own round trip
+// time and its own congestion window, so that a slow or lossy link only holds
+// back the packets sent over it.
+//
+// The window is in packets and grows as in TCP Reno: by one for each packet
+// acknowledged while under the slow start threshold, and by one per window
+// after that. A loss on the path halves it, at most once per round trip of
+// that path, and the halving is undone if the loss turns out to have been
+// reordering.
+//
+// A packet counts against the window until it is acknowledged, given up for
+// lost, or sent again. ACKs are cumulative, so a packet that arrives past a
+// hole isn't acknowledged until the hole is filled, maybe over another path.
+// A packet that has gone unanswered for three round trips of the path has
+// left it one way or the other, so it stops counting then too. The packets
+// sent over the path are queued with their send times in a pair of rings, so
+// that sending a packet allocates nothing once the rings are big enough.
+public class SendPath {
+
+    private DatagramChannel channel;
+    private InetSocketAddress destination;
+    private BandwidthEstimator estimator;
+    private double window;
+    private double threshold;
+    private int inFlight;
+    private long lastLoss;
+    private double undoWindow;
+    private double undoThreshold;
+    private long packetsSent;
+    private SentPacket[] unanswered;
+    private long[] sentTimes;
+    private int unansweredHead;
+    private int unansweredCount;
+
+    private static final int INITIAL_WINDOW = 10;
+    private static final int MIN_WINDOW = 2;
+    private static final long MIN_LOSS_INTERVAL_NANOS = 1000000;
+    private static final int EXPIRY_ROUND_TRIPS = 3;
+    private static final int INITIAL_QUEUE_SIZE = 64;
+    private static final long UNMEASURED_EXPIRY_NANOS = 100000000;
+
+    // Creates a path that sends to the destination through the channel.
+    public SendPath(DatagramChannel channel, InetSocketAddress destination) {
+	this.channel	 = channel;
+	this.destination = destination;
+	this.estimator	 = new BandwidthEstimator();
+	this.window	 = INITIAL_WINDOW;
+	this.threshold	 = Double.MAX_VALUE;
+	this.inFlight	 = 0;
+	this.lastLoss	 = 0;
+	this.undoWindow	 = 0;
+	this.undoThreshold = 0;
+	this.packetsSent = 0;
+	this.unanswered	 = new SentPacket[INITIAL_QUEUE_SIZE];
+	this.sentTimes	 = new long[INITIAL_QUEUE_SIZE];
+	this.unansweredHead  = 0;
+	this.unansweredCount = 0;
+    }
+
+    public DatagramChannel getChannel() {
+	return channel;
+    }
+
+    public InetSocketAddress getDestination() {
+	return destination;
+    }
+
+    // Gets the smoothed round trip time of the path in nanoseconds, or 0 if
+    // nothing sent over it has been acknowledged yet.
+    public long getSmoothedRtt() {
+	return estimator.getSmoothedRtt();
+    }
+
+    // Tells whether the path's window has room for another packet.
+    public boolean hasRoom() {
+	return inFlight < (int)window;
+    }
+
+    // Estimates how long a packet sent over the path now would take to get
+    // through, given that the path delivers a window's worth of packets per
+    // round trip. A path that hasn't been measured yet, or has nothing in
+    // flight, comes first, so that its round trip time never goes stale.
+    public double getDeliveryTime() {
+	if (inFlight == 0) {
+	    return 0;
+	}
+	return (double)estimator.getSmoothedRtt() * (inFlight + 1) / window;
+    }
+
+    // Records that a packet went out over the path at the given time, which
+    // is also its last sent time.
+    public void sent(SentPacket packet, long now) {
+	packet.onPath = true;
+	++inFlight;
+	++packetsSent;
+
+	if (unansweredCount == unanswered.length) {
+	    growQueue();
+	}
+	int index = (unansweredHead + unansweredCount) & (unanswered.length - 1);
+	unanswered[index] = packet;
+	sentTimes[index]  = now;
+	++unansweredCount;
+    }
+
+    // Doubles the size of the rings, moving the queued packets to the start.
+    private void growQueue() {
+	int size = unanswered.length;
+	SentPacket[] packets = new SentPacket[size * 2];
+	long[] times = new long[size * 2];
+	for (int i = 0; i < unansweredCount; ++i) {
+	    int index = (unansweredHead + i) & (size - 1);
+	    packets[i] = unanswered[index];
+	    times[i]   = sentTimes[index];
+	}
+	unanswered     = packets;
+	sentTimes      = times;
+	unansweredHead = 0;
+    }
+
+    // Records that the copy of a packet last sent over the path has been
+    // acknowledged, given up for lost, or sent again.
+    public void left(SentPacket packet) {
+	if (packet.onPath) {
+	    packet.onPath = false;
+	    --inFlight;
+	}
+    }
+
+    // Stops counting the packets that have gone unanswered for
+    // EXPIRY_ROUND_TRIPS round trips of the path. A packet sent again since it went over the path, on
+    // this path or another, is dropped from the queue, since its newer copy
+    // is the one that counts.
+    public void expire(long now) {
+	long rtt = estimator.getSmoothedRtt();
+	long expiry = (rtt > 0) ? EXPIRY_ROUND_TRIPS * rtt : UNMEASURED_EXPIRY_NANOS;
+	while (unansweredCount > 0) {
+	    SentPacket packet = unanswered[unansweredHead];
+	    long sentTime = sentTimes[unansweredHead];
+	    if (packet.lastSentTime == sentTime) {
+		if (now - sentTime < expiry) {
+		    return;
+		}
+		left(packet);
+	    }
+	    unanswered[unansweredHead] = null;
+	    unansweredHead = (unansweredHead + 1) & (unanswered.length - 1);
+	    --unansweredCount;
+	}
+    }
+
+    // Opens up the window for a packet acknowledged on the path. A packet that
+    // was only sent once also gives a round trip time.
+    public void acked(long rtt, long now) {
+	if (rtt > 0) {
+	    estimator.addRttSample(rtt, now);
+	}
+	if (window < threshold) {
+	    window += 1;
+	} else {
+	    window += 1 / window;
+	}
+    }
+
+    // Halves the window for a packet lost on the path.
+    public void lost(long now) {
+	long interval = Math.max(estimator.getSmoothedRtt(), MIN_LOSS_INTERVAL_NANOS);
+	if (lastLoss != 0 && now - lastLoss < interval) {
+	    return;
+	}
+	lastLoss = now;
+	if (undoWindow == 0) {
+	    undoWindow = window;
+	    undoThreshold = threshold;
+	}
+	window = Math.max(MIN_WINDOW, window / 2);
+	threshold = window;
+    }
+
+    // Puts the window back to where it was before the losses since the last
+    // commit, which turned out to be spurious.
+    public void undoLoss() {
+	if (undoWindow != 0) {
+	    window = Math.max(window, undoWindow);
+	    threshold = undoThreshold;
+	    undoWindow = 0;
+	}
+    }
+
+    // Keeps the reductions for the losses so far, which can no longer be undone.
+    public void commitLoss() {
+	undoWindow = 0;
+    }
+
+    public String toString() {
+	return String.format("%s -> %s: %d packets, rtt %d us, window %d",
+			     channel.socket().getLocalSocketAddress(), destination, packetsSent,
+			     estimator.getSmoothedRtt() / 1000, (int)window);
+    }
+}
@@ -1,148 +1,133 @@
 package filetransfer;
 
+import java.io.File;
+import java.io.FileDescriptor;
 import java.io.FileInputStream;
-import java.io.BufferedInputStream;
 import java.io.IOException;
-import java.io.File;
-import java.io.FileNotFoundException;
-import java.net.DatagramSocket;
-import java.net.SocketException;
-import java.net.DatagramPacket;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.NetworkInterface;
+import java.net.SocketException;
 import java.net.UnknownHostException;
-import java.util.Date;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
 
 public class Sender {
 	
-    private int sendingPort;
-    private InetAddress destination;
+    private InetSocketAddress destination;
     private File file;
-    private AckReceiver ackReceiver;
-    private FileSendBuffer sender;
+    private File listFile;
+    private File followFile;
+    private File syncIndex;
+    private boolean fromStdin;
+    private long memoryCeiling;
+    private int receivers;
+    private NetworkInterface groupInterface;
+    private long rateLimit;
+    private byte[] sharedKey;
+    private long dedupMinBytes;
+    private int priority;
+    private long backgroundTarget;
+    private ArrayList<TransferPath> extraPaths;
 
     static public final int	SEGMENT_SIZE   = 1000;
     static final int		EOF	       = -1;
-    static final long		ACK_TIMEOUT    = 30000; 
-    static final long		THREAD_TIMEOUT = 1000;
+    static final long		DEFAULT_MEMORY = 64;
+    static final String		STDIN_NAME     = "stdin";
+    static final long		STOP_TIMEOUT   = 30;
+    static final String		USAGE	       = "usage: sendfile -r <recv_host>:<recv_port> (-f <filename> | -f <directory> | " +
+						 "-f - | -F <filename> | -l <listfile>) [-m <window_mb>] [-n <receivers>] [-i <interface>] " +
+						 "[-c <rate_mb>] [-k <keyfile>] [-d <min_mb>] [-b <target_ms>] " +
+						 "[-P <local_addr>,<recv_host>:<recv_port> ...] [-S <index_file>]";
 	
     public Sender(String [] args) {
 
-	// Record the starting time so we can calculate how long the transfer took.
-	long startTime = new Date().getTime();
-
 	// Validate the user input before continuing.
 	if (!parseArgs(args)) {
 	    System.exit(1);
 	}
 
-	// Before sending any data over the network, verify that the file we are trying to send is
-	// valid by attempting to open it.
-	BufferedInputStream reader = null;
-	try {
-	    reader = new BufferedInputStream(new FileInputStream(file));
-	} catch (FileNotFoundException e) {
-	    System.err.println("[error] could not open the specified file. message: " + e.getMessage());
-	    System.exit(1);
-	}
-
-	// Create a new thread to listen for incoming ACK packets.
-	try {
-	    ackReceiver = new AckReceiver();
-	} catch (SocketException e) {
-	    try{
-		System.err.println("[error] could not create the ack receiver. message: " + e.getMessage());
-		reader.close();
-		sender.close();
-	    } catch (IOException r) {
-		System.err.println("[error] file reader failed to close: " + r.getMessage());
-	    } finally {
-		System.exit(1);  	
+	// The transfer itself is run by a TransferClient. A directory or a list of
+	// files is sent as a single batch, with the files packed back to back into
+	// one stream. Standard input is streamed as it is read, however long it
+	// turns out to be. When sending to a multicast group, the transfer only
+	// completes once every receiver in the group has all of it. A file of at
+	// least the dedup size only sends the chunks the receiver doesn't hold.
+	// A background transfer only uses capacity that nothing else wants. Extra
+	// paths carry a file or directory alongside the main one. A followed file
+	// is streamed as it grows until it is rotated, or until we are told to
+	// stop, when whatever has been written so far is still sent. A synced
+	// directory is kept up to date until we are stopped.
+	TransferResult result = null;
+	CountDownLatch finished = new CountDownLatch(1);
+	try (TransferClient client = new TransferClient(memoryCeiling)) {
+	    client.setRateLimit(rateLimit);
+	    client.setSharedKey(sharedKey);
+	    client.setDedup(dedupMinBytes);
+	    client.setBackgroundTarget(backgroundTarget);
+	    if (groupInterface != null) {
+		client.setMulticastInterface(groupInterface);
 	    }
-	}
-
-	// Try opening a socket to send packets over in a new thread.
-	try {
-	    sender = new FileSendBuffer(destination, sendingPort, ackReceiver);
-	} catch (SocketException e) {
-	    try{
-		System.err.println("[error] could not create a socket. message: " + e.getMessage());
-	    	reader.close();
-	    } catch(IOException r) {
-		System.err.println("[error] file reader failed to close. message: " + r.getMessage());
-	    } finally {
-		System.exit(1);  	
+	    CompletableFuture<TransferResult> transfer;
+	    if (syncIndex != null) {
+		new DirectorySync(client, file.toPath(), syncIndex.toPath(), destination, priority).run();
+		return;
+	    } else if (listFile != null) {
+		transfer = client.sendList(listFile.toPath(), destination, receivers, priority,
+					   TransmitScheduler.DEFAULT_WEIGHT, null);
+	    } else if (fromStdin) {
+		transfer = client.sendStream(new FileInputStream(FileDescriptor.in).getChannel(), STDIN_NAME,
+					     destination, receivers, priority,
+					     TransmitScheduler.DEFAULT_WEIGHT, null);
+	    } else if (followFile != null) {
+		FollowChannel follower = new FollowChannel(followFile.toPath(), FollowChannel.DEFAULT_BATCH_DELAY_MS);
+		Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+		    follower.stop();
+		    try {
+			finished.await(STOP_TIMEOUT, TimeUnit.SECONDS);
+		    } catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		    }
+		}));
+		transfer = client.sendStream(follower, followFile.getName(), destination, receivers, priority,
+					     TransmitScheduler.DEFAULT_WEIGHT, null);
+	    } else if (!extraPaths.isEmpty()) {
+		ArrayList<TransferPath> paths = new ArrayList<TransferPath>();
+		paths.add(new TransferPath(null, destination));
+		paths.addAll(extraPaths);
+		transfer = client.send(file.toPath(), paths, priority, TransmitScheduler.DEFAULT_WEIGHT, null);
+	    } else {
+		transfer = client.send(file.toPath(), destination, receivers, priority,
+				       TransmitScheduler.DEFAULT_WEIGHT, null);
 	    }
-	}
-
-	ackReceiver.setSendBuffer(sender);
-	ackReceiver.start();
-
-	sender.start();
-
-	// Create the initial packet to setup the transfer with
-	// the receiver.
-	DataPacket initPacket = new DataPacket(file, ackReceiver.getPort());
-	sender.sendPacket(initPacket);
-
-	// Read the file a chunk at a time and send it off in a packet. The FileSendBuffer
-	// will store the packet in a buffer until it is ready to transmit, and retransmit
-	// as necessary until it is acknowledged. If the buffer is full, the sendPacket
-	// method will block until there is room.
-
-	byte[] buffer = new byte[SEGMENT_SIZE];
-	
-	int bytesRead = 0;
-	try {
-	    bytesRead = reader.read(buffer);
+	    result = transfer.get();
 	} catch (IOException e) {
-	    System.err.println("[error] file read error. message: " + e.getMessage());
+	    System.err.println("[error] could not start the transfer. message: " + e.getMessage());
+	    finished.countDown();
+	    System.exit(1);
+	} catch (ExecutionException e) {
+	    System.err.println("[error] transfer failed. message: " + e.getCause().getMessage());
+	    finished.countDown();
 	    System.exit(1);
-	}
-
-	while (bytesRead != EOF) {
-	    DataPacket filePacket = new DataPacket(buffer, bytesRead, false);
-	    sender.sendPacket(filePacket);
-	    try{
-		bytesRead = reader.read(buffer);
-	    } catch(IOException x) {
-		System.err.println("[error] file read error. message: " + x.getMessage());
-		System.exit(1);
-	    }
-	}
-
-	// The final packet is used to signal the end of a transfer.
-	DataPacket lastPacket = new DataPacket(null, 0, true);
-	sender.sendPacket(lastPacket);
-
-	// Wait for the last ACK packet to come in before terminating.
-	ackReceiver.waitForAck(lastPacket.getSequenceNumber(), ACK_TIMEOUT);
-
-	// Close both threads.
-	ackReceiver.stopListening();
-	sender.stopSending();
-
-	try {
-	    ackReceiver.join(THREAD_TIMEOUT);
-	    sender.join(THREAD_TIMEOUT);
 	} catch (InterruptedException e) {
-	    System.err.println("[error] interrupted while closing threads. " + 
-			       "transfer may not have finished normally.");
-	}
-
-	try {
-	    sender.close();
-	    reader.close();
-	} catch(IOException x) {
-	    System.err.println("[error] file reader failed to close: " + x.getMessage());
+	    System.err.println("[error] interrupted while sending the file.");
+	    finished.countDown();
+	    System.exit(1);
 	}
 
 	System.out.println("[completed]");
 
-	long runningTime = new Date().getTime() - startTime;
-	long totalDataSent = sender.getTotalDataSent();
-	long fileSize = file.length();
+	long totalDataSent = result.getDataSent();
+	long fileSize = result.getBytes();
 
-	System.out.format("[stats] running time: %d ms\n", runningTime);
+	System.out.format("[stats] running time: %d ms\n", result.getRunningTime());
+	if (listFile != null || (file != null && file.isDirectory())) {
+	    System.out.format("[stats] files: %d\n", result.getFileCount());
+	}
 	System.out.format("[stats] file size: %d bytes\n", fileSize);
 	System.out.format("[stats] total data sent: %d bytes\n", totalDataSent);
 	double efficiency = 0.0;
@@ -150,6 +135,7 @@ public class Sender {
 	    efficiency = (double)fileSize / (double)totalDataSent;
 	}
 	System.out.format("[stats] efficiency: %04.2f percent\n", efficiency * 100);
+	finished.countDown();
     }
 
 
@@ -157,9 +143,19 @@ public class Sender {
     // if they are formatted incorrectly.
     private boolean parseArgs(String[] args) {
 	int argc = args.length;
-
-	if (argc != 4) {
-	    System.err.println("usage: sendfile -r <recv_host>:<recv_port> -f <filename>");
+	memoryCeiling = DEFAULT_MEMORY * 1024 * 1024;
+	receivers = 1;
+	groupInterface = null;
+	rateLimit = 0;
+	fromStdin = false;
+	sharedKey = null;
+	dedupMinBytes = -1;
+	priority = TransmitScheduler.BULK;
+	backgroundTarget = LedbatController.DEFAULT_TARGET_MS;
+	extraPaths = new ArrayList<TransferPath>();
+
+	if (argc < 4 || argc % 2 != 0) {
+	    System.err.println(USAGE);
 	    return false;
 	}
 
@@ -173,31 +169,226 @@ public class Sender {
 		    return false;
 		}
 
+		InetAddress host;
 		try {
-		    destination = InetAddress.getByName(hostArgs[0]);
+		    host = InetAddress.getByName(hostArgs[0]);
 		} catch(UnknownHostException e) {
 		    System.err.println("[error] <recv_host> must be in a.b.c.d format");
 		    return false;
 		}
 
 		try {
-		    sendingPort = Integer.parseInt(hostArgs[1]);
-		} catch (NumberFormatException e) {
+		    destination = new InetSocketAddress(host, Integer.parseInt(hostArgs[1]));
+		} catch (IllegalArgumentException e) {
 		    System.err.println("[error] <recv_port> must be an integer");
 		    return false;
 		}
 	    }
 			
-	    // Verify that the file exists and is a normal file (i.e. not a directory, etc.).
-	    if( args[i].equals("-f") && i + 1 < argc) {
+	    // Verify that the file exists and is a normal file or a directory to send
+	    // as a batch. A file of "-" is standard input.
+	    if (args[i].equals("-f") && i + 1 < argc && args[i + 1].equals("-")) {
+		fromStdin = true;
+	    } else if( args[i].equals("-f") && i + 1 < argc) {
 
 		file = new File(args[i + 1]);
 
-		if (!file.exists() || !file.isFile()) {
+		if (!file.exists() || !(file.isFile() || file.isDirectory())) {
 		    System.err.println("[error] file does not exist");
 		    return false;
 		}
 	    }
+
+	    // A file to follow as it grows, until it is rotated.
+	    if (args[i].equals("-F") && i + 1 < argc) {
+
+		followFile = new File(args[i + 1]);
+
+		if (!followFile.isFile()) {
+		    System.err.println("[error] file does not exist");
+		    return false;
+		}
+	    }
+
+	    // Keep the directory synced, with the index of what the receiver has
+	    // in this file.
+	    if (args[i].equals("-S") && i + 1 < argc) {
+		syncIndex = new File(args[i + 1]);
+	    }
+
+	    // A file listing the files to send as a batch, one per line.
+	    if (args[i].equals("-l") && i + 1 < argc) {
+
+		listFile = new File(args[i + 1]);
+
+		if (!listFile.isFile()) {
+		    System.err.println("[error] list file does not exist");
+		    return false;
+		}
+	    }
+
+	    // The most unacknowledged data the window may grow to hold.
+	    if (args[i].equals("-m") && i + 1 < argc) {
+
+		try {
+		    memoryCeiling = Long.parseLong(args[i + 1]) * 1024 * 1024;
+		} catch (NumberFormatException e) {
+		    memoryCeiling = 0;
+		}
+
+		if (memoryCeiling <= 0) {
+		    System.err.println("[error] <window_mb> must be a positive integer");
+		    return false;
+		}
+	    }
+
+	    // The number of receivers in the multicast group that must all
+	    // receive the whole file.
+	    if (args[i].equals("-n") && i + 1 < argc) {
+
+		try {
+		    receivers = Integer.parseInt(args[i + 1]);
+		} catch (NumberFormatException e) {
+		    receivers = 0;
+		}
+
+		if (receivers <= 0) {
+		    System.err.println("[error] <receivers> must be a positive integer");
+		    return false;
+		}
+	    }
+
+	    // The network interface to send to a multicast group on.
+	    if (args[i].equals("-i") && i + 1 < argc) {
+
+		try {
+		    groupInterface = NetworkInterface.getByName(args[i + 1]);
+		} catch (SocketException e) {
+		    groupInterface = null;
+		}
+
+		if (groupInterface == null) {
+		    System.err.println("[error] <interface> does not exist");
+		    return false;
+		}
+	    }
+
+	    // The most data to send per second, in megabytes.
+	    if (args[i].equals("-c") && i + 1 < argc) {
+
+		try {
+		    rateLimit = Long.parseLong(args[i + 1]) * 1024 * 1024;
+		} catch (NumberFormatException e) {
+		    rateLimit = 0;
+		}
+
+		if (rateLimit <= 0) {
+		    System.err.println("[error] <rate_mb> must be a positive integer");
+		    return false;
+		}
+	    }
+
+	    // Encrypt the transfer with a key shared with the receiver.
+	    if (args[i].equals("-k") && i + 1 < argc) {
+
+		try {
+		    sharedKey = PacketCipher.readKeyFile(Paths.get(args[i + 1]));
+		} catch (IOException e) {
+		    System.err.println("[error] could not read <keyfile>. message: " + e.getMessage());
+		    return false;
+		}
+	    }
+
+	    // Deduplicate files of at least this many megabytes against the
+	    // receiver's chunk store.
+	    if (args[i].equals("-d") && i + 1 < argc) {
+
+		try {
+		    dedupMinBytes = Long.parseLong(args[i + 1]) * 1024 * 1024;
+		} catch (NumberFormatException e) {
+		    dedupMinBytes = -1;
+		}
+
+		if (dedupMinBytes < 0) {
+		    System.err.println("[error] <min_mb> must be a non-negative integer");
+		    return false;
+		}
+	    }
+
+	    // Send in the background, keeping the queuing delay we add to the
+	    // path under this many milliseconds.
+	    if (args[i].equals("-b") && i + 1 < argc) {
+
+		try {
+		    backgroundTarget = Long.parseLong(args[i + 1]);
+		} catch (NumberFormatException e) {
+		    backgroundTarget = 0;
+		}
+
+		if (backgroundTarget <= 0) {
+		    System.err.println("[error] <target_ms> must be a positive integer");
+		    return false;
+		}
+		priority = TransmitScheduler.BACKGROUND;
+	    }
+
+	    // Send over another path as well, from a local address to another
+	    // address of the receiver.
+	    if (args[i].equals("-P") && i + 1 < argc) {
+
+		String[] pathArgs = args[i + 1].split(",", 2);
+		String[] hostArgs = (pathArgs.length == 2) ? pathArgs[1].split(":", 2) : new String[0];
+		if (hostArgs.length != 2) {
+		    System.err.println("[error] a path must be in <local_addr>,<recv_host>:<recv_port> format");
+		    return false;
+		}
+
+		InetAddress local;
+		InetAddress host;
+		try {
+		    local = InetAddress.getByName(pathArgs[0]);
+		    host = InetAddress.getByName(hostArgs[0]);
+		} catch(UnknownHostException e) {
+		    System.err.println("[error] <local_addr> and <recv_host> must be in a.b.c.d format");
+		    return false;
+		}
+
+		try {
+		    extraPaths.add(new TransferPath(local, new InetSocketAddress(host, Integer.parseInt(hostArgs[1]))));
+		} catch (IllegalArgumentException e) {
+		    System.err.println("[error] <recv_port> must be an integer");
+		    return false;
+		}
+	    }
+	}
+
+	// Exactly one of a file, standard input, a followed file or a list file
+	// is sent.
+	int sources = (file != null ? 1 : 0) + (fromStdin ? 1 : 0) + (followFile != null ? 1 : 0) +
+	    (listFile != null ? 1 : 0);
+	if (destination == null || sources != 1) {
+	    System.err.println(USAGE);
+	    return false;
+	}
+
+	if (receivers > 1 && !destination.getAddress().isMulticastAddress()) {
+	    System.err.println("[error] -n needs a multicast <recv_host>");
+	    return false;
+	}
+
+	if (groupInterface != null && !destination.getAddress().isMulticastAddress()) {
+	    System.err.println("[error] -i needs a multicast <recv_host>");
+	    return false;
+	}
+
+	if (syncIndex != null && (file == null || !file.isDirectory() || receivers > 1 || !extraPaths.isEmpty())) {
+	    System.err.println("[error] -S needs -f <directory> and a single unicast receiver");
+	    return false;
+	}
+
+	if (!extraPaths.isEmpty() && (file == null || destination.getAddress().isMulticastAddress())) {
+	    System.err.println("[error] -P needs -f <filename> or -f <directory> and a unicast <recv_host>");
+	    return false;
 	}
 	
 	return true;
@@ -206,4 +397,4 @@ public class Sender {
     public static void main (String [] args) {
 	new Sender(args);
     }
-}
\ No newline at end of file
+}
\ No newline at end of file
@@ -1,9 +1,18 @@
 package filetransfer;
 
+import java.nio.ByteBuffer;
+
 public class SentPacket {
-    public byte[] data;
+    public ByteBuffer data;
+    public int slot;
     public int sequenceNumber;
+    public int payloadLength;
     public int sendCount;
+    public long lastSentTime;
+    public boolean retransmitted;
+    public boolean undoable;
+    public int path;
+    public boolean onPath;
     public boolean isInitPacket;
     public boolean isLastPacket;
-}
\ No newline at end of file
+}
@@ -0,0 +1,85 @@
+package filetransfer;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.WritableByteChannel;
+
+// Writes a single transfer to a channel that was opened ahead of time, such as
+// standard output or a pipe, as its data arrives in order. The channel is
+// closed when the transfer ends, so only the first transfer is taken, and a
+// batch is refused since it has no single stream of bytes to write.
+//
+// The channel is never synced, since it may not be a file; that is left to
+// whoever reads from it.
+public class StreamTransferHandler implements TransferHandler {
+
+    private WritableByteChannel channel;
+    private boolean opened;
+
+    // Creates a handler writing the first transfer it is given to the channel.
+    public StreamTransferHandler(WritableByteChannel channel) {
+	this.channel = channel;
+	this.opened  = false;
+    }
+
+    public synchronized GatheringByteChannel open(String name, boolean batch) throws IOException {
+	if (batch) {
+	    throw new IOException("a batch can't be written to a stream: " + name);
+	}
+	if (opened) {
+	    throw new IOException("already took a transfer: " + name);
+	}
+
+	opened = true;
+	return new Output(channel);
+    }
+
+    public void completed(String name, long bytes) {
+	System.out.format("[recv completed] %s (%d bytes)\n", name, bytes);
+    }
+
+    public void failed(String name, Exception error) {
+	System.err.format("[error] could not receive %s. message: %s\n", name, error.getMessage());
+    }
+
+    // Lets the DiskWriter make gathering writes to any channel.
+    private static class Output implements GatheringByteChannel {
+
+	private WritableByteChannel channel;
+
+	Output(WritableByteChannel channel) {
+	    this.channel = channel;
+	}
+
+	public long write(ByteBuffer[] sources, int offset, int length) throws IOException {
+	    if (channel instanceof GatheringByteChannel) {
+		return ((GatheringByteChannel)channel).write(sources, offset, length);
+	    }
+
+	    long total = 0;
+	    for (int i = offset; i < offset + length; ++i) {
+		while (sources[i].hasRemaining()) {
+		    total += channel.write(sources[i]);
+		}
+	    }
+	    return total;
+	}
+
+	public long write(ByteBuffer[] sources) throws IOException {
+	    return write(sources, 0, sources.length);
+	}
+
+	public int write(ByteBuffer source) throws IOException {
+	    return channel.write(source);
+	}
+
+	public boolean isOpen() {
+	    return channel.isOpen();
+	}
+
+	public void close() throws IOException {
+	    channel.close();
+	}
+    }
+}
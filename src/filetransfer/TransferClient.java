@@ -0,0 +1,554 @@
+package filetransfer;
+
+import java.io.Closeable;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.net.NetworkInterface;
+import java.net.SocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Sends files to TransferServers, any number of them at once, each as its own
+// session. Every transfer runs in the background and completes a future when
+// its last packet has been acknowledged.
+//
+// The client keeps one socket for as long as it is open. Every session sends
+// its packets over it, and the ACKs of every session come back to it, where a
+// single thread hands each one to the AckReceiver of its session. The slab the
+// packets are prepared into, and the threads that read, prepare and send them,
+// are shared by every transfer, so nothing is set up again for each one.
+//
+// All of the packets go out through one TransmitScheduler, which shares the
+// wire between the transfers by priority and weight, and can cap the rate
+// they send at between them. Background transfers also hold the queuing
+// delay they add to the path under a target, and back off for anyone else.
+//
+// Given a shared key, the client encrypts its transfers with AES-GCM, each
+// under a key of its own that the server derives from the same shared key.
+//
+// A transfer can also be sent over several paths at once, from different local
+// addresses to different addresses of the server, each with a socket of its
+// own. The ACKs still all come back to the client's socket.
+//
+// Files of at least a set size can be sent deduplicated. They offer the hashes
+// of their chunks first, and only the chunks the receivers don't already hold
+// are sent.
+public class TransferClient implements Closeable {
+
+    private DatagramChannel channel;
+    private SegmentSlab slab;
+    private TransmitScheduler scheduler;
+    private ExecutorService tasks;
+    private PriorityExecutor workers;
+    private int threads;
+    private long memoryCeiling;
+    private volatile byte[] sharedKey;
+    private volatile long dedupMinBytes;
+    private volatile long backgroundTarget;
+    private ConcurrentHashMap<Integer, AckReceiver> sessions;
+    private AtomicInteger nextSessionId;
+    private volatile boolean closed;
+
+    public static final long DEFAULT_MEMORY = 64 * 1024 * 1024;
+    static final long ACK_TIMEOUT = 30000;
+    static final long POLL_INTERVAL = 100;
+    static final int RING_SIZE = 4096;
+    private static final int MULTICAST_TTL = 16;
+
+    // Creates a client whose transfers may each grow their window to hold
+    // DEFAULT_MEMORY bytes.
+    public TransferClient() throws IOException {
+	this(DEFAULT_MEMORY);
+    }
+
+    // Creates a client whose transfers may each grow their window to hold
+    // memoryCeiling bytes of unacknowledged data.
+    public TransferClient(long memoryCeiling) throws IOException {
+	this.channel = DatagramChannel.open();
+	this.channel.bind(null);
+
+	// Receivers on this host should hear a multicast transfer too.
+	this.channel.setOption(StandardSocketOptions.IP_MULTICAST_LOOP, true);
+	this.channel.setOption(StandardSocketOptions.IP_MULTICAST_TTL, MULTICAST_TTL);
+
+	// Packets are prepared into an off-heap slab. On top of the window, it has
+	// room for a full ring and for every chunk the preparer may have in flight,
+	// so preparing packets can never hold up the window.
+	this.threads = Runtime.getRuntime().availableProcessors();
+	long reserve = (long)(RING_SIZE + 2 * threads * PacketPreparer.maxPacketsPerChunk() + 1)
+	    * SegmentSlab.SLOT_SIZE;
+	this.slab	   = new SegmentSlab(memoryCeiling + reserve);
+	this.memoryCeiling = memoryCeiling;
+	this.sharedKey	   = null;
+	this.dedupMinBytes = -1;
+	this.backgroundTarget = LedbatController.DEFAULT_TARGET_MS;
+
+	this.sessions	   = new ConcurrentHashMap<Integer, AckReceiver>();
+	this.nextSessionId = new AtomicInteger(ThreadLocalRandom.current().nextInt());
+	this.closed	   = false;
+
+	ThreadFactory daemons = runnable -> {
+	    Thread thread = new Thread(runnable, "transfer-client");
+	    thread.setDaemon(true);
+	    return thread;
+	};
+	this.tasks   = Executors.newCachedThreadPool(daemons);
+	this.workers = new PriorityExecutor(threads, daemons);
+
+	this.scheduler = new TransmitScheduler(memoryCeiling);
+	scheduler.start(tasks);
+	tasks.execute(this::listen);
+    }
+
+    // Caps the rate the client's transfers send at between them, in bytes per
+    // second. A limit of 0 removes the cap.
+    public void setRateLimit(long bytesPerSecond) {
+	scheduler.setRateLimit(bytesPerSecond);
+    }
+
+    // Sends multicast transfers out of the given interface rather than the
+    // system's default one, so that receivers that joined the group on it
+    // hear them.
+    public void setMulticastInterface(NetworkInterface networkInterface) throws IOException {
+	channel.setOption(StandardSocketOptions.IP_MULTICAST_IF, networkInterface);
+    }
+
+    // Encrypts the transfers that start from now on with keys derived from the
+    // given 16 or 32 byte key, which the server must share. A key of null sends
+    // them in the clear.
+    public void setSharedKey(byte[] key) {
+	if (key != null) {
+	    PacketCipher.checkKey(key);
+	    key = key.clone();
+	}
+	this.sharedKey = key;
+    }
+
+    // Sets the queuing delay, in milliseconds, that the background transfers
+    // started from now on hold themselves under.
+    public void setBackgroundTarget(long millis) {
+	if (millis <= 0) {
+	    throw new IllegalArgumentException("the target delay must be positive");
+	}
+	this.backgroundTarget = millis;
+    }
+
+    // Sends the regular files of at least minBytes that are sent from now on
+    // deduplicated against the receiver's chunk store. A negative size sends
+    // every file whole.
+    public void setDedup(long minBytes) {
+	this.dedupMinBytes = minBytes;
+    }
+
+    // Sends a file, or a whole directory as one batch, to the server at the
+    // given address.
+    public CompletableFuture<TransferResult> send(Path path, InetSocketAddress target) {
+	return send(path, target, 1, null);
+    }
+
+    // Sends a file, or a whole directory as one batch, to the given number of
+    // receivers as a bulk transfer. More than one receiver needs a multicast
+    // target. The listener, if there is one, hears how much of the data has
+    // been acknowledged.
+    public CompletableFuture<TransferResult> send(Path path, InetSocketAddress target, int receivers,
+						  TransferListener listener) {
+	return send(path, target, receivers, TransmitScheduler.BULK, TransmitScheduler.DEFAULT_WEIGHT, listener);
+    }
+
+    // Sends a file, or a whole directory as one batch, as above, in the given
+    // priority class of the TransmitScheduler and with the given weight against
+    // the other transfers in that class.
+    public CompletableFuture<TransferResult> send(Path path, InetSocketAddress target, int receivers,
+						  int priority, int weight, TransferListener listener) {
+	return send(path, target, receivers, null, priority, weight, listener);
+    }
+
+    // Sends a file, or a whole directory as one batch, to one server over all
+    // of the given paths at once, with the given priority and weight. The first
+    // path starts the transfer.
+    public CompletableFuture<TransferResult> send(Path path, List<TransferPath> paths, int priority, int weight,
+						  TransferListener listener) {
+	if (paths.isEmpty() || paths.size() > DataPacket.MAX_PATHS) {
+	    return failed(new IllegalArgumentException("a transfer needs between 1 and " + DataPacket.MAX_PATHS +
+						       " paths"));
+	}
+	return send(path, paths.get(0).getRemote(), 1, new ArrayList<TransferPath>(paths), priority, weight,
+		    listener);
+    }
+
+    // Sends a file, or a whole directory, over the given paths, or just to the
+    // target if there are none.
+    private CompletableFuture<TransferResult> send(Path path, InetSocketAddress target, int receivers,
+						   List<TransferPath> paths, int priority, int weight,
+						   TransferListener listener) {
+	InputStream input;
+	String name;
+	boolean batch = Files.isDirectory(path);
+	try {
+	    if (batch) {
+		input = new BatchInputStream(path, BatchInputStream.listDirectory(path));
+		name  = path.toAbsolutePath().normalize().getFileName().toString();
+	    } else {
+		long minBytes = dedupMinBytes;
+		if (minBytes >= 0 && Files.isRegularFile(path) && Files.size(path) >= minBytes) {
+		    input = new DedupInputStream(path);
+		} else {
+		    input = new FileInputStream(path.toFile());
+		}
+		name  = path.getFileName().toString();
+	    }
+	} catch (IOException e) {
+	    return failed(e);
+	}
+
+	return start(input, name, batch, false, target, receivers, paths, priority, weight, listener);
+    }
+
+    // Sends the files named in a list file, one per line, as one batch named
+    // after the list file, with the given priority and weight.
+    public CompletableFuture<TransferResult> sendList(Path listFile, InetSocketAddress target, int receivers,
+						      int priority, int weight, TransferListener listener) {
+	InputStream input;
+	try {
+	    input = new BatchInputStream(null, BatchInputStream.listFiles(listFile));
+	} catch (IOException e) {
+	    return failed(e);
+	}
+
+	return send(input, listFile.getFileName().toString(), true, target, receivers, priority, weight, listener);
+    }
+
+    // Sends everything read from the stream under the given name. If batch is
+    // set, the stream holds files packed by a BatchInputStream and the name is
+    // the directory they go in. The stream is closed once the transfer ends.
+    public CompletableFuture<TransferResult> send(InputStream input, String name, boolean batch,
+						  InetSocketAddress target, int receivers, int priority,
+						  int weight, TransferListener listener) {
+	return start(input, name, batch, false, target, receivers, null, priority, weight, listener);
+    }
+
+    // Streams everything read from the channel under the given name, however
+    // long it turns out to be. Whatever each read gives is sent right away,
+    // so the receiver has the first bytes while the source, such as a pipe,
+    // is still producing the rest. The channel is closed once the transfer
+    // ends.
+    public CompletableFuture<TransferResult> sendStream(ReadableByteChannel source, String name,
+							InetSocketAddress target, int receivers, int priority,
+							int weight, TransferListener listener) {
+	return start(Channels.newInputStream(source), name, false, true, target, receivers, null, priority, weight,
+		     listener);
+    }
+
+    // Starts a transfer of everything read from the stream, checking the
+    // arguments first. If streaming is set, data is sent as it is read rather
+    // than once a whole chunk has been. If there are paths, the transfer is
+    // sent over all of them.
+    private CompletableFuture<TransferResult> start(InputStream input, String name, boolean batch,
+						    boolean streaming, InetSocketAddress target, int receivers,
+						    List<TransferPath> paths, int priority, int weight,
+						    TransferListener listener) {
+	CompletableFuture<TransferResult> result = new CompletableFuture<TransferResult>();
+
+	if (receivers > 1 && !target.getAddress().isMulticastAddress()) {
+	    closeInput(input);
+	    result.completeExceptionally(new IllegalArgumentException("more than one receiver needs a multicast target"));
+	    return result;
+	}
+	if (priority < TransmitScheduler.INTERACTIVE || priority > TransmitScheduler.BACKGROUND) {
+	    closeInput(input);
+	    result.completeExceptionally(new IllegalArgumentException("unknown priority " + priority));
+	    return result;
+	}
+	if (weight <= 0) {
+	    closeInput(input);
+	    result.completeExceptionally(new IllegalArgumentException("weight must be positive"));
+	    return result;
+	}
+	if (paths != null) {
+	    for (TransferPath path : paths) {
+		if (path.getRemote().getAddress().isMulticastAddress()) {
+		    closeInput(input);
+		    result.completeExceptionally(new IllegalArgumentException("a multipath transfer can't be multicast"));
+		    return result;
+		}
+	    }
+	}
+
+	try {
+	    tasks.execute(() -> runTransfer(input, name, batch, streaming, target, receivers, paths, priority,
+					    weight, listener, result));
+	} catch (RejectedExecutionException e) {
+	    closeInput(input);
+	    result.completeExceptionally(new IOException("the client was closed"));
+	}
+	return result;
+    }
+
+    // Stops the client. Any transfers still running fail.
+    public void close() {
+	closed = true;
+	try {
+	    channel.close();
+	} catch (IOException e) {
+	    System.out.println("[debug] could not close socket: " + e.getMessage());
+	}
+	scheduler.stop();
+	tasks.shutdown();
+	workers.shutdown();
+    }
+
+    // Listens for the ACKs of every session, and hands each one to its session.
+    private void listen() {
+	ByteBuffer data = ByteBuffer.allocate(AckPacket.MAX_PACKET_SIZE);
+
+	while (!closed) {
+	    data.clear();
+	    SocketAddress source;
+	    try {
+		source = channel.receive(data);
+	    } catch (IOException e) {
+		if (!channel.isOpen()) {
+		    break;
+		}
+		continue;
+	    }
+
+	    AckPacket ack = new AckPacket(data.array(), data.position());
+	    if (ack.isCorrupt()) {
+		System.out.println("[recv corrupt ack]");
+		continue;
+	    }
+
+	    AckReceiver session = sessions.get(ack.getSessionId());
+	    if (session != null) {
+		session.receive(ack, source);
+	    }
+	}
+    }
+
+    // Runs one transfer from start to finish on a pooled thread.
+    private void runTransfer(InputStream input, String name, boolean batch, boolean streaming,
+			     InetSocketAddress target, int receivers, List<TransferPath> paths, int priority,
+			     int weight, TransferListener listener, CompletableFuture<TransferResult> result) {
+
+	long startTime = System.currentTimeMillis();
+	int sessionId = nextSessionId.getAndIncrement();
+	AckReceiver ackReceiver = new AckReceiver(receivers);
+	sessions.put(sessionId, ackReceiver);
+
+	// An encrypted transfer gets a key of its own, from a salt that goes to
+	// the receiver in the init packet.
+	byte[] key = sharedKey;
+	PacketCipher cipher = (key != null) ? new PacketCipher(key, PacketCipher.newSalt()) : null;
+
+	// A deduplicated file stops after its offer until the receivers answer,
+	// so whatever has been read is sent without waiting for a whole chunk.
+	boolean dedup = input instanceof DedupInputStream;
+	if (dedup) {
+	    ackReceiver.setOffer((DedupInputStream)input);
+	}
+
+	FileSendBuffer sender = null;
+	ReadAheadReader reader = null;
+	PacketPreparer preparer = null;
+	PacketRing ring = new PacketRing(RING_SIZE);
+	ArrayList<DatagramChannel> pathChannels = new ArrayList<DatagramChannel>();
+	Exception error = null;
+
+	try {
+
+	    // Every path sends from a socket of its own, bound to its local
+	    // address, except a first path from anywhere, which uses ours.
+	    DatagramChannel firstChannel = channel;
+	    if (paths != null) {
+		for (int i = 0; i < paths.size(); ++i) {
+		    TransferPath path = paths.get(i);
+		    if (i == 0 && path.getLocal() == null) {
+			continue;
+		    }
+		    DatagramChannel pathChannel = DatagramChannel.open();
+		    pathChannels.add(pathChannel);
+		    pathChannel.bind(new InetSocketAddress(path.getLocal(), 0));
+		    if (i == 0) {
+			firstChannel = pathChannel;
+		    }
+		}
+	    }
+
+	    // Prepared packets are handed to the sender through a ring rather than
+	    // one at a time under a lock. The scheduler sends them as this
+	    // transfer's turns come around.
+	    sender = new FileSendBuffer(firstChannel, target, sessionId, cipher, ring, slab, memoryCeiling,
+					scheduler, listener);
+	    if (paths != null) {
+		int next = (firstChannel == channel) ? 0 : 1;
+		for (int i = 1; i < paths.size(); ++i) {
+		    sender.addPath(pathChannels.get(next++), paths.get(i).getRemote());
+		}
+	    }
+	    if (priority == TransmitScheduler.BACKGROUND) {
+		sender.setBackground(backgroundTarget);
+	    }
+	    ackReceiver.setSendBuffer(sender);
+	    scheduler.add(sender, priority, weight);
+
+	    // The file is read in large chunks on one thread and cut up into packets on
+	    // the workers, so disk reads overlap with sending. The preparer starts with
+	    // the init packet that sets up the transfer with the receiver. The
+	    // FileSendBuffer takes the packets off the ring as its window allows, and
+	    // retransmits as necessary until they are acknowledged.
+	    reader = new ReadAheadReader(input, (long)ReadAheadReader.CHUNK_SIZE * ReadAheadReader.PREFETCH_CHUNKS, 1,
+					 streaming || dedup);
+	    preparer = new PacketPreparer(name, channel.socket().getLocalPort(), (paths != null) ? paths.size() : 1,
+					  batch, dedup, sessionId, cipher, reader, ring, slab, workers, priority,
+					  threads);
+	    reader.start(tasks);
+	    preparer.start(tasks);
+
+	    while (!preparer.join(POLL_INTERVAL)) {
+		checkAlive(ackReceiver, sender);
+	    }
+
+	    if (reader.getError() != null) {
+		throw reader.getError();
+	    }
+	    if (preparer.getError() != null) {
+		throw new IOException("could not prepare packets", preparer.getError());
+	    }
+	    int lastSeqNo = preparer.getLastSequenceNumber();
+	    if (lastSeqNo < 0) {
+		throw new IOException("the transfer was stopped");
+	    }
+
+	    // Wait for the last ACK packet to come in, then let the receiver know
+	    // it can stop listening for retransmissions.
+	    while (!ackReceiver.waitForAck(lastSeqNo, POLL_INTERVAL)) {
+		checkAlive(ackReceiver, sender);
+	    }
+	    sender.sendClose(lastSeqNo);
+
+	} catch (IOException | RejectedExecutionException e) {
+	    error = e;
+	} catch (InterruptedException e) {
+	    error = new IOException("interrupted while sending");
+	} finally {
+	    stopTransfer(reader, preparer, sender, ring);
+	    sessions.remove(sessionId);
+	    closeInput(input);
+	    for (DatagramChannel pathChannel : pathChannels) {
+		try {
+		    pathChannel.close();
+		} catch (IOException e) {
+		    System.out.println("[debug] could not close path socket: " + e.getMessage());
+		}
+	    }
+	}
+
+	if (error != null) {
+	    result.completeExceptionally(error);
+	    return;
+	}
+
+	int fileCount = batch ? ((BatchInputStream)input).getFileCount() : 1;
+	long bytes = dedup ? ((DedupInputStream)input).getSize() : reader.getTotalBytesRead();
+	result.complete(new TransferResult(bytes, sender.getTotalDataSent(), fileCount,
+					   System.currentTimeMillis() - startTime));
+    }
+
+    // Fails the transfer if the client has been closed, or if the receiver
+    // hasn't been heard from for too long while we were waiting on an ACK. A
+    // stream whose source has nothing to send can be quiet for as long as it
+    // likes.
+    private void checkAlive(AckReceiver ackReceiver, FileSendBuffer sender) throws IOException {
+	if (closed) {
+	    throw new IOException("the client was closed");
+	}
+	long lastHeard = Math.max(ackReceiver.getLastHeardTime(), sender.getIdleTime());
+	long quiet = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - lastHeard);
+	if (quiet > ACK_TIMEOUT) {
+	    throw new IOException("the receiver stopped responding");
+	}
+    }
+
+    // Stops every part of a transfer and gives back all of its slots. The sender
+    // releases its window when it stops, and the preparer what it hasn't
+    // published, but the preparer may still be blocked putting packets on the
+    // ring, so the ring is drained until the preparer has stopped.
+    private void stopTransfer(ReadAheadReader reader, PacketPreparer preparer, FileSendBuffer sender,
+			      PacketRing ring) {
+	if (reader != null) {
+	    reader.interrupt();
+	}
+	if (preparer != null) {
+	    preparer.interrupt();
+	}
+
+	boolean interrupted = false;
+	if (sender != null) {
+	    sender.stopSending();
+	    while (true) {
+		try {
+		    sender.join();
+		    break;
+		} catch (InterruptedException e) {
+		    interrupted = true;
+		}
+	    }
+	}
+
+	while (true) {
+	    drain(ring);
+	    try {
+		if (preparer == null || preparer.join(POLL_INTERVAL)) {
+		    break;
+		}
+	    } catch (InterruptedException e) {
+		interrupted = true;
+	    }
+	}
+	drain(ring);
+
+	if (interrupted) {
+	    Thread.currentThread().interrupt();
+	}
+    }
+
+    private void drain(PacketRing ring) {
+	SentPacket packet;
+	while ((packet = ring.poll()) != null) {
+	    slab.release(packet.slot);
+	}
+    }
+
+    private static void closeInput(InputStream input) {
+	try {
+	    input.close();
+	} catch (IOException e) {
+	    System.out.println("[debug] could not close input: " + e.getMessage());
+	}
+    }
+
+    private static CompletableFuture<TransferResult> failed(Exception error) {
+	CompletableFuture<TransferResult> result = new CompletableFuture<TransferResult>();
+	result.completeExceptionally(error);
+	return result;
+    }
+}
@@ -0,0 +1,24 @@
+package filetransfer;
+
+import java.io.IOException;
+import java.nio.channels.GatheringByteChannel;
+
+// Decides where the transfers a TransferServer receives are written, and hears
+// how each one ends. One handler serves every transfer, and may be called for
+// several transfers at once.
+public interface TransferHandler {
+
+    // Opens the channel a new transfer is written into. The name is the one
+    // the sender gave the transfer. A batch is the stream of a BatchInputStream,
+    // which a BatchUnpacker can split back out into files. Throwing refuses the
+    // transfer.
+    GatheringByteChannel open(String name, boolean batch) throws IOException;
+
+    // Called once a transfer has been written out and the channel closed, with
+    // the number of bytes written.
+    void completed(String name, long bytes);
+
+    // Called if a transfer could not be finished. The channel, if it was
+    // opened, has been closed.
+    void failed(String name, Exception error);
+}
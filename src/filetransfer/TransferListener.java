@@ -0,0 +1,10 @@
+package filetransfer;
+
+// Hears about the progress of a transfer started by a TransferClient. It is
+// called on the thread doing the sending, so it should return quickly.
+public interface TransferListener {
+
+    // Called each time more of the data has been acknowledged by the
+    // receiver, with the total number of bytes acknowledged so far.
+    void progress(long bytesAcknowledged);
+}
@@ -0,0 +1,34 @@
+package filetransfer;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+
+// One path of a multipath transfer, as given to a TransferClient: the local
+// address to send from, such as that of one of the host's network cards, and
+// the receiver's address to send to over it.
+public class TransferPath {
+
+    private InetAddress local;
+    private InetSocketAddress remote;
+
+    // Creates a path to the remote address. A local address of null sends
+    // from whichever address the system picks.
+    public TransferPath(InetAddress local, InetSocketAddress remote) {
+	this.local  = local;
+	this.remote = remote;
+    }
+
+    // Gets the local address to send from, or null for any.
+    public InetAddress getLocal() {
+	return local;
+    }
+
+    // Gets the receiver's address at the far end of the path.
+    public InetSocketAddress getRemote() {
+	return remote;
+    }
+
+    public String toString() {
+	return ((local != null) ? local.getHostAddress() : "*") + " -> " + remote;
+    }
+}
@@ -0,0 +1,39 @@
+package filetransfer;
+
+// The outcome of a transfer that completed, as reported by a TransferClient.
+public class TransferResult {
+
+    private long bytes;
+    private long dataSent;
+    private int fileCount;
+    private long runningTime;
+
+    public TransferResult(long bytes, long dataSent, int fileCount, long runningTime) {
+	this.bytes	 = bytes;
+	this.dataSent	 = dataSent;
+	this.fileCount	 = fileCount;
+	this.runningTime = runningTime;
+    }
+
+    // Gets the number of bytes of data transferred. For a batch, this includes
+    // the records describing each file.
+    public long getBytes() {
+	return bytes;
+    }
+
+    // Gets the number of bytes put on the network, including headers and
+    // retransmissions.
+    public long getDataSent() {
+	return dataSent;
+    }
+
+    // Gets the number of files transferred, which is 1 unless it was a batch.
+    public int getFileCount() {
+	return fileCount;
+    }
+
+    // Gets how long the transfer took, in milliseconds.
+    public long getRunningTime() {
+	return runningTime;
+    }
+}
@@ -0,0 +1,540 @@
+package filetransfer;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.NetworkInterface;
+import java.net.StandardProtocolFamily;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.GatheringByteChannel;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+// Receives transfers on one port for as long as it is open, any number of them
+// at once, and hands each one to a TransferHandler to be written out.
+//
+// Every transfer is a session with an id chosen by the sender. The server owns
+// the socket and does nothing on its thread but pull datagrams into slots of an
+// off-heap slab. A small pool of workers checks and parses them, and hands each
+// packet to the FileReceiveBuffer of its session. An init packet for a session
+// we haven't seen starts a new one. The socket, the slab, the workers and the
+// timers are all shared by every session, and the threads that take packets
+// in order and write them out come from a pool, so nothing is set up again for
+// each transfer.
+//
+// The server can also join a multicast group, so that many receivers take the
+// same transfer.
+//
+// At high packet rates a single socket, and the one thread draining it, is the
+// limit. The server can instead bind several sockets to its port with
+// SO_REUSEPORT, each drained by a thread of its own. The kernel spreads
+// senders across the sockets by their address, so sessions from different
+// senders, or the paths of a multipath transfer, are taken off the network on
+// different cores. Every socket still hands its datagrams to the shared
+// workers, so that a single path, which always lands on one socket, is
+// checked and parsed on as many cores as it is with one socket.
+//
+// A session is known by the address its init packet came from. If the sender
+// says it is using more than one path, packets with the session's id are
+// taken from any address, since the other paths send from addresses of their
+// own.
+//
+// Given a shared key, the server only takes transfers encrypted with AES-GCM
+// under keys derived from it, and drops any packet that doesn't open.
+//
+// Given a ChunkStore, the server answers a sender that offers the hashes of
+// its chunks by asking only for those the store doesn't have, and assembles
+// the file from the store and what is sent. Without one, it asks for them all.
+public class TransferServer implements Closeable {
+
+    private DatagramChannel channel;
+    private DatagramChannel[] listeners;
+    private DatagramChannel ackChannel;
+    private SegmentSlab slab;
+    private TransferHandler handler;
+    private ExecutorService workers;
+    private ExecutorService tasks;
+    private ScheduledExecutorService timer;
+    private ConcurrentHashMap<SessionKey, FileReceiveBuffer> sessions;
+    private ConcurrentHashMap<Integer, FileReceiveBuffer> multipath;
+    private Map<SessionKey, Boolean> finished;
+    private volatile boolean closed;
+
+    private long syncInterval;
+    private boolean syncAtEnd;
+    private byte[] sharedKey;
+    private volatile ChunkStore chunkStore;
+
+    private static final int MAX_WORKERS = 4;
+    private static final int MAX_FINISHED = 4096;
+    public static final long DEFAULT_MEMORY = 64 * 1024 * 1024;
+
+    // Identifies a session by the sender's address and the id it chose.
+    private static final class SessionKey {
+	final InetSocketAddress source;
+	final int id;
+
+	SessionKey(InetSocketAddress source, int id) {
+	    this.source = source;
+	    this.id	= id;
+	}
+
+	public boolean equals(Object other) {
+	    if (!(other instanceof SessionKey)) {
+		return false;
+	    }
+	    SessionKey key = (SessionKey)other;
+	    return id == key.id && source.equals(key.source);
+	}
+
+	public int hashCode() {
+	    return source.hashCode() * 31 + id;
+	}
+    }
+
+    // Creates a server listening on the given port, holding at most
+    // DEFAULT_MEMORY bytes of packets.
+    public TransferServer(int port, TransferHandler handler) throws IOException {
+	this(port, null, null, DEFAULT_MEMORY, handler);
+    }
+
+    // Creates a server listening on the given port, whose sessions between them
+    // hold at most memoryCeiling bytes of packets. If a multicast group is given
+    // it is joined too, on the first interface that supports multicast unless an
+    // interface is given.
+    public TransferServer(int port, InetAddress group, NetworkInterface groupInterface,
+			  long memoryCeiling, TransferHandler handler) throws IOException {
+	this(port, group, groupInterface, memoryCeiling, 1, handler);
+    }
+
+    // Creates a server as above, which takes datagrams in on the given number of
+    // sockets sharing the port, if the system allows it. A multicast server
+    // always uses one.
+    public TransferServer(int port, InetAddress group, NetworkInterface groupInterface,
+			  long memoryCeiling, int sockets, TransferHandler handler) throws IOException {
+	if (sockets < 1) {
+	    throw new IllegalArgumentException("a server needs at least one socket");
+	}
+
+	if (group == null && sockets > 1) {
+	    this.listeners = openReusePort(port, sockets);
+	    this.channel = listeners[0];
+	    this.ackChannel = channel;
+	} else if (group == null) {
+	    this.channel = DatagramChannel.open();
+	    this.channel.bind(new InetSocketAddress(port));
+	    this.ackChannel = channel;
+	} else {
+
+	    // Several receivers on one host may join the same group and port.
+	    this.channel = DatagramChannel.open(StandardProtocolFamily.INET);
+	    this.channel.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+	    this.channel.bind(new InetSocketAddress(port));
+
+	    if (groupInterface == null) {
+		groupInterface = findMulticastInterface();
+	    }
+	    this.channel.join(group, groupInterface);
+
+	    // ACKs go out from a socket of our own, since a sender tells the
+	    // receivers in the group apart by the address they ACK from.
+	    this.ackChannel = DatagramChannel.open();
+	    this.ackChannel.bind(null);
+	    System.out.format("[debug] joined %s on %s\n", group.getHostAddress(), groupInterface.getName());
+	}
+	if (this.listeners == null) {
+	    this.listeners = new DatagramChannel[] { channel };
+	}
+
+	this.slab     = new SegmentSlab(memoryCeiling);
+	this.handler  = handler;
+	this.sessions = new ConcurrentHashMap<SessionKey, FileReceiveBuffer>();
+	this.multipath = new ConcurrentHashMap<Integer, FileReceiveBuffer>();
+	this.closed   = false;
+
+	// Remember the sessions that have finished recently, so that a stray
+	// init packet can't start one of them over again.
+	this.finished = Collections.synchronizedMap(new LinkedHashMap<SessionKey, Boolean>() {
+		protected boolean removeEldestEntry(Map.Entry<SessionKey, Boolean> eldest) {
+		    return size() > MAX_FINISHED;
+		}
+	    });
+
+	this.syncInterval = 0;
+	this.syncAtEnd	  = false;
+	this.sharedKey	  = null;
+	this.chunkStore	  = null;
+
+	ThreadFactory daemons = runnable -> {
+	    Thread thread = new Thread(runnable, "transfer-server");
+	    thread.setDaemon(true);
+	    return thread;
+	};
+	int workerCount = Math.max(1, Math.min(MAX_WORKERS, Runtime.getRuntime().availableProcessors() - 1));
+	this.workers = Executors.newFixedThreadPool(workerCount, daemons);
+	this.tasks   = Executors.newCachedThreadPool(daemons);
+	this.timer   = Executors.newSingleThreadScheduledExecutor(daemons);
+    }
+
+    // Opens the given number of sockets bound to the port with SO_REUSEPORT. If
+    // the system doesn't support it, just the one socket is opened. With port
+    // 0, the first socket picks the port and the rest join it.
+    private static DatagramChannel[] openReusePort(int port, int sockets) throws IOException {
+	DatagramChannel first = DatagramChannel.open();
+	if (!first.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT)) {
+	    System.out.println("[debug] SO_REUSEPORT is not supported, receiving on one socket");
+	    first.bind(new InetSocketAddress(port));
+	    return new DatagramChannel[] { first };
+	}
+
+	DatagramChannel[] opened = new DatagramChannel[sockets];
+	opened[0] = first;
+	try {
+	    first.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+	    first.bind(new InetSocketAddress(port));
+	    InetSocketAddress bound = (InetSocketAddress)first.getLocalAddress();
+
+	    for (int i = 1; i < sockets; ++i) {
+		opened[i] = DatagramChannel.open();
+		opened[i].setOption(StandardSocketOptions.SO_REUSEPORT, true);
+		opened[i].bind(bound);
+	    }
+	} catch (IOException e) {
+	    for (DatagramChannel each : opened) {
+		if (each != null) {
+		    each.close();
+		}
+	    }
+	    throw e;
+	}
+	return opened;
+    }
+
+    // Finds the first interface that is up and supports multicast, preferring
+    // any that isn't the loopback interface.
+    private static NetworkInterface findMulticastInterface() throws IOException {
+	NetworkInterface fallback = null;
+	for (NetworkInterface candidate : Collections.list(NetworkInterface.getNetworkInterfaces())) {
+	    if (!candidate.isUp() || !candidate.supportsMulticast()) {
+		continue;
+	    }
+	    if (!candidate.isLoopback()) {
+		return candidate;
+	    }
+	    fallback = candidate;
+	}
+
+	if (fallback == null) {
+	    throw new IOException("no network interface supports multicast");
+	}
+	return fallback;
+    }
+
+    // Sets how received data is synced to disk. If syncInterval is greater than
+    // 0 each transfer is synced every time that many bytes have been written,
+    // and if syncAtEnd is set it is synced once more before it is closed. Only
+    // applies to transfers that start afterwards.
+    public void setSyncPolicy(long syncInterval, boolean syncAtEnd) {
+	this.syncInterval = syncInterval;
+	this.syncAtEnd	  = syncAtEnd;
+    }
+
+    // Only takes transfers encrypted with keys derived from the given 16 or 32
+    // byte key, which the client must share. Must be set before the server is
+    // started.
+    public void setSharedKey(byte[] key) {
+	PacketCipher.checkKey(key);
+	this.sharedKey = key.clone();
+    }
+
+    // Keeps the chunks of the files that offer them in the given store, and
+    // assembles later files from it. Only applies to transfers that start
+    // afterwards.
+    public void setChunkStore(ChunkStore store) {
+	this.chunkStore = store;
+    }
+
+    // Gets the port the server is listening on.
+    public int getPort() {
+	return channel.socket().getLocalPort();
+    }
+
+    // Starts listening for transfers, with a thread for each socket.
+    public void start() {
+	for (DatagramChannel listener : listeners) {
+	    tasks.execute(() -> listen(listener));
+	}
+	timer.scheduleAtFixedRate(this::renackHoles, FileReceiveBuffer.NACK_RETRY_MS,
+				  FileReceiveBuffer.NACK_RETRY_MS, TimeUnit.MILLISECONDS);
+    }
+
+    // Stops listening. Any transfers still running fail.
+    public void close() {
+	closed = true;
+	try {
+	    for (DatagramChannel listener : listeners) {
+		listener.close();
+	    }
+	    ackChannel.close();
+	} catch (IOException e) {
+	    System.out.println("[debug] could not close socket: " + e.getMessage());
+	}
+
+	for (FileReceiveBuffer session : sessions.values()) {
+	    session.close();
+	}
+	workers.shutdown();
+	timer.shutdownNow();
+	tasks.shutdown();
+    }
+
+    // Pulls datagrams off one of the sockets for as long as the server is open,
+    // and hands them to the workers.
+    private void listen(DatagramChannel listener) {
+	ByteBuffer overflow = ByteBuffer.allocateDirect(SegmentSlab.SLOT_SIZE);
+
+	while (!closed) {
+
+	    // Receive straight into a slot of the slab. If every slot is in use,
+	    // the datagram is still taken off the socket but is dropped, and the
+	    // sender will retransmit it once there is room.
+	    final int slot = slab.allocate();
+	    ByteBuffer data = (slot >= 0) ? slab.buffer(slot) : overflow;
+	    data.clear();
+
+	    final InetSocketAddress source;
+	    try {
+		source = (InetSocketAddress)listener.receive(data);
+	    } catch (IOException e) {
+		slab.release(slot);
+		if (!listener.isOpen()) {
+		    break;
+		}
+		continue;
+	    }
+
+	    if (slot < 0) {
+		System.out.println("[recv dropped] no free slots");
+		continue;
+	    }
+
+	    final int length = data.position();
+	    final long receivedTime = System.nanoTime();
+	    try {
+		workers.execute(() -> processDatagram(slot, length, source, receivedTime, listener));
+	    } catch (RejectedExecutionException e) {
+		// The workers have been shut down, so the server is closed.
+		slab.release(slot);
+		break;
+	    }
+	}
+    }
+
+    // Validates and parses a datagram and hands it to its session, starting a
+    // new session for an init packet. Runs on one of the worker threads. The
+    // slot is released here unless the packet is passed on. The time it was
+    // received at goes along with the packet, and a new session tunes the
+    // receive buffer of the socket it arrived on.
+    private void processDatagram(int slot, int length, InetSocketAddress source, long receivedTime,
+				 DatagramChannel listener) {
+
+	// Create our own filetransfer data packet from the slot the datagram
+	// was received into, without copying it.
+	DataPacket packet = new DataPacket(slab.buffer(slot), length);
+	packet.setSlot(slot);
+	packet.setReceivedTime(receivedTime);
+
+	if (packet.isCorrupt()) {
+	    System.out.println("[recv corrupt packet]");
+	    slab.release(slot);
+	    return;
+	}
+
+	// With a shared key, every transfer has to be encrypted, and without one
+	// none of them can be.
+	if (packet.isEncrypted() != (sharedKey != null)) {
+	    System.out.println(packet.isEncrypted() ? "[recv dropped] encrypted, but no key"
+			       : "[recv dropped] not encrypted");
+	    slab.release(slot);
+	    return;
+	}
+
+	SessionKey key = new SessionKey(source, packet.getSessionId());
+	FileReceiveBuffer session = sessions.get(key);
+	if (session == null) {
+	    session = multipath.get(packet.getSessionId());
+	}
+	boolean starting = (session == null && packet.isInitPacket() && !closed && !finished.containsKey(key));
+
+	// A sealed packet is opened with the cipher of its session. An init packet
+	// brings the salt for the key of a new session, and only starts it if it
+	// opens with that key, so nothing gets into a session without the shared
+	// key.
+	PacketCipher cipher = null;
+	if (packet.isEncrypted() && (session != null || starting)) {
+	    cipher = (session != null) ? session.getCipher() : new PacketCipher(sharedKey, packet.getSalt());
+	    if (!packet.open(cipher)) {
+		System.out.println("[recv corrupt packet]");
+		slab.release(slot);
+		return;
+	    }
+	}
+
+	if (starting) {
+	    final PacketCipher sessionCipher = cipher;
+	    try {
+		session = sessions.computeIfAbsent(key, k -> startSession(k, sessionCipher, listener));
+	    } catch (RejectedExecutionException e) {
+		session = null;
+	    }
+	    if (session != null && packet.getPathCount() > 1) {
+		multipath.putIfAbsent(key.id, session);
+	    }
+	}
+
+	// Anything else for a session we don't have is left over from one that
+	// has finished, or arrived ahead of the init packet and will be resent.
+	if (session == null) {
+	    slab.release(slot);
+	    return;
+	}
+
+	session.processPacket(packet, source);
+    }
+
+    // Creates the buffer for a new session, whose packets are opened with the
+    // given cipher if it is encrypted, and starts taking its packets. Its
+    // packets arrive on the given socket.
+    private FileReceiveBuffer startSession(SessionKey key, PacketCipher cipher, DatagramChannel listener) {
+	FileReceiveBuffer session = new FileReceiveBuffer(key.id, cipher, listener, ackChannel, slab, timer);
+	tasks.execute(() -> receive(key, session));
+	return session;
+    }
+
+    // Runs on the timer, giving every session a chance to NACK its holes again,
+    // and to repeat its answer to an offer of chunks.
+    private void renackHoles() {
+	for (FileReceiveBuffer session : sessions.values()) {
+	    session.renackHoles();
+	    session.resendWant();
+	}
+    }
+
+    // Takes the packets of a session in order and queues them to be written
+    // out, until the last packet has been taken. Then the session is closed,
+    // and the handler hears how it went.
+    private void receive(SessionKey key, FileReceiveBuffer session) {
+
+	String name = null;
+	DiskWriter writer = null;
+	DedupAssembler assembler = null;
+	Exception error = null;
+
+	try {
+	    while (true) {
+
+		// Get the next sequential packet from the FileReceiveBuffer. If the next
+		// packet hasn't arrived yet, this call with block until it becomes available.
+		DataPacket packet = session.getNextPacket();
+		if (packet == null) {
+		    throw new IOException(closed ? "the server was closed" : "the sender stopped responding");
+		}
+
+		// The init packet is always first, since it is what started the session.
+		// It holds the name of the transfer, which the handler turns into the
+		// channel we are going to write. The writes themselves happen on a separate
+		// thread so the disk can fall behind without holding up the receive window.
+		// A file that offers its chunks is assembled in front of that channel.
+		if (writer == null) {
+		    if (!packet.isInitPacket()) {
+			slab.release(packet.getSlot());
+			continue;
+		    }
+
+		    name = packet.getName();
+		    GatheringByteChannel output;
+		    try {
+			output = handler.open(name, packet.isBatch());
+			if (packet.isDedup()) {
+			    assembler = new DedupAssembler(output, chunkStore, session::setWanted);
+			    output = assembler;
+			}
+		    } catch (IOException e) {
+			slab.release(packet.getSlot());
+			throw e;
+		    }
+		    writer = new DiskWriter(output, slab, syncInterval, syncAtEnd);
+		    writer.start(tasks);
+		    session.setDiskWriter(writer);
+		}
+
+		// Queue any file data in the packet to be written to disk straight from its
+		// slot. A small file arrives whole in the init packet. A hole has no
+		// data, but the writer still has to skip over it.
+		if (packet.getDataLength() == 0 && !packet.isHole()) {
+		    slab.release(packet.getSlot());
+		} else if (!writer.write(packet)) {
+		    slab.release(packet.getSlot());
+		    throw writeError(writer, name);
+		}
+
+		// The last packet flag will indicate that we have received all
+		// of the file.
+		if (packet.isLastPacket()) {
+		    break;
+		}
+	    }
+
+	    // Acknowledge the last packet right away, so the sender can finish while
+	    // the writer flushes everything out to disk. Then stay around long enough
+	    // to ACK again in case that ACK was lost.
+	    session.sendLastAck();
+	    DiskWriter finishing = writer;
+	    writer = null;
+	    if (!finishing.finish()) {
+		throw writeError(finishing, name);
+	    }
+	    session.linger();
+
+	    closeSession(key, session);
+	    handler.completed(name, (assembler != null) ? assembler.getBytesAssembled()
+			      : finishing.getBytesWritten());
+	    return;
+
+	} catch (IOException | RejectedExecutionException e) {
+	    error = e;
+	}
+
+	// Close whatever was written so far before the handler hears about it.
+	if (writer != null) {
+	    writer.finish();
+	}
+	closeSession(key, session);
+	handler.failed(name, error);
+    }
+
+    // Forgets a session, releasing anything it still holds. It is remembered
+    // as finished first, so its init packet can't start it again.
+    private void closeSession(SessionKey key, FileReceiveBuffer session) {
+	finished.put(key, Boolean.TRUE);
+	sessions.remove(key);
+	multipath.remove(key.id, session);
+	session.close();
+    }
+
+    private static IOException writeError(DiskWriter writer, String name) {
+	IOException error = writer.getError();
+	return (error != null) ? error : new IOException("could not write " + name);
+    }
+}
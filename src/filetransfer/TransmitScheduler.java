@@ -0,0 +1,324 @@
+package filetransfer;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+// Sends the packets of every transfer a client is running from one loop, so
+// that transfers share the wire according to their priority and weight instead
+// of fighting over it.
+//
+// Each transfer is a FileSendBuffer in one of three priority classes. A class
+// is only served when every transfer in the classes above it has nothing it may
+// send, so an interactive transfer is never held up behind a bulk one, and a
+// background transfer only gets what the others leave over. Within
+// a class, transfers take turns by deficit round robin: on each turn a transfer
+// earns QUANTUM bytes for each point of its weight, and sends until it has
+// spent them or has nothing ready. A transfer that runs out of packets loses
+// what it had left, so it can't save up a burst while it is idle.
+//
+// The window budget is split up the same way. Every transfer may only fill
+// its share of the client's memory ceiling, by weight, so a bulk transfer with
+// a big window can't keep the others waiting for slots.
+//
+// Optionally, all of the transfers together are held under a rate cap by a
+// token bucket that holds at most BURST_NANOS worth of sending.
+//
+// The scheduler's thread is the only one that ever touches a FileSendBuffer's
+// window. A stopped buffer is released on this thread, and then wakes anyone
+// waiting for it to stop. Once the scheduler itself has stopped, whatever is
+// left is released by the thread that stopped it.
+public class TransmitScheduler extends PooledTask {
+
+    private ArrayList<ArrayList<Flow>> classes;
+    private int[] cursors;
+    private ConcurrentLinkedQueue<Flow> added;
+    private boolean stopped;
+    private volatile Thread runner;
+    private long windowPackets;
+
+    private volatile long rateLimit;
+    private long tokens;
+    private long lastRefill;
+
+    // Transfers that someone is waiting on, served ahead of everything else.
+    public static final int INTERACTIVE = 0;
+    // Transfers that only have to finish eventually.
+    public static final int BULK	= 1;
+    // Transfers that should only use capacity nobody else wants, here or on
+    // the path. Their buffers also back off when they see a queue building.
+    public static final int BACKGROUND	= 2;
+    public static final int DEFAULT_WEIGHT = 1;
+
+    private static final int PRIORITY_CLASSES = 3;
+    private static final int QUANTUM = 16 * 1024;
+    private static final long IDLE_PARK_NANOS = 50000;
+    private static final long IDLE_WAIT_NANOS = 1000000;
+    private static final long BURST_NANOS = 10000000;
+    private static final int MIN_WINDOW = 10;
+
+    // A transfer as the scheduler sees it.
+    private static class Flow {
+	final FileSendBuffer buffer;
+	final int priority;
+	final int weight;
+	long deficit;
+	boolean inTurn;
+
+	Flow(FileSendBuffer buffer, int priority, int weight) {
+	    this.buffer	  = buffer;
+	    this.priority = priority;
+	    this.weight	  = weight;
+	    this.deficit  = 0;
+	    this.inTurn	  = false;
+	}
+    }
+
+    // Creates a scheduler whose transfers between them may have at most
+    // memoryCeiling bytes of the slab in their windows.
+    public TransmitScheduler(long memoryCeiling) {
+	this.classes = new ArrayList<ArrayList<Flow>>();
+	for (int i = 0; i < PRIORITY_CLASSES; ++i) {
+	    classes.add(new ArrayList<Flow>());
+	}
+	this.cursors	   = new int[PRIORITY_CLASSES];
+	this.added	   = new ConcurrentLinkedQueue<Flow>();
+	this.stopped	   = false;
+	this.runner	   = null;
+	this.windowPackets = memoryCeiling / SegmentSlab.SLOT_SIZE;
+
+	this.rateLimit	= 0;
+	this.tokens	= 0;
+	this.lastRefill = System.nanoTime();
+    }
+
+    // Caps the rate all of the transfers together send at, in bytes per
+    // second. A limit of 0 removes the cap.
+    public void setRateLimit(long bytesPerSecond) {
+	this.rateLimit = Math.max(0, bytesPerSecond);
+	wake();
+    }
+
+    // Starts sending the packets of a buffer in the given priority class, with
+    // the given share of the bandwidth against the other transfers in its class.
+    // If the scheduler has already stopped, the buffer is stopped right away.
+    public void add(FileSendBuffer buffer, int priority, int weight) {
+	if (priority < INTERACTIVE || priority > BACKGROUND) {
+	    throw new IllegalArgumentException("unknown priority " + priority);
+	}
+	if (weight <= 0) {
+	    throw new IllegalArgumentException("weight must be positive");
+	}
+
+	synchronized (this) {
+	    if (!stopped) {
+		added.add(new Flow(buffer, priority, weight));
+		wake();
+		return;
+	    }
+	}
+	buffer.finish();
+    }
+
+    // Wakes the scheduler if it is waiting for something to send.
+    public void wake() {
+	Thread thread = runner;
+	if (thread != null) {
+	    LockSupport.unpark(thread);
+	}
+    }
+
+    public void run() {
+	runner = Thread.currentThread();
+
+	while (!Thread.currentThread().isInterrupted()) {
+
+	    if (admit() | retire()) {
+		rebalance();
+	    }
+
+	    // Serve the classes in order of priority, and stop at the first one
+	    // that has anything to send. If the rate cap holds us back, wait
+	    // until the bucket has room again. If nothing could be sent, check
+	    // back soon for packets from the preparers, since they don't wake us.
+	    // ACKs, NACKs and new transfers do, so waiting on those takes longer.
+	    int sent = 0;
+	    for (int i = 0; i < PRIORITY_CLASSES && sent == 0; ++i) {
+		sent = serve(i);
+	    }
+
+	    if (sent < 0) {
+		LockSupport.parkNanos(this, untilTokens());
+	    } else if (sent == 0) {
+		LockSupport.parkNanos(this, idleWait());
+	    }
+	}
+
+	runner = null;
+    }
+
+    // Stops the scheduler, and every buffer it was sending for. Any buffer
+    // added from now on is stopped right away.
+    public void stop() {
+	synchronized (this) {
+	    stopped = true;
+	}
+	interrupt();
+
+	boolean interrupted = false;
+	while (true) {
+	    try {
+		join();
+		break;
+	    } catch (InterruptedException e) {
+		interrupted = true;
+	    }
+	}
+
+	admit();
+	for (ArrayList<Flow> flows : classes) {
+	    for (Flow flow : flows) {
+		flow.buffer.finish();
+	    }
+	    flows.clear();
+	}
+
+	if (interrupted) {
+	    Thread.currentThread().interrupt();
+	}
+    }
+
+    // Gives each transfer in a class its turn, starting from the one whose turn
+    // is next. Returns the number of bytes sent, or -1 if the rate cap stopped
+    // us part way through a turn, which then carries on the next time around.
+    private int serve(int priority) {
+	ArrayList<Flow> flows = classes.get(priority);
+	int total = 0;
+
+	for (int i = 0; i < flows.size(); ++i) {
+	    int cursor = cursors[priority] % flows.size();
+	    Flow flow = flows.get(cursor);
+
+	    if (!flow.inTurn) {
+		flow.deficit += (long)QUANTUM * flow.weight;
+		flow.inTurn = true;
+	    }
+
+	    while (flow.deficit > 0) {
+		if (!haveTokens()) {
+		    return -1;
+		}
+
+		int sent = flow.buffer.sendNext();
+		if (sent == 0) {
+		    flow.deficit = 0;
+		    break;
+		}
+
+		flow.deficit -= sent;
+		spendTokens(sent);
+		total += sent;
+	    }
+
+	    flow.inTurn = false;
+	    cursors[priority] = cursor + 1;
+	}
+
+	return total;
+    }
+
+    private long idleWait() {
+	for (ArrayList<Flow> flows : classes) {
+	    for (Flow flow : flows) {
+		if (flow.buffer.isWaitingForPackets()) {
+		    return IDLE_PARK_NANOS;
+		}
+	    }
+	}
+	return IDLE_WAIT_NANOS;
+    }
+
+    // Takes on any transfers that were added since the last time around.
+    // Returns true if there were any.
+    private boolean admit() {
+	boolean any = false;
+	Flow flow;
+	while ((flow = added.poll()) != null) {
+	    classes.get(flow.priority).add(flow);
+	    any = true;
+	}
+	return any;
+    }
+
+    // Releases and drops any transfers that have been stopped. Returns true
+    // if there were any.
+    private boolean retire() {
+	boolean any = false;
+	for (ArrayList<Flow> flows : classes) {
+	    Iterator<Flow> it = flows.iterator();
+	    while (it.hasNext()) {
+		Flow flow = it.next();
+		if (flow.buffer.isStopping()) {
+		    flow.buffer.finish();
+		    it.remove();
+		    any = true;
+		}
+	    }
+	}
+	return any;
+    }
+
+    // Splits the window budget between the transfers by weight.
+    private void rebalance() {
+	long totalWeight = 0;
+	for (ArrayList<Flow> flows : classes) {
+	    for (Flow flow : flows) {
+		totalWeight += flow.weight;
+	    }
+	}
+
+	for (ArrayList<Flow> flows : classes) {
+	    for (Flow flow : flows) {
+		long share = windowPackets * flow.weight / totalWeight;
+		flow.buffer.setWindowLimit((int)Math.max(MIN_WINDOW, Math.min(share, Integer.MAX_VALUE)));
+	    }
+	}
+    }
+
+    // Tops up the token bucket for the time that has passed, and tells
+    // whether there is anything in it.
+    private boolean haveTokens() {
+	long limit = rateLimit;
+	if (limit == 0) {
+	    return true;
+	}
+
+	long now = System.nanoTime();
+	long burst = Math.max(limit * BURST_NANOS / TimeUnit.SECONDS.toNanos(1), SegmentSlab.SLOT_SIZE);
+	long elapsed = Math.min(now - lastRefill, TimeUnit.SECONDS.toNanos(1));
+	long earned = elapsed * limit / TimeUnit.SECONDS.toNanos(1);
+	if (earned > 0) {
+	    tokens = Math.min(burst, tokens + earned);
+	    lastRefill = now;
+	}
+	return tokens > 0;
+    }
+
+    private void spendTokens(int bytes) {
+	if (rateLimit != 0) {
+	    tokens -= bytes;
+	}
+    }
+
+    // Gets how long until the bucket is no longer empty.
+    private long untilTokens() {
+	long limit = rateLimit;
+	if (limit == 0) {
+	    return 0;
+	}
+	long needed = 1 - tokens;
+	return Math.max(IDLE_PARK_NANOS, needed * TimeUnit.SECONDS.toNanos(1) / limit);
+    }
+}